@@ -172,8 +172,10 @@ public class MainActivity extends AppCompatActivity
             bSilence = true;
             for (int i = 0; i < mBufferSizeInShort; i++) {
                 short s = mRecordBuf[i];
-                if (s > THRESHOLD_SILENCE) {
+                // 負の側の振れも数え, 閾値を超えた時点で打ち切る
+                if (s > THRESHOLD_SILENCE || s < -THRESHOLD_SILENCE) {
                     bSilence = false;
+                    break;
                 }
             }
             if (bSilence) { // 静寂
@@ -200,10 +202,8 @@ public class MainActivity extends AppCompatActivity
                 if (freq >= FREQ_BASE && freq <= FREQ_MAX) {
                     int val = (int) ((freq - FREQ_BASE) / FREQ_STEP);
                     if (val >= 0 && val <= 255) {
-                        Message msg = new Message();
-                        msg.what = MSG_DATA_RECV;
-                        msg.arg1 = val;
-                        mHandler.sendMessage(msg);
+                        // Message はプールから取り出し, 1 バイトごとに確保しない
+                        mHandler.obtainMessage(MSG_DATA_RECV, val, 0).sendToTarget();
                     } else {
                         freq = -1;
                     }
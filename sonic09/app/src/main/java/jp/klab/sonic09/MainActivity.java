@@ -3,12 +3,30 @@
  *
  * 文字列をサイン波信号に置き換えて出力する
  * 32ビットCRC付与, 超音波モード追加
+ * 変調・フレーム処理に sonicmodem を利用
+ * 複数バイトを同時に送る多重トーンモード追加 (x1/x2/x4/x8, 超音波は x2 まで)
+ * OFDM モード追加 (DQPSK, 約 6kbps)
+ * シンボル長の選択 (100/50/20msec) を追加. 先端符丁直後のレートバイトで受信側へ通知
+ * 信号は位相連続 FSK とし, シンボル両端に二乗余弦ランプをかける
+ * 先端に 50msec のチャープを置き, 先端・終端符丁を 100msec に短縮
+ * FDMA のチャネル選択を追加. 同じ部屋の複数の送信機がチャネルを分けて同時に送れる
  * 対向の受信プログラムは sonic10
  *
  */
 
 package jp.klab.sonic09;
 
+import jp.klab.sonicmodem.ChannelPlan;
+import jp.klab.sonicmodem.ChirpPreamble;
+import jp.klab.sonicmodem.ConvFrameCodec;
+import jp.klab.sonicmodem.CpfskModulator;
+import jp.klab.sonicmodem.FrameCodec;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.Modulator;
+import jp.klab.sonicmodem.OfdmConfig;
+import jp.klab.sonicmodem.OfdmModulator;
+import jp.klab.sonicmodem.RsFrameCodec;
+import jp.klab.sonicmodem.StreamTransmitter;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.AudioManager;
@@ -20,63 +38,59 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.RadioGroup;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.ToggleButton;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
-import java.util.zip.CRC32;
+import java.nio.ShortBuffer;
 
 public class MainActivity extends AppCompatActivity
         implements Runnable, View.OnClickListener,
-        Switch.OnCheckedChangeListener, Handler.Callback {
+        Switch.OnCheckedChangeListener, RadioGroup.OnCheckedChangeListener,
+        AdapterView.OnItemSelectedListener, Handler.Callback {
     private static final String TAG = "SNC";
 
-    private static final int SAMPLE_RATE = 44100;
-    private static final float SEC_PER_SAMPLEPOINT = 1.0f / SAMPLE_RATE;
-    private static final int FREQ_BASE_LOW = 500;
-    private static final int FREQ_BASE_HIGH = 14000;
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int FREQ_BASE_LOW = ModemConfig.FREQ_BASE_LOW;
+    private static final int FREQ_BASE_HIGH = ModemConfig.FREQ_BASE_HIGH;
     private static final int AMP_SMALL = 5000;
     private static final int AMP_LARGE = 28000;
-
-    private static final int ELMS_1SEC = SAMPLE_RATE;
-    private static final int ELMS_UNITSEC = SAMPLE_RATE/10;
-    private static final int ELMS_MAX = 256;
+    private static final int RAMP_RATIO = 10; // シンボル両端のランプ長 (シンボル長に対する 1/n)
+    private static final int FEC_PARITY = 16; // 誤り訂正用のパリティ長. 符号語あたり 8 バイトまで訂正
+    private static final int FEC_DEPTH = 2; // インターリーブ深さ. 連続 16 シンボルまでの誤りを訂正
+    private static final ChannelPlan CHANNEL_PLAN = new ChannelPlan(); // 受信側 (sonic10) と同じ割り当て
 
     private static final int MSG_PLAY_START   = 120;
     private static final int MSG_PLAY_END     = 130;
 
-    private int FREQ_STEP = 10;
-    private int AMP;
-    private int FREQ_BASE;
-    private int FREQ_OUT;
-    private int FREQ_IN;
-
     private Handler mHandler;
     private AudioTrack mAudioTrack = null;
     private ToggleButton mButton01;
     private EditText mEditText01;
     private Switch mSwitch01;
+    private Switch mSwitch02;
+    private Switch mSwitch03;
+    private Switch mSwitch04;
+    private RadioGroup mRadioGroup01;
+    private RadioGroup mRadioGroup02;
+    private Spinner mSpinner01;
 
-    private short mSigIn[] = new short[SAMPLE_RATE];
-    private short mSigOut[] = new short[SAMPLE_RATE];
-    private short mSignals[][] = new short[ELMS_MAX][ELMS_UNITSEC];
+    private ShortBuffer mPlayBuf;
+    private short mTailSilence[]; // 終端符丁の後に書く無音. AudioTrack のバッファ長分
+    private Modulator mModulator;
+    private FrameCodec mCodec;
+    private StreamTransmitter mTransmitter;
+    private boolean mStreaming; // 誤り訂正なしならストリーミング形式で発信する
     private String mText;
 
-    // サイン波データを生成
-    private void createSineWave(short[] buf, int freq, int amplitude, boolean doClear) {
-        if (doClear) {
-            Arrays.fill(buf, (short) 0);
-        }
-        for (int i = 0; i < buf.length; i++) {
-            float currentSec = i * SEC_PER_SAMPLEPOINT; // 現在位置の経過秒数
-            double val = amplitude * Math.sin(2.0 * Math.PI * freq * currentSec);
-            buf[i] += (short)val;
-        }
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -90,11 +104,33 @@ public class MainActivity extends AppCompatActivity
         mEditText01 = (EditText)findViewById(R.id.editText01);
         mSwitch01 = (Switch)findViewById(R.id.switch01);
         mSwitch01.setOnCheckedChangeListener(this);
+        mSwitch02 = (Switch)findViewById(R.id.switch02);
+        mSwitch02.setOnCheckedChangeListener(this);
+        mSwitch03 = (Switch)findViewById(R.id.switch03);
+        mSwitch03.setOnCheckedChangeListener(this);
+        mSwitch04 = (Switch)findViewById(R.id.switch04);
+        mSwitch04.setOnCheckedChangeListener(this);
+        mRadioGroup01 = (RadioGroup)findViewById(R.id.radioGroup01);
+        mRadioGroup01.setOnCheckedChangeListener(this);
+        mRadioGroup02 = (RadioGroup)findViewById(R.id.radioGroup02);
+        mRadioGroup02.setOnCheckedChangeListener(this);
+        // 先頭はチャネルを使わない (帯域全体を使う) 設定
+        String channels[] = new String[CHANNEL_PLAN.getChannelCount() + 1];
+        channels[0] = "No channel";
+        for (int i = 1; i < channels.length; i++) {
+            channels[i] = "CH" + i + " (" + CHANNEL_PLAN.getFreqBase(i - 1) + "Hz)";
+        }
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
+                android.R.layout.simple_spinner_item, channels);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mSpinner01 = (Spinner)findViewById(R.id.spinner01);
+        mSpinner01.setAdapter(adapter);
+        mSpinner01.setOnItemSelectedListener(this);
 
         int bufferSizeInBytes = AudioRecord.getMinBufferSize(SAMPLE_RATE,
                                         AudioFormat.CHANNEL_IN_MONO,
                                         AudioFormat.ENCODING_PCM_16BIT);
-        setParams(false);
+        setParams();
 
         mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
                                         SAMPLE_RATE,
@@ -102,6 +138,7 @@ public class MainActivity extends AppCompatActivity
                                         AudioFormat.ENCODING_PCM_16BIT,
                                         bufferSizeInBytes,
                                         AudioTrack.MODE_STREAM);
+        mTailSilence = new short[bufferSizeInBytes / 2];
     }
 
     @Override
@@ -130,6 +167,9 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onClick(View v) {
+        if (mTransmitter != null) {
+            mTransmitter.cancel();
+        }
         if (mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_STOPPED) {
             mAudioTrack.stop();
             mAudioTrack.flush();
@@ -145,7 +185,21 @@ public class MainActivity extends AppCompatActivity
     }
     @Override
     public void onCheckedChanged(CompoundButton b, boolean isChecked) {
-        setParams(isChecked);
+        setParams();
+    }
+
+    @Override
+    public void onCheckedChanged(RadioGroup group, int checkedId) {
+        setParams();
+    }
+
+    @Override
+    public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        setParams();
+    }
+
+    @Override
+    public void onNothingSelected(AdapterView<?> parent) {
     }
 
     @Override
@@ -171,47 +225,118 @@ public class MainActivity extends AppCompatActivity
         } catch (UnsupportedEncodingException e) {
         }
         mAudioTrack.play();
-        mAudioTrack.write(mSigIn, 0, ELMS_1SEC); // 先端符丁
-        // データ本体の CRC32 を計算して発信
-        CRC32 crc = new CRC32();
-        crc.reset();
-        crc.update(strByte, 0, strByte.length);
-        long crcVal = crc.getValue();
-        //Log.d(TAG, "crc=" + Long.toHexString(crcVal));
-        byte crcData[] = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            crcData[i] = (byte)(crcVal >> (24-i*8));
-            valueToWave((short) (crcData[i] & 0xFF));
-        }
-        // データ本体
-        for (int i = 0; i < strByte.length; i++) {
-            valueToWave(strByte[i]);
-        }
-        mAudioTrack.write(mSigOut, 0, ELMS_1SEC); // 終端符丁
+        if (mStreaming) {
+            // 入力を読みながらフレームに区切り, 合成と再生を重ねて発信する
+            try {
+                mTransmitter.send(new ByteArrayInputStream(strByte));
+            } catch (IOException e) {
+                Log.d(TAG, "send failed: " + e);
+            }
+        } else {
+            // 先端符丁, ヘッダ, CRC32 とデータ本体の符号語列, 終端符丁の順に発信
+            int symbols[] = mCodec.encode(strByte);
+            for (int i = 0; i < symbols.length; ) {
+                i += valueToWave(symbols, i);
+            }
+        }
 
+        // 終端符丁を再生し終えるまでバッファを無音で押し出す
+        // (stop 後の flush は再生していない分を捨てるため, 100msec の終端符丁が欠ける)
+        mAudioTrack.write(mTailSilence, 0, mTailSilence.length);
         mAudioTrack.stop();
         mAudioTrack.flush();
         mHandler.sendEmptyMessage(MSG_PLAY_END);
     }
 
-    // 指定されたバイト値を音声信号に置き換えて再生する
-    private void valueToWave(short val) {
-        //Log.d(TAG, "val=" + val);
-        mAudioTrack.write(mSignals[val], 0, ELMS_UNITSEC);
+    // symbols[off] 以降のシンボルを 1 シンボル時間分の音声信号に置き換えて再生する
+    // 消費したシンボル数を返す
+    private int valueToWave(int[] symbols, int off) {
+        //Log.d(TAG, "val=" + symbols[off]);
+        mPlayBuf.clear();
+        int count = mModulator.modulate(symbols, off, mPlayBuf);
+        mAudioTrack.write(mPlayBuf.array(), 0, mPlayBuf.position());
+        return count;
     }
 
-    private void setParams(boolean useUltrasonic) {
-        AMP = (useUltrasonic) ? AMP_LARGE : AMP_SMALL;
-        FREQ_BASE = (useUltrasonic) ? FREQ_BASE_HIGH : FREQ_BASE_LOW;
-        FREQ_OUT = FREQ_BASE - 100;
-        FREQ_IN = FREQ_OUT + 20;
-        // 先端・終端符丁の信号データを生成
-        createSineWave(mSigIn, FREQ_IN, AMP, true);
-        createSineWave(mSigOut, FREQ_OUT, AMP, true);
-        // 256種類の信号データを生成
-        for (int i = 0; i < ELMS_MAX; i++) {
-            createSineWave(mSignals[i], (short) (FREQ_BASE + FREQ_STEP * i), AMP, true);
+    // StreamTransmitter の書き出し先. 再生が追いつくまで待つ
+    private final StreamTransmitter.PcmWriter mPcmWriter = new StreamTransmitter.PcmWriter() {
+        @Override
+        public void write(short[] pcm, int off, int len) {
+            mAudioTrack.write(pcm, off, len);
         }
+    };
 
+    private void setParams() {
+        boolean useUltrasonic = mSwitch01.isChecked();
+        int amp = (useUltrasonic) ? AMP_LARGE : AMP_SMALL;
+        int freqBase = (useUltrasonic) ? FREQ_BASE_HIGH : FREQ_BASE_LOW;
+        int tones;
+        switch (mRadioGroup01.getCheckedRadioButtonId()) {
+            case R.id.radioTones2:
+                tones = 2;
+                break;
+            case R.id.radioTones4:
+                tones = 4;
+                break;
+            case R.id.radioTones8:
+                tones = 8;
+                break;
+            default:
+                tones = 1;
+                break;
+        }
+        int symbolMs;
+        switch (mRadioGroup02.getCheckedRadioButtonId()) {
+            case R.id.radioRate50:
+                symbolMs = 50;
+                break;
+            case R.id.radioRate20:
+                symbolMs = 20;
+                break;
+            default:
+                symbolMs = 100;
+                break;
+        }
+        int channel = mSpinner01.getSelectedItemPosition() - 1; // 負ならチャネルを使わない
+        if (channel >= 0) {
+            // チャネルの帯域に収まるよう単一波・100msec とし, OFDM は使わない
+            freqBase = CHANNEL_PLAN.getFreqBase(channel);
+            amp = (freqBase >= FREQ_BASE_HIGH) ? AMP_LARGE : AMP_SMALL;
+            tones = ChannelPlan.TONES;
+            symbolMs = ChannelPlan.SYMBOL_MS;
+        }
+        boolean ofdm = mSwitch02.isChecked() && channel < 0;
+        // 帯域がナイキスト周波数を超える場合は既定のシンボル長に戻し, 同時送信数を減らす
+        if (ModemConfig.getMaxTones(freqBase, symbolMs) == 0) {
+            symbolMs = ModemConfig.SYMBOL_MS_DEFAULT;
+        }
+        tones = Math.min(tones, ModemConfig.getMaxTones(freqBase, symbolMs));
+        Log.d(TAG, "freqBase=" + freqBase + " tones=" + tones + " symbolMs=" + symbolMs);
+        // 畳み込み符号化モードはレートバイトで示すため OFDM モードでは使えない
+        boolean coded = mSwitch04.isChecked() && !ofdm;
+        if (ofdm) {
+            // OFDM モードでは同時送信数の指定は使わない
+            mModulator = new OfdmModulator(new OfdmConfig(new ModemConfig(freqBase, amp)));
+        } else {
+            // 位相連続・両端ランプ付きで逐次生成
+            // 受信側はチャープの相関でフレームの先頭を求めるため 1 秒の符丁は送らない
+            ModemConfig config = new ModemConfig(freqBase, amp, tones, symbolMs, coded);
+            mModulator = new CpfskModulator(config, config.getUnitSize() / RAMP_RATIO,
+                    new ChirpPreamble(freqBase, amp));
+        }
+        if (coded) {
+            // 受信側で軟判定 Viterbi 復号する. RS 符号の指定は使わない
+            mCodec = new ConvFrameCodec();
+        } else if (mSwitch03.isChecked()) {
+            // 誤り訂正の有無, インターリーブ深さは受信側がヘッダで判定する
+            mCodec = new RsFrameCodec(FEC_PARITY, FEC_DEPTH);
+        } else {
+            mCodec = new RsFrameCodec(0);
+        }
+        // 誤り訂正なしの単一波・多重波モードはペイロードの後に CRC32 を置く形式で逐次発信する
+        mStreaming = !coded && !ofdm && !mSwitch03.isChecked();
+        mTransmitter = (mStreaming) ? new StreamTransmitter(mModulator, tones, mPcmWriter) : null;
+        // OFDM モードの先端符丁は基準シンボルを含むため 1 秒より長い
+        mPlayBuf = ShortBuffer.allocate(mModulator.getSymbolLength(ModemConfig.SYMBOL_IN));
     }
 }
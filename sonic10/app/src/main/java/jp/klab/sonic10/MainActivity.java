@@ -3,14 +3,25 @@
  *
  * 端末のマイクから集音した信号をバイトデータに変換する
  * CRC32による誤り検出, 超音波モードへ対応
- * FFT 処理に JTransforms ライブラリを利用
+ * 変復調・フレーム処理に sonicmodem を利用 (FFT 処理は JTransforms)
+ * 多重トーンモード, OFDM モード対応 (先端符丁の周波数から判定)
+ * シンボル長は先端符丁直後のレートバイトから判定
+ * 先端のチャープを相互相関で検出し, 以降のシンボル境界をサンプル単位で揃える
+ * 低音域と超音波の両方の帯域を同時に受信する (MultiBandReceiver)
+ * Channels を選ぶと FDMA の全チャネルを同時に受信する (sonic09 のチャネル選択に対応)
  * 対向の送信プログラムは sonic09
  *
  */
 
 package jp.klab.sonic10;
 
-import org.jtransforms.fft.DoubleFFT_1D;
+import jp.klab.sonicmodem.BandReceiver;
+import jp.klab.sonicmodem.ChannelPlan;
+import jp.klab.sonicmodem.FrameCodec;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.MultiBandReceiver;
+import jp.klab.sonicmodem.NoiseGate;
+import jp.klab.sonicmodem.ShortRingBuffer;
 import android.graphics.Color;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -28,20 +39,18 @@ import android.widget.Switch;
 import android.widget.TextView;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.zip.CRC32;
 
 public class MainActivity extends AppCompatActivity
-        implements Runnable, View.OnClickListener,
-            Switch.OnCheckedChangeListener, Handler.Callback {
+        implements Runnable, View.OnClickListener, Switch.OnCheckedChangeListener,
+            Handler.Callback, BandReceiver.Listener {
     private static final String TAG = "SNC";
 
-    private static final int SAMPLE_RATE = 44100;
-    private static final short THRESHOLD_SILENCE = 0x00ff;
-    private static final int FREQ_BASE_LOW = 500;
-    private static final int FREQ_BASE_HIGH = 14000;
-    private static final int FREQ_STEP = 10;
-    private static final int UNITSIZE = SAMPLE_RATE/10; // 100msec分
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int FREQ_BASE_LOW = ModemConfig.FREQ_BASE_LOW;
+    private static final int FREQ_BASE_HIGH = ModemConfig.FREQ_BASE_HIGH;
+    private static final int RING_SIZE_MIN = SAMPLE_RATE; // 集音スレッドと復調スレッドの間のバッファ (1 秒分以上)
+    private static final int RING_WAIT_MS = 500;
+    private static final ChannelPlan CHANNEL_PLAN = new ChannelPlan(); // 送信側 (sonic09) と同じ割り当て
 
     private static final int MSG_RECORD_START = 100;
     private static final int MSG_RECORD_END   = 110;
@@ -49,11 +58,6 @@ public class MainActivity extends AppCompatActivity
     private static final int MSG_RECV_OK      = 200;
     private static final int MSG_RECV_NG      = 210;
 
-    private int FREQ_BASE = FREQ_BASE_LOW;
-    private int FREQ_OUT = FREQ_BASE - 100;
-    private int FREQ_IN = FREQ_OUT + 20;
-    private int FREQ_MAX = FREQ_BASE + FREQ_STEP * 255;
-
     private Handler mHandler;
     private AudioRecord mAudioRecord = null;
 
@@ -67,14 +71,12 @@ public class MainActivity extends AppCompatActivity
     private int mBufferSizeInShort;
 
     private short mRecordBuf[];
-    private short mTestBuf[];
-    private DoubleFFT_1D mFFT;
-    private double mFFTBuffer[];
-    private int mFFTSize;
-    private byte mValueCount = -1;
-    private long mCrc32Val = 0;
-    private String mRecvStr;
-    private ArrayList<Byte> mDataArrayList = new ArrayList<Byte>();
+    private short mCaptureBuf[];
+    private ShortRingBuffer mRing;
+    private NoiseGate mGate = new NoiseGate(SAMPLE_RATE); // 受信待ちの間の無音判定
+    // 低音域と超音波の帯域 (または FDMA のチャネル) ごとに検出・復調・復号し,
+    // 帯域ごとの処理は受信スレッドとワーカースレッドで分担して並行に行う
+    private MultiBandReceiver mReceiver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,6 +93,7 @@ public class MainActivity extends AppCompatActivity
         mTextView02.setOnClickListener(this);
         mTextView03 = (TextView)findViewById(R.id.textView03);
         mTextView03.setTextColor(Color.RED);
+        // 低音域と超音波は同時に受信するため, スイッチは FDMA のチャネルの受信に切り替える
         mSwitch01 = (Switch)findViewById(R.id.switch01);
         mSwitch01.setOnCheckedChangeListener(this);
 
@@ -101,12 +104,10 @@ public class MainActivity extends AppCompatActivity
         mBufferSizeInShort = bufferSizeInBytes / 2;
         // 集音用バッファ
         mRecordBuf = new short[mBufferSizeInShort];
+        mCaptureBuf = new short[mBufferSizeInShort];
+        mRing = ShortRingBuffer.withMinCapacity(Math.max(RING_SIZE_MIN, mBufferSizeInShort * 2));
 
-        // FFT 処理用
-        mTestBuf =  new short[UNITSIZE];
-        mFFTSize = UNITSIZE;
-        mFFT = new DoubleFFT_1D(mFFTSize);
-        mFFTBuffer = new double[mFFTSize];
+        setParams(false);
 
         mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
                                         SAMPLE_RATE,
@@ -137,6 +138,7 @@ public class MainActivity extends AppCompatActivity
             }
             mAudioRecord = null;
         }
+        mReceiver.shutdown();
     }
 
     @Override
@@ -159,10 +161,7 @@ public class MainActivity extends AppCompatActivity
     @Override
     public void onCheckedChanged(CompoundButton b, boolean isChecked) {
         if (b == (CompoundButton)mSwitch01) {
-            FREQ_BASE = (isChecked) ? FREQ_BASE_HIGH : FREQ_BASE_LOW;
-            FREQ_OUT = FREQ_BASE - 100;
-            FREQ_IN = FREQ_OUT + 20;
-            FREQ_MAX = FREQ_BASE + FREQ_STEP * 255;
+            setParams(isChecked);
         }
     }
 
@@ -192,10 +191,17 @@ public class MainActivity extends AppCompatActivity
                 mTextView03.setText("");
                 break;
             case MSG_RECV_OK:
-                mTextView03.setText("OK!");
+                if (msg.obj != null) {
+                    try {
+                        String s = new String((byte[])msg.obj, "UTF-8");
+                        mTextView02.setText(mTextView02.getText() + s);
+                    } catch (UnsupportedEncodingException e) {
+                    }
+                }
+                mTextView03.setText("OK! " + getBandName(msg.arg1, msg.arg2));
                 break;
             case MSG_RECV_NG:
-                mTextView03.setText("NG!");
+                mTextView03.setText("NG! " + getBandName(msg.arg1, msg.arg2));
                 break;
         }
         return true;
@@ -203,143 +209,93 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void run() {
-        int dataCount = 0;
         boolean bSilence = false;
         mHandler.sendEmptyMessage(MSG_RECORD_START);
-        // 集音開始
-        mAudioRecord.startRecording();
+        // 集音は専用のスレッドで行い, 復調が遅れても AudioRecord の読み出しを滞らせない
+        mRing.clear();
+        mGate.reset();
+        mReceiver.reset();
+        long overruns = mRing.getOverrunCount();
+        Thread capture = new Thread(mCapture);
+        capture.setPriority(Thread.MAX_PRIORITY);
+        capture.start();
         while (mInRecording && !mStop) {
-            // 音声データ読み込み
-            mAudioRecord.read(mRecordBuf, 0, mBufferSizeInShort);
-            bSilence = true;
-            for (int i = 0; i < mBufferSizeInShort; i++) {
-                short s = mRecordBuf[i];
-                if (s > THRESHOLD_SILENCE) {
-                    bSilence = false;
-                }
-            }
-            if (bSilence) { // 静寂
-                dataCount = 0;
+            // 集音スレッドから音声データを受け取る
+            if (!mRing.await(mBufferSizeInShort, RING_WAIT_MS)) {
                 continue;
             }
-            int copyLength = 0;
-            // データを mTestBuf へ順次アペンド
-            if (dataCount < UNITSIZE) {//mTestBuf.length) {
-                // mTestBuf の残領域に応じてコピーするサイズを決定
-                int remain = UNITSIZE - dataCount;
-                if (remain > mBufferSizeInShort) {
-                    copyLength = mBufferSizeInShort;
-                } else {
-                    copyLength = remain;
-                }
-                System.arraycopy(mRecordBuf, 0, mTestBuf, dataCount, copyLength);
-                dataCount += copyLength;
-            }
-            if (dataCount >= UNITSIZE) {//mTestBuf.length) {
-                // 100ms 分溜まったら FFT にかける
-                int freq = doFFT(mTestBuf);
-                if (mValueCount < 0) {
-                    // データ終了
-                    if (freq == FREQ_OUT && mCrc32Val != 0) {
-                        byte check [] = new byte[mDataArrayList.size()];
-                        for (int i = 0; i < check.length; i++) {
-                            check[i] = mDataArrayList.get(i);
-                        }
-                        CRC32 crc = new CRC32();
-                        crc.reset();
-                        crc.update(check, 0, check.length);
-                        long crcVal = crc.getValue();
-                        Log.d(TAG, "crc check=" +  Long.toHexString(crcVal));
-                        if (crcVal == mCrc32Val) {
-                            mHandler.sendEmptyMessage(MSG_RECV_OK);
-                        } else {
-                            mHandler.sendEmptyMessage(MSG_RECV_NG);
-                        }
-                        mCrc32Val = 0;
-                    }
-                }
-                // 待ってた範囲の周波数かチェック
-                if (freq >= FREQ_BASE && freq <= FREQ_MAX) {
-                    int val = (int) ((freq - FREQ_BASE) / FREQ_STEP);
-                    if (val >= 0 && val <= 255) {
-                        if (mValueCount > 4) {
-                            mDataArrayList.add((byte)val);
-                            Message msg = new Message();
-                            msg.what = MSG_DATA_RECV;
-                            msg.arg1 = val;
-                            mHandler.sendMessage(msg);
-                        }
-                    } else {
-                        freq = -1;
-                    }
-                } else {
-                    freq = -1;
-                }
-                dataCount = 0;
-                if (freq == -1) {
-                    continue;
-                }
-                // mRecordBuf の途中までを mTestBuf へコピーして FFT した場合は
-                // mRecordBuf の残データを mTestBuf 先頭へコピーした上で継続
-                if (copyLength < mBufferSizeInShort) {
-                    int startPos = copyLength;
-                    copyLength = mBufferSizeInShort - copyLength;
-                    System.arraycopy(mRecordBuf, startPos, mTestBuf, 0, copyLength);
-                    dataCount += copyLength;
-                }
+            mRing.read(mRecordBuf, 0, mBufferSizeInShort);
+            // 雑音レベルに対し十分大きな音がなければ受信待ちの間は復調処理を省く
+            // 受信中はフレームの途中の小さな音も落とさないよう判定を使わない
+            bSilence = !mGate.process(mRecordBuf, 0, mBufferSizeInShort);
+            // 全帯域の処理を終えてから戻るため mRecordBuf は次の読み出しに使える
+            try {
+                mReceiver.process(mRecordBuf, 0, mBufferSizeInShort,
+                        bSilence && !mReceiver.isReceiving());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mInRecording = false;
             }
         }
         // 集音終了
-        mAudioRecord.stop();
+        try {
+            capture.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mRing.getOverrunCount() > overruns) {
+            Log.d(TAG, "ring overrun=" + (mRing.getOverrunCount() - overruns) +
+                    " dropped=" + mRing.getDroppedCount());
+        }
         mHandler.sendEmptyMessage(MSG_RECORD_END);
     }
 
-    private int doFFT(short[] data) {
-        for (int i = 0; i < mFFTSize; i++) {
-            mFFTBuffer[i] = (double)data[i];
-        }
-        // FFT 実行
-        mFFT.realForward(mFFTBuffer);
-
-        // 処理結果の複素数配列からピーク周波数成分の要素番号を得る
-        double maxAmp = 0;
-        int index = 0;
-        for (int i = 0; i < mFFTSize/2; i++) {
-            double a = mFFTBuffer[i*2]; // 実部
-            double b = mFFTBuffer[i*2 + 1]; // 虚部
-            // a+ib の絶対値 √ a^2 + b^2 = r が振幅値
-            double r = Math.sqrt(a*a + b*b);
-            if (r > maxAmp) {
-                maxAmp = r;
-                index = i;
+    // 集音スレッド: AudioRecord から読み出してリングバッファへ渡すだけにする
+    private final Runnable mCapture = new Runnable() {
+        @Override
+        public void run() {
+            mAudioRecord.startRecording();
+            while (mInRecording && !mStop) {
+                int n = mAudioRecord.read(mCaptureBuf, 0, mBufferSizeInShort);
+                if (n > 0) {
+                    mRing.write(mCaptureBuf, 0, n);
+                }
             }
+            mAudioRecord.stop();
         }
-        // ピーク周波数を求める
-        int freq = index * SAMPLE_RATE / mFFTSize;
-        byte val = (byte)((freq-FREQ_BASE)/FREQ_STEP);
+    };
 
-        if (freq == FREQ_IN) { // 先端符丁
-            mValueCount = 0;
-            mCrc32Val = 0;
-            if (!mDataArrayList.isEmpty()) {
-                mDataArrayList.clear();
-            }
-            return freq;
-        } else if (freq == FREQ_OUT) { // 終端符丁
-            mValueCount = -1;
-            return freq;
+    // 受信結果は受信スレッドかワーカースレッドから通知されるので Handler で UI スレッドへ渡す
+    @Override
+    public void onData(BandReceiver receiver, int data) {
+        // Message はプールから取り出し, 1 バイトごとに確保しない
+        mHandler.obtainMessage(MSG_DATA_RECV, data, 0).sendToTarget();
+    }
+
+    @Override
+    public void onFrame(BandReceiver receiver, int result, byte[] payload) {
+        // 誤り訂正・インターリーブありのフレームは復元後のペイロードをまとめて渡す
+        int what = (result == FrameCodec.RECV_OK) ? MSG_RECV_OK : MSG_RECV_NG;
+        mHandler.obtainMessage(what, receiver.getFreqBase(), receiver.getChannel(), payload).sendToTarget();
+    }
+
+    private static String getBandName(int freqBase, int channel) {
+        if (channel >= 0) {
+            return "(CH" + (channel + 1) + ")";
         }
+        return (freqBase == FREQ_BASE_HIGH) ? "(Ultrasonic)" : "(Low)";
+    }
 
-        // 先端符丁直後の 4バイトは32ビットCRC
-        if (mValueCount >= 0 &&  mValueCount < 4) {
-            mCrc32Val |=  (val & 0xFF);
-            if (mValueCount != 3) {
-                mCrc32Val <<= 8;
-            } else {
-                Log.d(TAG, "mCrc32Val=" + Long.toHexString(mCrc32Val));
-            }
+    private void setParams(boolean useChannels) {
+        if (mReceiver != null) {
+            mReceiver.shutdown();
+        }
+        if (useChannels) {
+            // チャープの検出は全チャネル分をまとめて行い, 受信中のチャネルの復調をワーカースレッドへ振り分ける
+            mReceiver = new MultiBandReceiver(CHANNEL_PLAN,
+                    Runtime.getRuntime().availableProcessors(), this);
+        } else {
+            mReceiver = new MultiBandReceiver(new int[] {FREQ_BASE_LOW, FREQ_BASE_HIGH}, this);
         }
-        mValueCount++;
-        return freq;
     }
 }
@@ -4,13 +4,29 @@
  *
  * サイン波音声信号による半二重式での双方向通信のしくみの試作
  * 二台の機器間で「しりとり」を行う
- * FFT 処理に JTransforms ライブラリを利用
+ * 単語は選択再送 ARQ で送り, 受信できなかったブロックのみを再送する
+ * 送受信の切り替えは終端符丁の途切れとガード時間で判定し, 集音スレッドから発信スレッドへ受け渡す
+ * Duplex では互いに別の帯域 (Ultrasonic の有無で選ぶ自分の発信帯域と, もう一方) を用い,
+ * 集音と発信を同時に行う全二重で通信する. 二台で Ultrasonic の設定を逆にしておく
+ * 変復調・フレーム処理に sonicmodem を利用 (FFT 処理は JTransforms)
+ * フレームの先端に 50msec のチャープを置き, 受信側は相互相関で検出してブロックの区切りを揃える
  *
  */
 
 package jp.klab.sonic11;
 
-import org.jtransforms.fft.DoubleFFT_1D;
+import jp.klab.sonicmodem.ChirpPreamble;
+import jp.klab.sonicmodem.CpfskModulator;
+import jp.klab.sonicmodem.Demodulator;
+import jp.klab.sonicmodem.GoertzelDemodulator;
+import jp.klab.sonicmodem.LinkStateMachine;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.Modulator;
+import jp.klab.sonicmodem.NoiseGate;
+import jp.klab.sonicmodem.PreambleDetector;
+import jp.klab.sonicmodem.RateAdaptiveDemodulator;
+import jp.klab.sonicmodem.SelectiveRepeatArq;
+import jp.klab.sonicmodem.ShortRingBuffer;
 import android.graphics.Color;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -30,43 +46,33 @@ import android.widget.Switch;
 import android.widget.TextView;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.zip.CRC32;
+import java.nio.ShortBuffer;
 
 public class MainActivity extends AppCompatActivity
         implements Runnable, View.OnClickListener,
             Switch.OnCheckedChangeListener, Handler.Callback {
     private static final String TAG = "SNC";
 
-    private static final int SAMPLE_RATE = 44100;
-    private static final float SEC_PER_SAMPLEPOINT = 1.0f / SAMPLE_RATE;
-    private static final short THRESHOLD_SILENCE = 0x00ff;
-    private static final int THRESHOLD_COUNT_SILENCE = 25; // 無音区間判定用
-    private static final int FREQ_BASE_LOW = 500;
-    private static final int FREQ_BASE_HIGH = 14000;
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int TURNAROUND_GUARD_MS = LinkStateMachine.GUARD_MS_DEFAULT; // 受信終了から発信までのガード時間
+    private static final int TURN_WAIT_MS = 500; // 発信スレッドが集音終了を確認する間隔
+    private static final int FREQ_BASE_LOW = ModemConfig.FREQ_BASE_LOW;
+    private static final int FREQ_BASE_HIGH = ModemConfig.FREQ_BASE_HIGH;
     private static final int AMP_SMALL = 28000;
     private static final int AMP_LARGE = 28000;
+    private static final int RAMP_RATIO = 10; // シンボル両端のランプ長 (シンボル長に対する 1/n)
+    private static final int ARQ_BLOCK_SIZE = 8; // 再送単位のブロック長
 
-    private static final int ELMS_1SEC = SAMPLE_RATE;
-    private static final int ELMS_UNITSEC = SAMPLE_RATE/10;
-    private static final int ELMS_MAX = 256;
-    private static final int FREQ_STEP = 10;
     private static final int UNITSIZE = SAMPLE_RATE/10; // 100msec分
+    private static final int RING_SIZE_MIN = SAMPLE_RATE; // 集音スレッドと復調スレッドの間のバッファ (1 秒分以上)
+    private static final int RING_WAIT_MS = 500;
 
     private static final int MSG_RECORD_START    = 100;
     private static final int MSG_RECORD_END      = 110;
-    private static final int MSG_DATA_RECV       = 130;
     private static final int MSG_DATA_SEND_START = 140;
     private static final int MSG_RECV_OK         = 200;
     private static final int MSG_RECV_NG         = 210;
 
-    private int AMP;
-    private int FREQ_BASE;
-    private int FREQ_OUT;
-    private int FREQ_IN;
-    private int FREQ_MAX = FREQ_BASE + FREQ_STEP * 255;
-
     private Handler mHandler;
     private AudioRecord mAudioRecord = null;
     private AudioTrack mAudioTrack = null;
@@ -77,39 +83,31 @@ public class MainActivity extends AppCompatActivity
     private TextView mTextView03;
     private TextView mTextView04;
     private Switch mSwitch01;
+    private Switch mSwitch02;
 
-    private short mSigIn[] = new short[SAMPLE_RATE];
-    private short mSigOut[] = new short[SAMPLE_RATE];
-    private short mSignals[][] = new short[ELMS_MAX][SAMPLE_RATE/10];
+    private ShortBuffer mPlayBuf;
+    private short mTailSilence[]; // 終端符丁の後に書く無音. AudioTrack のバッファ長分
 
     private boolean mInRecording = false;
     private boolean mStop = false;
     private int mBufferSizeInShort;
 
     private short mRecordBuf[];
+    private short mCaptureBuf[];
+    private ShortRingBuffer mRing;
     private short mTestBuf[];
-    private DoubleFFT_1D mFFT;
-    private double mFFTBuffer[];
-    private int mFFTSize;
-    private byte mValueCount = -1;
-    private long mCrc32Val = 0;
-    private ArrayList<Byte> mDataArrayList = new ArrayList<Byte>();
-    private int mLastFreq;
+    private Modulator mModulator;
+    private Demodulator mDemodulator;
+    private Demodulator mMarkerDemodulator;
+    private PreambleDetector mDetector;
+    private NoiseGate mGate = new NoiseGate(SAMPLE_RATE); // 受信待ちの間の無音判定
+    private boolean mAligned = false; // チャープで区切りを揃えた直後の先端符丁のブロックを溜めている
+    private SelectiveRepeatArq mArq = new SelectiveRepeatArq(ARQ_BLOCK_SIZE);
+    private int mSymbols[] = new int[1];
     private String mRecvWord = "";
     private String mSendWord = "";
-    private boolean mRecvOK;
-
-    // サイン波データを生成
-    private void createSineWave(short[] buf, int freq, int amplitude, boolean doClear) {
-        if (doClear) {
-            Arrays.fill(buf, (short) 0);
-        }
-        for (int i = 0; i < buf.length; i++) {
-            float currentSec = i * SEC_PER_SAMPLEPOINT; // 現在位置の経過秒数
-            double val = amplitude * Math.sin(2.0 * Math.PI * freq * currentSec);
-            buf[i] += (short)val;
-        }
-    }
+    private LinkStateMachine mLink;
+    private boolean mDuplex = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -131,6 +129,8 @@ public class MainActivity extends AppCompatActivity
         mTextView04 = (TextView)findViewById(R.id.textView04);
         mSwitch01 = (Switch)findViewById(R.id.switch01);
         mSwitch01.setOnCheckedChangeListener(this);
+        mSwitch02 = (Switch)findViewById(R.id.switch02);
+        mSwitch02.setOnCheckedChangeListener(this);
 
         int bufferSizeInBytes = AudioRecord.getMinBufferSize(SAMPLE_RATE,
                                         AudioFormat.CHANNEL_IN_MONO,
@@ -139,12 +139,11 @@ public class MainActivity extends AppCompatActivity
         mBufferSizeInShort = bufferSizeInBytes / 2;
         // 集音用バッファ
         mRecordBuf = new short[mBufferSizeInShort];
+        mCaptureBuf = new short[mBufferSizeInShort];
+        mRing = ShortRingBuffer.withMinCapacity(Math.max(RING_SIZE_MIN, mBufferSizeInShort * 2));
 
         // FFT 処理用
         mTestBuf = new short[UNITSIZE];
-        mFFTSize = UNITSIZE;
-        mFFT = new DoubleFFT_1D(mFFTSize);
-        mFFTBuffer = new double[mFFTSize];
 
         mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
                                         SAMPLE_RATE,
@@ -158,8 +157,9 @@ public class MainActivity extends AppCompatActivity
                 AudioFormat.ENCODING_PCM_16BIT,
                 bufferSizeInBytes,
                 AudioTrack.MODE_STREAM);
+        mTailSilence = new short[mBufferSizeInShort];
 
-        setParams(false);
+        setParams(false, false);
     }
 
     @Override
@@ -200,32 +200,25 @@ public class MainActivity extends AppCompatActivity
             // 集音開始 or 終了
             if (!mInRecording) {
                 mInRecording = true;
+                mLink.reset();
                 new Thread(this).start();
+                new Thread(mTransmitter).start();
             } else {
                 mInRecording = false;
             }
         } else if (v == (View)mTextView01) {
             // しりとりの開始・再開
-            // すでに集音中なら自分で自分の音を拾わないように
-            // スレッドを一旦終了
-            boolean running = mInRecording;
+            // ランダムに選んだ英単語を音で発信
             if (mInRecording) {
-                mStop = true;
-                try {
-                    while (mInRecording) {
-                        Thread.sleep(100);
-                    }
-                } catch (InterruptedException e) {
+                // 集音中なら発信スレッドに任せる
+                // 受信中なら相手のフレームが終わった後の自分の番に送られる
+                synchronized (mArq) {
+                    sendWord(words.getWord());
                 }
-            }
-            // ランダムに選んだ英単語を音で発信
-            mSendWord = words.getWord();
-            doSendWord(mSendWord);
-            if (running) {
-                // 集音スレッド再稼働
-                mInRecording = true;
-                mStop = false;
-                new Thread(this).start();
+                mLink.requestTurn();
+            } else {
+                sendWord(words.getWord());
+                doSendFrames(mArq.createDataFrame());
             }
         } else if (v == (View)mTextView02) {
             mTextView02.setText("");
@@ -236,8 +229,8 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onCheckedChanged(CompoundButton b, boolean isChecked) {
-        if (b == (CompoundButton)mSwitch01) {
-            setParams(isChecked);
+        if (b == (CompoundButton)mSwitch01 || b == (CompoundButton)mSwitch02) {
+            setParams(mSwitch01.isChecked(), mSwitch02.isChecked());
         }
     }
 
@@ -248,32 +241,23 @@ public class MainActivity extends AppCompatActivity
                 Log.d(TAG, "MSG_RECORD_START");
                 mButton01.setText("STOP");
                 mSwitch01.setEnabled(false);
+                mSwitch02.setEnabled(false);
                 break;
             case MSG_RECORD_END:
                 Log.d(TAG, "MSG_RECORD_END");
                 mButton01.setText("START");
                 mSwitch01.setEnabled(true);
-                break;
-            case MSG_DATA_RECV:
-                //Log.d(TAG, "MSG_DATA_RECV");
-                if (mRecvWord.length() <= 0) {
-                    mTextView02.setText("RECV: ");
-                }
-                byte[] ch = new byte[] {(byte)msg.arg1};
-                try {
-                    // 受信データを表示
-                    String s = new String(ch, "UTF-8");
-                    mRecvWord += s;
-                    s = mTextView02.getText() + s;
-                    mTextView02.setText(s);
-                } catch (UnsupportedEncodingException e) {
-                }
-                mTextView03.setText("");
+                mSwitch02.setEnabled(true);
                 break;
             case MSG_DATA_SEND_START:
-                mTextView04.setText("SEND: " + mSendWord);
+                // 再送なら残りのブロック数を添える
+                mTextView04.setText("SEND: " + mSendWord +
+                        ((msg.arg1 > 0) ? " (" + msg.arg1 + ")" : ""));
                 break;
             case MSG_RECV_OK:
+                if (msg.obj != null) {
+                    mTextView02.setText("RECV: " + msg.obj);
+                }
                 mTextView03.setText("OK!");
                 break;
             case MSG_RECV_NG:
@@ -287,223 +271,241 @@ public class MainActivity extends AppCompatActivity
     public void run() {
         int dataCount = 0;
         boolean bSilence = false;
-        long countSilence = 0;
         mHandler.sendEmptyMessage(MSG_RECORD_START);
-        // 集音開始
-        mAudioRecord.startRecording();
+        // 集音は専用のスレッドで行い, 復調が遅れても AudioRecord の読み出しを滞らせない
+        mRing.clear();
+        mGate.reset();
+        long overruns = mRing.getOverrunCount();
+        Thread capture = new Thread(mCapture);
+        capture.setPriority(Thread.MAX_PRIORITY);
+        capture.start();
         while (mInRecording && !mStop) {
-            // 音声信号読み込み
-            mAudioRecord.read(mRecordBuf, 0, mBufferSizeInShort);
-            bSilence = true;
-            for (int i = 0; i < mBufferSizeInShort; i++) {
-                short s = mRecordBuf[i];
-                if (s > THRESHOLD_SILENCE) {
-                    bSilence = false;
-                    break;
-                }
+            // 集音スレッドから音声信号を受け取る
+            if (!mRing.await(mBufferSizeInShort, RING_WAIT_MS)) {
+                continue;
             }
-            if (bSilence) { // 静寂
+            mRing.read(mRecordBuf, 0, mBufferSizeInShort);
+            // 雑音レベルに対し十分大きな音があるか
+            bSilence = !mGate.process(mRecordBuf, 0, mBufferSizeInShort);
+            // 半二重で発信中は自分の音を拾うため破棄し, 経過時間のみ送受信の切り替えの判定に与える
+            // 受信待ちで静寂の間も同様とし, 復調処理を省く
+            if (mLink.getState() == LinkStateMachine.STATE_TRANSMITTING ||
+                    (bSilence && !mArq.isReceiving() && !mAligned)) {
                 dataCount = 0;
-                countSilence++;
-            } else {
-                countSilence = 0;
-            }
-            // 単語を受信ずみかつ一定期間以上静寂が続いたら送信にまわる
-            if (countSilence > THRESHOLD_COUNT_SILENCE &&
-                    mLastFreq == FREQ_OUT && mRecvWord.length() > 0) {
-                if (mRecvOK) { // 直前の受信・復号結果が正常だった
-                    if (!mRecvWord.equals("?")) {
-                        // 受信した単語のしりとり語を取得
-                        mSendWord = words.getWord(mRecvWord);
-                    }
-                } else {
-                    // 再送要求
-                    mSendWord = "?";
-                }
-                Log.d(TAG, "mSendWord=" + mSendWord);
-                // 単語を発信
-                doSendWord(mSendWord);
+                mDetector.reset();
+                mAligned = false;
+                mLink.onBlock(ModemConfig.SYMBOL_NONE, mBufferSizeInShort);
                 continue;
             }
 
+            int startPos = 0;
+            // 受信待ちの間はチャープを相互相関で探し, 検出したらその直後 (100msec の先端符丁の先頭) に
+            // ブロックの区切りを揃える. 検出前に溜めていた分は捨てる
+            if (!mArq.isReceiving() && !mAligned) {
+                int used = mDetector.process(mRecordBuf, 0, mBufferSizeInShort);
+                if (mDetector.getBoundary() >= 0) {
+                    dataCount = mDetector.copySinceBoundary(mTestBuf);
+                    mDetector.reset();
+                    mAligned = true;
+                    startPos = used;
+                }
+            }
             int copyLength = 0;
             // データを mTestBuf へ順次アペンド
             if (dataCount < UNITSIZE) {
                 // mTestBuf の残領域に応じてコピーするサイズを決定
                 int remain = UNITSIZE - dataCount;
-                if (remain > mBufferSizeInShort) {
-                    copyLength = mBufferSizeInShort;
+                if (remain > mBufferSizeInShort - startPos) {
+                    copyLength = mBufferSizeInShort - startPos;
                 } else {
                     copyLength = remain;
                 }
-                System.arraycopy(mRecordBuf, 0, mTestBuf, dataCount, copyLength);
+                System.arraycopy(mRecordBuf, startPos, mTestBuf, dataCount, copyLength);
                 dataCount += copyLength;
             }
             if (dataCount >= UNITSIZE) {
                 // 100ms 分溜まったら FFT にかける
-                int freq = doFFT(mTestBuf);
-                mLastFreq = freq;
-                if (mValueCount < 0) {
-                    // データ終了
-                    if (freq == FREQ_OUT && mCrc32Val != 0) {
-                        byte check [] = new byte[mDataArrayList.size()];
-                        for (int i = 0; i < check.length; i++) {
-                            check[i] = mDataArrayList.get(i);
-                        }
-                        //Log.d(TAG, "mRecvWord=" + mRecvWord);
-                        CRC32 crc = new CRC32();
-                        crc.reset();
-                        crc.update(check, 0, check.length);
-                        long crcVal = crc.getValue();
-                        //Log.d(TAG, "crc check=" +  Long.toHexString(crcVal));
-                        mRecvOK = false;
-                        if (crcVal == mCrc32Val) {
-                            mRecvOK = true;
-                            mHandler.sendEmptyMessage(MSG_RECV_OK);
-                        } else {
-                            mHandler.sendEmptyMessage(MSG_RECV_NG);
-                        }
-                        mCrc32Val = 0;
-                    }
+                // 受信待ちの間は先端・終端符丁のみを Goertzel で判定し FFT を省略
+                // 全二重では自分の帯域を除いて判定するため常に FFT
+                int count = (mArq.isReceiving() || mDuplex) ?
+                        mDemodulator.demodulate(mTestBuf, 0, mSymbols) :
+                        mMarkerDemodulator.demodulate(mTestBuf, 0, mSymbols);
+                int symbol = (count > 0) ? mSymbols[0] : ModemConfig.SYMBOL_NONE;
+                mLink.onBlock(symbol, UNITSIZE);
+                int result;
+                synchronized (mArq) {
+                    result = mArq.decode(symbol);
                 }
-                // 待ってた範囲の周波数かチェック
-                if (freq >= FREQ_BASE && freq <= FREQ_MAX) {
-                    int val = (int) ((freq - FREQ_BASE) / FREQ_STEP);
-                    if (val >= 0 && val <= 255) {
-                        if (mValueCount > 4) {
-                            mDataArrayList.add((byte)val);
-                            Message msg = new Message();
-                            msg.what = MSG_DATA_RECV;
-                            msg.arg1 = val;
-                            mHandler.sendMessage(msg);
+                switch (result) {
+                    case SelectiveRepeatArq.RECV_START:
+                        mDemodulator.reset();
+                        break;
+                    case SelectiveRepeatArq.RECV_DATA:
+                        if (mArq.isNewlyCompleted()) {
+                            // 単語が揃ったら表示し, しりとり語を次の送信として用意
+                            try {
+                                mRecvWord = new String(mArq.getMessage(), "UTF-8");
+                            } catch (UnsupportedEncodingException e) {
+                            }
+                            mHandler.obtainMessage(MSG_RECV_OK, mRecvWord).sendToTarget();
+                            synchronized (mArq) {
+                                sendWord(words.getWord(mRecvWord));
+                            }
+                        } else if (!mArq.isMessageComplete()) {
+                            // 欠けたブロックは ACK で再送を求める
+                            mHandler.sendEmptyMessage(MSG_RECV_NG);
                         }
-                    } else {
-                        freq = -1;
-                    }
-                } else {
-                    freq = -1;
+                        break;
+                    case SelectiveRepeatArq.RECV_NG:
+                        mHandler.sendEmptyMessage(MSG_RECV_NG);
+                        break;
                 }
                 dataCount = 0;
-                if (freq == -1) {
+                // 符丁および受信待ち中の雑音なら残データは破棄
+                // (受信中のレートバイトは判定結果なしとなるが残データは次のシンボルに回す)
+                // チャープで揃えた先端符丁の直後はレートバイトが続くため残データを回す
+                boolean aligned = mAligned && symbol == ModemConfig.SYMBOL_IN;
+                mAligned = false;
+                if (!aligned &&
+                        (symbol >= ModemConfig.ELMS_MAX || (count == 0 && !mArq.isReceiving()))) {
                     continue;
                 }
                 // mRecordBuf の途中までを mTestBuf へコピーして FFT した場合は
                 // mRecordBuf の残データを mTestBuf 先頭へコピーした上で継続
-                if (copyLength < mBufferSizeInShort) {
-                    int startPos = copyLength;
-                    copyLength = mBufferSizeInShort - copyLength;
+                if (startPos + copyLength < mBufferSizeInShort) {
+                    startPos += copyLength;
+                    copyLength = mBufferSizeInShort - startPos;
                     System.arraycopy(mRecordBuf, startPos, mTestBuf, 0, copyLength);
                     dataCount += copyLength;
                 }
             }
         }
         // 集音終了
-        mAudioRecord.stop();
         mInRecording = false;
-        mHandler.sendEmptyMessage(MSG_RECORD_END);
-    }
-
-    private int doFFT(short[] data) {
-        for (int i = 0; i < mFFTSize; i++) {
-            mFFTBuffer[i] = (double)data[i];
-        }
-        // FFT 実行
-        mFFT.realForward(mFFTBuffer);
-
-        // 処理結果の複素数配列からピーク周波数成分の要素番号を得る
-        double maxAmp = 0;
-        int index = 0;
-        for (int i = 0; i < mFFTSize/2; i++) {
-            double a = mFFTBuffer[i*2]; // 実部
-            double b = mFFTBuffer[i*2 + 1]; // 虚部
-            // a+ib の絶対値 √ a^2 + b^2 = r が振幅値
-            double r = Math.sqrt(a*a + b*b);
-            if (r > maxAmp) {
-                maxAmp = r;
-                index = i;
-            }
+        try {
+            capture.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        // ピーク周波数を求める
-        int freq = index * SAMPLE_RATE / mFFTSize;
-        byte val = (byte)((freq-FREQ_BASE)/FREQ_STEP);
-
-        if (freq == FREQ_IN) { // 先端符丁
-            mValueCount = 0;
-            mCrc32Val = 0;
-            if (!mDataArrayList.isEmpty()) {
-                mDataArrayList.clear();
-            }
-            mRecvWord = "";
-            return freq;
-        } else if (freq == FREQ_OUT) { // 終端符丁
-            mValueCount = -1;
-            return freq;
+        if (mRing.getOverrunCount() > overruns) {
+            Log.d(TAG, "ring overrun=" + (mRing.getOverrunCount() - overruns) +
+                    " dropped=" + mRing.getDroppedCount());
         }
+        mHandler.sendEmptyMessage(MSG_RECORD_END);
+    }
 
-        // 先端符丁直後の 4バイトは32ビットCRC
-        if (mValueCount >= 0 &&  mValueCount < 4) {
-            mCrc32Val |=  (val & 0xFF);
-            if (mValueCount != 3) {
-                mCrc32Val <<= 8;
-            } else {
-                Log.d(TAG, "mCrc32Val=" + Long.toHexString(mCrc32Val));
+    // 集音スレッド: AudioRecord から読み出してリングバッファへ渡すだけにする
+    private final Runnable mCapture = new Runnable() {
+        @Override
+        public void run() {
+            mAudioRecord.startRecording();
+            while (mInRecording && !mStop) {
+                int n = mAudioRecord.read(mCaptureBuf, 0, mBufferSizeInShort);
+                if (n > 0) {
+                    mRing.write(mCaptureBuf, 0, n);
+                }
             }
+            mAudioRecord.stop();
         }
-        mValueCount++;
-        return freq;
+    };
+
+    // symbols[off] 以降のシンボルを 1 シンボル時間分の音声信号に置き換えて再生する
+    // 消費したシンボル数を返す
+    private int valueToWave(int[] symbols, int off) {
+        //Log.d(TAG, "val=" + symbols[off]);
+        mPlayBuf.clear();
+        int count = mModulator.modulate(symbols, off, mPlayBuf);
+        mAudioTrack.write(mPlayBuf.array(), 0, mPlayBuf.position());
+        return count;
     }
 
-    // 指定されたバイト値を音声信号に置き換えて再生する
-    private void valueToWave(short val) {
-        //Log.d(TAG, "val=" + val);
-        mAudioTrack.write(mSignals[val], 0, ELMS_UNITSEC);
-    }
-
-    private void doSendWord(String str) {
+    // 次に送る単語を ARQ に渡す
+    private void sendWord(String str) {
         mSendWord = str;
-        mHandler.sendEmptyMessage(MSG_DATA_SEND_START);
         Log.d(TAG, "mSendWord=" + mSendWord);
         byte[] strByte = null;
         try {
             strByte = mSendWord.getBytes("UTF-8");
         } catch (UnsupportedEncodingException e) {
         }
-        mAudioTrack.play();
-        mAudioTrack.write(mSigIn, 0, ELMS_1SEC); // 先端符丁
-        // データ本体の CRC32 を計算して発信
-        CRC32 crc = new CRC32();
-        crc.reset();
-        crc.update(strByte, 0, strByte.length);
-        long crcVal = crc.getValue();
-        //Log.d(TAG, "crc=" + Long.toHexString(crcVal));
-        byte crcData[] = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            crcData[i] = (byte)(crcVal >> (24-i*8));
-            valueToWave((short) (crcData[i] & 0xFF));
-        }
-        // データ本体
-        for (int i = 0; i < strByte.length; i++) {
-            valueToWave(strByte[i]);
+        mArq.send(strByte);
+    }
+
+    // ARQ のフレーム列 (先端符丁から終端符丁まで) を発信する
+    private void doSendFrames(int[] symbols) {
+        if (symbols.length > 0) {
+            mHandler.obtainMessage(MSG_DATA_SEND_START, mArq.getPendingCount(), 0).sendToTarget();
+            mAudioTrack.play();
+            for (int i = 0; i < symbols.length; ) {
+                i += valueToWave(symbols, i);
+            }
+            // 終端符丁を再生し終えるまでバッファを無音で押し出す
+            // (stop 後の flush は再生していない分を捨てるため, 100msec の終端符丁が欠ける)
+            mAudioTrack.write(mTailSilence, 0, mTailSilence.length);
+            mAudioTrack.stop();
+            mAudioTrack.flush();
         }
-        mAudioTrack.write(mSigOut, 0, ELMS_1SEC); // 終端符丁
-        mAudioTrack.stop();
-        mAudioTrack.flush();
-        mLastFreq = -1;
-        mRecvWord = "";
     }
 
-    private void setParams(boolean useUltrasonic) {
-        AMP = (useUltrasonic) ? AMP_LARGE : AMP_SMALL;
-        FREQ_BASE = (useUltrasonic) ? FREQ_BASE_HIGH : FREQ_BASE_LOW;
-        FREQ_OUT = FREQ_BASE - 100;
-        FREQ_IN = FREQ_OUT + 20;
-        // 先端・終端符丁の信号データを生成
-        createSineWave(mSigIn, FREQ_IN, AMP, true);
-        createSineWave(mSigOut, FREQ_OUT, AMP, true);
-        // 256種類の信号データを生成
-        for (int i = 0; i < ELMS_MAX; i++) {
-            createSineWave(mSignals[i], (short) (FREQ_BASE + FREQ_STEP * i), AMP, true);
+    // 発信スレッド
+    // 自分の番になるまで待ち, 受信したフレームへの ACK と相手に届いていないブロックを発信する
+    private final Runnable mTransmitter = new Runnable() {
+        @Override
+        public void run() {
+            while (mInRecording && !mStop) {
+                try {
+                    if (!mLink.awaitTurn(TURN_WAIT_MS)) {
+                        // フレームか相手の応答が失われ, 応答がないまま未達のブロックが残っていれば再送する
+                        boolean retry;
+                        synchronized (mArq) {
+                            retry = mLink.checkResponseTimeout() && mArq.onTimeout();
+                        }
+                        if (retry) {
+                            mLink.requestTurn();
+                        }
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                int symbols[];
+                synchronized (mArq) {
+                    symbols = mArq.createResponse();
+                }
+                doSendFrames(symbols);
+                mLink.endTransmit();
+                Log.d(TAG, "roundTrip=" + mLink.getRoundTrip() * 1000 / SAMPLE_RATE + "ms");
+            }
+        }
+    };
+
+    // useUltrasonic: 自分の発信帯域. duplex なら受信はもう一方の帯域で行う
+    private void setParams(boolean useUltrasonic, boolean duplex) {
+        int amp = (useUltrasonic) ? AMP_LARGE : AMP_SMALL;
+        int freqBase = (useUltrasonic) ? FREQ_BASE_HIGH : FREQ_BASE_LOW;
+        int freqBaseRecv = freqBase;
+        if (duplex) {
+            freqBaseRecv = (useUltrasonic) ? FREQ_BASE_LOW : FREQ_BASE_HIGH;
         }
-        FREQ_MAX = FREQ_BASE + FREQ_STEP * 255;
+        ModemConfig config = new ModemConfig(freqBase, amp);
+        // 位相連続・両端ランプ付きで逐次生成. 先端にチャープを置き, 先端・終端符丁は 100msec に縮める
+        mModulator = new CpfskModulator(config, config.getUnitSize() / RAMP_RATIO,
+                new ChirpPreamble(freqBase, amp));
+        mPlayBuf = ShortBuffer.allocate(mModulator.getSymbolLength(ModemConfig.SYMBOL_IN));
+        RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(freqBaseRecv, 1);
+        // 全二重では自分の発信帯域を無視する
+        demodulator.setBandLimited(duplex);
+        mDemodulator = demodulator;
+        // 先端・終端符丁判定用
+        mMarkerDemodulator = new GoertzelDemodulator(new ModemConfig(freqBaseRecv, amp),
+                new int[] {ModemConfig.SYMBOL_IN, ModemConfig.SYMBOL_OUT});
+        mDetector = new PreambleDetector(new ChirpPreamble(freqBaseRecv).getWave());
+        mAligned = false;
+        // 全二重では自分の音による反響を待つ必要がない
+        mLink = new LinkStateMachine((duplex) ? 0 : TURNAROUND_GUARD_MS, duplex);
+        mArq.setFullDuplex(duplex);
+        // 先端符丁の直後のレートバイトは mDemodulator が判定結果なしとして返す
+        mArq.setRateByte(true);
+        mDuplex = duplex;
     }
 }
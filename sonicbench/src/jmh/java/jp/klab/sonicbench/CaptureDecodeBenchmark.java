@@ -0,0 +1,169 @@
+package jp.klab.sonicbench;
+
+import jp.klab.sonicmodem.Crc32FrameCodec;
+import jp.klab.sonicmodem.FrameCodec;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.NoiseGate;
+import jp.klab.sonicmodem.RateAdaptiveDemodulator;
+import jp.klab.sonicmodem.SymbolTracker;
+import jp.klab.sonicmodem.ToneModulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1 分間の集音データ全体の復号時間 (sonic10 の run() 相当)
+ * sonicbench.capture で RAW ファイルが指定されなければ sonic09 の送信内容を合成して用いる
+ * 合成時の雑音の実効値は noiseLevel で選ぶ. 受信待ちの間は NoiseGate が閉じていれば復調を省く
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CaptureDecodeBenchmark {
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int UNITSIZE = SAMPLE_RATE/10;
+    private static final int BUFFER_SIZE = 1792; // AudioRecord.getMinBufferSize 相当
+    private static final int CAPTURE_SEC = 60;
+    private static final int PAYLOAD_SIZE = 32;
+
+    @Param({"50", "500"})
+    public int noiseLevel;
+
+    private short mCapture[];
+    private ModemConfig mConfig;
+    private RateAdaptiveDemodulator mDemodulator;
+    private SymbolTracker mTracker;
+    private NoiseGate mGate;
+    private Crc32FrameCodec mCodec;
+    private short mRecordBuf[] = new short[BUFFER_SIZE];
+    private short mTestBuf[] = new short[UNITSIZE];
+    private int mSymbols[] = new int[1];
+
+    @Setup
+    public void setup() throws IOException {
+        mConfig = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000);
+        mDemodulator = new RateAdaptiveDemodulator(mConfig.getFreqBase(), mConfig.getTones());
+        mTracker = new SymbolTracker(
+                new int[] {mConfig.getFreqIn(), mConfig.getFreqOut()}, SAMPLE_RATE, UNITSIZE);
+        mCodec = new Crc32FrameCodec();
+        mGate = new NoiseGate(SAMPLE_RATE);
+        String path = System.getProperty("sonicbench.capture", "");
+        if (path.length() > 0) {
+            mCapture = load(new File(path));
+        } else {
+            mCapture = synthesize();
+            if (decode() == 0) {
+                throw new IllegalStateException("no frame decoded");
+            }
+        }
+    }
+
+    // 16bit リトルエンディアンの RAW データ
+    private static short[] load(File file) throws IOException {
+        short pcm[] = new short[(int)(file.length() / 2)];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            for (int i = 0; i < pcm.length; i++) {
+                pcm[i] = Short.reverseBytes(in.readShort());
+            }
+        } finally {
+            in.close();
+        }
+        return pcm;
+    }
+
+    // 雑音の上にフレームを 0.5 秒間隔で並べる
+    private short[] synthesize() {
+        Random r = new Random(0);
+        short pcm[] = new short[SAMPLE_RATE * CAPTURE_SEC];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short)(r.nextGaussian() * noiseLevel);
+        }
+        ToneModulator modulator = new ToneModulator(mConfig);
+        ShortBuffer buf = ShortBuffer.allocate(modulator.getSymbolLength(ModemConfig.SYMBOL_IN));
+        byte payload[] = new byte[PAYLOAD_SIZE];
+        int pos = SAMPLE_RATE / 2;
+        while (true) {
+            r.nextBytes(payload);
+            int symbols[] = mCodec.encode(payload);
+            int length = 0;
+            for (int symbol : symbols) {
+                length += modulator.getSymbolLength(symbol);
+            }
+            if (pos + length > pcm.length) {
+                break;
+            }
+            for (int j = 0; j < symbols.length; ) {
+                buf.clear();
+                j += modulator.modulate(symbols, j, buf);
+                for (int i = 0; i < buf.position(); i++) {
+                    pcm[pos++] += buf.get(i);
+                }
+            }
+            pos += SAMPLE_RATE / 2;
+        }
+        return pcm;
+    }
+
+    @Benchmark
+    public int decode() {
+        int frames = 0;
+        int dataCount = 0;
+        mTracker.reset();
+        mCodec.reset();
+        mGate.reset();
+        for (int pos = 0; pos + BUFFER_SIZE <= mCapture.length; pos += BUFFER_SIZE) {
+            // 音声データ読み込み
+            System.arraycopy(mCapture, pos, mRecordBuf, 0, BUFFER_SIZE);
+            boolean bSilence = !mGate.process(mRecordBuf, 0, BUFFER_SIZE);
+            if (bSilence && !mCodec.isReceiving()) { // 静寂
+                dataCount = 0;
+                mTracker.reset();
+                continue;
+            }
+            int startPos = 0;
+            while (!mCodec.isReceiving() && startPos < BUFFER_SIZE) {
+                startPos += mTracker.process(mRecordBuf, startPos, BUFFER_SIZE - startPos);
+                if (mTracker.getLastFreq() == mConfig.getFreqIn()) {
+                    mDemodulator.reset();
+                    mCodec.decode(ModemConfig.SYMBOL_IN);
+                    dataCount = mTracker.copySinceBoundary(mTestBuf);
+                    mTracker.reset();
+                }
+            }
+            while (mCodec.isReceiving() && startPos < BUFFER_SIZE) {
+                int blockSize = mDemodulator.getBlockSize();
+                int copyLength = Math.min(blockSize - dataCount, BUFFER_SIZE - startPos);
+                System.arraycopy(mRecordBuf, startPos, mTestBuf, dataCount, copyLength);
+                dataCount += copyLength;
+                startPos += copyLength;
+                if (dataCount < blockSize) {
+                    break;
+                }
+                // 100ms 分溜まったら FFT にかける
+                int count = mDemodulator.demodulate(mTestBuf, 0, mSymbols);
+                for (int i = 0; i < count; i++) {
+                    if (mCodec.decode(mSymbols[i]) == FrameCodec.RECV_OK) {
+                        frames++;
+                    }
+                }
+                dataCount = 0;
+            }
+        }
+        return frames;
+    }
+}
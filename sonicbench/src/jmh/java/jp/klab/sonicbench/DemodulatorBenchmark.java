@@ -0,0 +1,102 @@
+package jp.klab.sonicbench;
+
+import jp.klab.sonicmodem.FFTDemodulator;
+import jp.klab.sonicmodem.GoertzelDemodulator;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.OfdmConfig;
+import jp.klab.sonicmodem.OfdmDemodulator;
+import jp.klab.sonicmodem.OfdmModulator;
+import jp.klab.sonicmodem.PowerSpectrum;
+import jp.klab.sonicmodem.ToneModulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1 シンボル (100msec) あたりの判定時間
+ * fft は sonic10 の doFFT 相当, marker は sonic11 の受信待ち時の判定
+ * fftFloat, fftHann は PowerSpectrum (float 精度, 2 のべき乗長に 0 詰め) による判定
+ * (fftHann はハン窓付き)
+ * tones は同時送信数 (fft は帯域ごとのピーク探索を含む)
+ * ofdm は OFDM 1 シンボル (約 29msec, 22 バイト) あたりの復調時間 (tones には依存しない)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DemodulatorBenchmark {
+    @Param({"500", "14000"})
+    public int freqBase;
+
+    @Param({"1", "2"})
+    public int tones;
+
+    private short mSymbol[];
+    private int mSymbols[];
+    private FFTDemodulator mFFTDemodulator;
+    private FFTDemodulator mFloatDemodulator;
+    private FFTDemodulator mHannDemodulator;
+    private GoertzelDemodulator mMarkerDemodulator;
+    private short mOfdmSymbol[];
+    private int mOfdmSymbols[];
+    private OfdmDemodulator mOfdmDemodulator;
+
+    @Setup
+    public void setup() {
+        ModemConfig config = new ModemConfig(freqBase, 28000, tones);
+        ShortBuffer buf = ShortBuffer.allocate(config.getUnitSize());
+        mSymbols = new int[tones];
+        Arrays.fill(mSymbols, 0x41);
+        new ToneModulator(config).modulate(mSymbols, 0, buf);
+        mSymbol = buf.array();
+        mFFTDemodulator = new FFTDemodulator(config);
+        mFloatDemodulator = new FFTDemodulator(config, PowerSpectrum.WINDOW_RECT);
+        mHannDemodulator = new FFTDemodulator(config, PowerSpectrum.WINDOW_HANN);
+        mMarkerDemodulator = new GoertzelDemodulator(config,
+                new int[] {ModemConfig.SYMBOL_IN, ModemConfig.SYMBOL_OUT});
+
+        OfdmConfig ofdmConfig = new OfdmConfig(new ModemConfig(freqBase, 28000));
+        mOfdmSymbols = new int[ofdmConfig.getBytesPerSymbol()];
+        Arrays.fill(mOfdmSymbols, 0x41);
+        buf = ShortBuffer.allocate(ofdmConfig.getSymbolSize());
+        new OfdmModulator(ofdmConfig).modulate(mOfdmSymbols, 0, buf);
+        mOfdmSymbol = buf.array();
+        mOfdmDemodulator = new OfdmDemodulator(ofdmConfig);
+        // 基準シンボルとして一度通しておく
+        mOfdmDemodulator.demodulate(mOfdmSymbol, 0, mOfdmSymbols);
+    }
+
+    @Benchmark
+    public int fft() {
+        return mFFTDemodulator.demodulate(mSymbol, 0, mSymbols);
+    }
+
+    @Benchmark
+    public int fftFloat() {
+        return mFloatDemodulator.demodulate(mSymbol, 0, mSymbols);
+    }
+
+    @Benchmark
+    public int fftHann() {
+        return mHannDemodulator.demodulate(mSymbol, 0, mSymbols);
+    }
+
+    @Benchmark
+    public int ofdm() {
+        return mOfdmDemodulator.demodulate(mOfdmSymbol, 0, mOfdmSymbols);
+    }
+
+    @Benchmark
+    public int marker() {
+        return mMarkerDemodulator.demodulate(mSymbol, 0, mSymbols);
+    }
+}
@@ -0,0 +1,114 @@
+package jp.klab.sonicbench;
+
+import jp.klab.sonicmodem.ConvFrameCodec;
+import jp.klab.sonicmodem.Crc32FrameCodec;
+import jp.klab.sonicmodem.FrameCodec;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.RsFrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC32 付きフレームの組み立て・受信処理のペイロード 1 バイトあたりの時間
+ * sonic09 の run(), sonic11 の doSendWord, sonic10 の run() 相当
+ * rs* はリード・ソロモン符号付き (パリティ 16 バイト) で, 受信側は誤り訂正を含む
+ * conv* は畳み込み符号化モードで, 受信側は軟判定 Viterbi 復号を含む
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+    private static final int PAYLOAD_SIZE = 256;
+    private static final int PARITY_SIZE = 16;
+    private static final int ERRORS = 8; // 受信側で訂正させるシンボル誤りの数
+
+    private byte mPayload[];
+    private int mSymbols[];
+    private Crc32FrameCodec mCodec;
+    private int mRsSymbols[];
+    private RsFrameCodec mRsCodec;
+    private int mConvSymbols[];
+    private ConvFrameCodec mConvCodec;
+    private double mLikelihoods[];
+
+    @Setup
+    public void setup() {
+        mPayload = new byte[PAYLOAD_SIZE];
+        new Random(0).nextBytes(mPayload);
+        mCodec = new Crc32FrameCodec();
+        mSymbols = mCodec.encode(mPayload);
+        mRsCodec = new RsFrameCodec(PARITY_SIZE);
+        mRsSymbols = mRsCodec.encode(mPayload);
+        // 2 つの符号語に分かれて誤りが入るよう全体に散らす
+        int step = (mRsSymbols.length - RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT - 2) / ERRORS;
+        for (int i = 0; i < ERRORS; i++) {
+            int pos = RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT + 1 + i * step;
+            mRsSymbols[pos] = (mRsSymbols[pos] + 1) % ModemConfig.ELMS_MAX;
+        }
+        mConvCodec = new ConvFrameCodec();
+        mConvSymbols = mConvCodec.encode(mPayload);
+        // 処理時間は尤度の値によらないので一様な尤度を与える
+        mLikelihoods = new double[ModemConfig.ELMS_MAX];
+        for (int i = 0; i < mLikelihoods.length; i++) {
+            mLikelihoods[i] = 1.0 / ModemConfig.ELMS_MAX;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int[] encode() {
+        return mCodec.encode(mPayload);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int decode() {
+        int result = FrameCodec.RECV_NONE;
+        for (int i = 0; i < mSymbols.length; i++) {
+            result = mCodec.decode(mSymbols[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int[] rsEncode() {
+        return mRsCodec.encode(mPayload);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int rsDecode() {
+        int result = FrameCodec.RECV_NONE;
+        for (int i = 0; i < mRsSymbols.length; i++) {
+            result = mRsCodec.decode(mRsSymbols[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int[] convEncode() {
+        return mConvCodec.encode(mPayload);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public int convDecode() {
+        int result = FrameCodec.RECV_NONE;
+        for (int i = 0; i < mConvSymbols.length; i++) {
+            result = mConvCodec.decode(mConvSymbols[i], mLikelihoods);
+        }
+        return result;
+    }
+}
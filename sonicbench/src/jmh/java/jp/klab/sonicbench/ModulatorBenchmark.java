@@ -0,0 +1,64 @@
+package jp.klab.sonicbench;
+
+import jp.klab.sonicmodem.CpfskModulator;
+import jp.klab.sonicmodem.ModemConfig;
+import jp.klab.sonicmodem.Modulator;
+import jp.klab.sonicmodem.ToneModulator;
+import jp.klab.sonicmodem.WaveformCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 超音波モード切り替え 1 回あたりの信号データ生成時間 (sonic09 の setParams 相当)
+ * switchMode は共有キャッシュに両モードの信号データがある状態,
+ * switchModeCold は毎回空のキャッシュから先端・終端符丁と全 256 シンボルを作る場合
+ * cpfskSymbol は CpfskModulator で 100msec のデータ 1 シンボルを逐次生成する時間
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ModulatorBenchmark {
+    private boolean mUltrasonic;
+    private final ModemConfig mConfig = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 28000);
+    private final CpfskModulator mCpfsk = new CpfskModulator(mConfig, mConfig.getUnitSize() / 10);
+    private final ShortBuffer mBuf = ShortBuffer.allocate(mConfig.getUnitSize());
+    private final int mSymbols[] = {0x41};
+
+    @Benchmark
+    public Modulator switchMode() {
+        mUltrasonic = !mUltrasonic;
+        int freqBase = (mUltrasonic) ? ModemConfig.FREQ_BASE_HIGH : ModemConfig.FREQ_BASE_LOW;
+        return new ToneModulator(new ModemConfig(freqBase, 28000));
+    }
+
+    @Benchmark
+    public Modulator switchModeCold() {
+        mUltrasonic = !mUltrasonic;
+        int freqBase = (mUltrasonic) ? ModemConfig.FREQ_BASE_HIGH : ModemConfig.FREQ_BASE_LOW;
+        ModemConfig config = new ModemConfig(freqBase, 28000);
+        ToneModulator modulator = new ToneModulator(config, new WaveformCache());
+        int symbols[] = new int[1];
+        for (int i = 0; i < ModemConfig.ELMS_MAX; i++) {
+            mBuf.clear();
+            symbols[0] = i;
+            modulator.modulate(symbols, 0, mBuf);
+        }
+        return modulator;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ShortBuffer cpfskSymbol() {
+        mBuf.clear();
+        mCpfsk.modulate(mSymbols, 0, mBuf);
+        return mBuf;
+    }
+}
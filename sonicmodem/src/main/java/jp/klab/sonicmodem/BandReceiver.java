@@ -0,0 +1,271 @@
+package jp.klab.sonicmodem;
+
+import java.util.Arrays;
+
+/**
+ * 1 つの帯域 (freqBase) のフレーム受信の状態機械
+ * 集音したサンプルを順に与えると, 先端のチャープ (または 1 秒の先端符丁) を検出し,
+ * 先端符丁の周波数が示すモード・同時送信数の復調器でシンボルを判定してフレームを復号する
+ *
+ * 復調器は自分の帯域の範囲のみでピークを探す (setBandLimited) ため,
+ * 他の帯域で同時に送られている信号があっても受信できる
+ * 複数の帯域を並行して受信するには MultiBandReceiver を用いる
+ *
+ * FDMA のチャネル (ChannelPlan) として作った場合は単一波・100msec のフレームのみを受信する
+ * チャープの検出は MultiBandReceiver が全チャネル分まとめて行い, startAfterPreamble で受信を始める
+ */
+public class BandReceiver {
+    private static final double THRESHOLD_TONE_RATIO = 0.2; // チャープ直後の先端符丁の判定
+
+    // 受信結果の通知先. process を呼んだスレッドから呼ばれる
+    public interface Listener {
+        // RECV_DATA で 1 バイト受信した
+        void onData(BandReceiver receiver, int data);
+
+        // フレーム終了. result は FrameCodec.RECV_OK か RECV_NG
+        // payload は誤り訂正・インターリーブありのフレームの復元後のペイロード. それ以外は null
+        void onFrame(BandReceiver receiver, int result, byte[] payload);
+    }
+
+    private final int mFreqBase;
+    private final int mChannel; // チャネル番号. 帯域として作った場合は -1
+    private final Listener mListener;
+    private final int mUnitSize;
+    private final RateAdaptiveDemodulator mDemodulators[]; // 同時送信数ごと
+    private final Demodulator mOfdmDemodulator; // チャネルでは null
+    private final SymbolTracker mTracker; // チャネルでは null
+    private final PreambleDetector mDetector; // チャネルでは null
+    private final GoertzelBank mModeBank; // 先端符丁の周波数 (同時送信数・モード) の判定用. チャネルでは null
+    private final RsFrameCodec mRsCodec = new RsFrameCodec(0);
+    private final ConvFrameCodec mConvCodec = new ConvFrameCodec();
+    private final double mLikelihoods[] = new double[ModemConfig.ELMS_MAX];
+    private final int mSymbols[];
+    private final short mBlock[]; // 復調するブロック
+    private Demodulator mDemodulator;
+    private RateAdaptiveDemodulator mRateDemodulator; // 受信中のフレームの復調器. OFDM なら null
+    private FrameCodec mCodec = mRsCodec;
+    private int mDataCount = 0; // mBlock に溜めたサンプル数
+    private int mModeCount = -1; // チャープ検出後に mBlock へ溜めた先端符丁のサンプル数. 検出前は -1
+
+    public BandReceiver(int freqBase, Listener listener) {
+        this(freqBase, -1, ModemConfig.getMaxTones(freqBase), listener);
+    }
+
+    // plan の channel 番目のチャネルを受信する
+    public BandReceiver(ChannelPlan plan, int channel, Listener listener) {
+        this(plan.getFreqBase(channel), channel, ChannelPlan.TONES, listener);
+    }
+
+    private BandReceiver(int freqBase, int channel, int maxTones, Listener listener) {
+        mFreqBase = freqBase;
+        mChannel = channel;
+        mListener = listener;
+        ModemConfig config = new ModemConfig(freqBase);
+        mUnitSize = config.getUnitSize();
+        // 送信側が選びうる同時送信数ごとに復調器を用意
+        mDemodulators = new RateAdaptiveDemodulator[maxTones + 1];
+        for (int tones : ModemConfig.TONES) {
+            if (tones <= maxTones) {
+                // シンボル長は先端符丁に続くレートバイトから判定する
+                mDemodulators[tones] = new RateAdaptiveDemodulator(freqBase, tones);
+                mDemodulators[tones].setBandLimited(true);
+            }
+        }
+        mDemodulator = mDemodulators[1];
+        mBlock = new short[mUnitSize];
+        if (channel >= 0) {
+            mOfdmDemodulator = null;
+            mSymbols = new int[maxTones];
+            mTracker = null;
+            mDetector = null;
+            mModeBank = null;
+            return;
+        }
+        int freqs[] = new int[ModemConfig.TONES.length + 2];
+        int n = 0;
+        for (int tones : ModemConfig.TONES) {
+            if (tones <= maxTones) {
+                freqs[n++] = ModemConfig.getFreqIn(freqBase, tones);
+            }
+        }
+        OfdmConfig ofdmConfig = new OfdmConfig(config);
+        mOfdmDemodulator = new OfdmDemodulator(ofdmConfig);
+        freqs[n++] = ofdmConfig.getFreqIn();
+        freqs[n++] = config.getFreqOut();
+        mSymbols = new int[Math.max(maxTones, ofdmConfig.getBytesPerSymbol())];
+        // シンボル境界検出用
+        mTracker = new SymbolTracker(Arrays.copyOf(freqs, n), config.getSampleRate(), mUnitSize);
+        mDetector = new PreambleDetector(new ChirpPreamble(freqBase).getWave());
+        // チャープの後の先端符丁は終端符丁を除いた候補から判定する
+        mModeBank = new GoertzelBank(Arrays.copyOf(freqs, n - 1), config.getSampleRate(), mUnitSize);
+    }
+
+    public int getFreqBase() {
+        return mFreqBase;
+    }
+
+    // チャネル番号. 帯域として作った場合は -1
+    public int getChannel() {
+        return mChannel;
+    }
+
+    // フレームを受信中か (チャープ直後の先端符丁を待つ間を含む)
+    public boolean isReceiving() {
+        return mCodec.isReceiving() || mModeCount >= 0;
+    }
+
+    // 受信待ちに戻す
+    public void reset() {
+        mCodec.reset();
+        mCodec = mRsCodec;
+        mDataCount = 0;
+        mModeCount = -1;
+        if (mDetector != null) {
+            mTracker.reset();
+            mDetector.reset();
+        }
+    }
+
+    // チャネル用. 外部で検出したチャープの直後から data[off] の len サンプルを与え, 受信を始める
+    // 続きは process で与える
+    public void startAfterPreamble(short[] data, int off, int len) {
+        if (mCodec.isReceiving()) {
+            return;
+        }
+        mModeCount = 0;
+        process(data, off, len, false);
+    }
+
+    // data[off] から len サンプルを入力する
+    // silence: 無音と判定したブロックなら true. 受信待ちの間は復調を省き検出をやり直す
+    public void process(short[] data, int off, int len, boolean silence) {
+        if (mDetector == null && !isReceiving()) {
+            // チャネルでは受信の開始を startAfterPreamble で受ける
+            return;
+        }
+        if (silence && !isReceiving()) {
+            mDataCount = 0;
+            mTracker.reset();
+            mDetector.reset();
+            return;
+        }
+        int end = off + len;
+        int startPos = off;
+        // 受信待ちの間はチャープのプリアンブルを相互相関で探す
+        // 1 秒の先端符丁で始まるフレーム (OFDM モード) に備え, 同じ区間で先端符丁の途切れも追跡する
+        while (!mCodec.isReceiving() && startPos < end) {
+            if (mModeCount >= 0) {
+                // チャープ直後の 100msec の先端符丁を境界に揃えて溜め, 周波数からモードを判別する
+                int copyLength = Math.min(mUnitSize - mModeCount, end - startPos);
+                System.arraycopy(data, startPos, mBlock, mModeCount, copyLength);
+                mModeCount += copyLength;
+                startPos += copyLength;
+                if (mModeCount == mUnitSize) {
+                    mModeCount = -1;
+                    if (startFrame(detectFreqIn())) {
+                        mDataCount = 0;
+                    }
+                }
+                continue;
+            }
+            if (mDetector == null) {
+                break;
+            }
+            int detected = startPos + mDetector.process(data, startPos, end - startPos);
+            while (!mCodec.isReceiving() && startPos < detected) {
+                startPos += mTracker.process(data, startPos, detected - startPos);
+                if (startFrame(mTracker.getLastFreq())) {
+                    mDataCount = mTracker.copySinceBoundary(mBlock);
+                    mTracker.reset();
+                }
+            }
+            if (!mCodec.isReceiving() && mDetector.getBoundary() >= 0) {
+                mModeCount = mDetector.copySinceBoundary(mBlock);
+                mDetector.reset();
+                mTracker.reset();
+            }
+        }
+        // 復調器のブロック長ごとに mBlock へ溜めて復調する
+        // 入力の途中でブロックが埋まった場合は残りを次のブロックへ回しシンボル境界を保つ
+        while (mCodec.isReceiving() && startPos < end) {
+            int blockSize = mDemodulator.getBlockSize();
+            int copyLength = Math.min(blockSize - mDataCount, end - startPos);
+            System.arraycopy(data, startPos, mBlock, mDataCount, copyLength);
+            mDataCount += copyLength;
+            startPos += copyLength;
+            if (mDataCount < blockSize) {
+                break;
+            }
+            mDataCount = 0;
+            decode(mDemodulator.demodulate(mBlock, 0, mSymbols));
+        }
+    }
+
+    // mSymbols の count 個のシンボルを復号し, 結果を通知する
+    private void decode(int count) {
+        // レートバイトが畳み込み符号化モードを示していれば FFT の尤度から軟判定で復号する
+        boolean soft = mRateDemodulator != null && mRateDemodulator.isCoded();
+        if (soft && mCodec != mConvCodec) {
+            mRsCodec.reset();
+            mCodec = mConvCodec;
+            mCodec.decode(ModemConfig.SYMBOL_IN);
+        }
+        for (int i = 0; i < count; i++) {
+            int result;
+            if (soft && mSymbols[i] < ModemConfig.ELMS_MAX) {
+                mRateDemodulator.getLikelihoods(i, mLikelihoods);
+                result = mConvCodec.decode(mSymbols[i], mLikelihoods);
+            } else {
+                result = mCodec.decode(mSymbols[i]);
+            }
+            switch (result) {
+                case FrameCodec.RECV_DATA:
+                    mListener.onData(this, mCodec.getData());
+                    break;
+                case FrameCodec.RECV_OK:
+                    mListener.onFrame(this, result, mCodec.isStreaming() ? null : mCodec.getPayload());
+                    break;
+                case FrameCodec.RECV_NG:
+                    mListener.onFrame(this, result, null);
+                    break;
+            }
+        }
+    }
+
+    // mBlock に溜めたチャープ直後の先端符丁の周波数を返す. 判定できなければ -1
+    private int detectFreqIn() {
+        if (mModeBank == null) {
+            // チャネルでは他のチャネルの音を含む入力全体との比では判定できないため,
+            // 自チャネルの範囲に限った FFT (setBandLimited) で単一波の先端符丁かを確かめる
+            RateAdaptiveDemodulator demodulator = mDemodulators[ChannelPlan.TONES];
+            demodulator.reset();
+            if (demodulator.demodulate(mBlock, 0, mSymbols) > 0 && mSymbols[0] == ModemConfig.SYMBOL_IN) {
+                return ModemConfig.getFreqIn(mFreqBase, ChannelPlan.TONES);
+            }
+            return -1;
+        }
+        int index = mModeBank.detect(mBlock, 0, THRESHOLD_TONE_RATIO);
+        return (index >= 0) ? mModeBank.getFreq(index) : -1;
+    }
+
+    // 先端符丁の周波数 freqIn が示すモード・同時送信数の復調器に切り替えてフレームの受信を始める
+    // 該当するモードがなければ false を返す
+    private boolean startFrame(int freqIn) {
+        int tones = ModemConfig.getTones(mFreqBase, freqIn);
+        if (tones >= mDemodulators.length ||
+                (tones <= 0 && (mOfdmDemodulator == null || freqIn != OfdmConfig.getFreqIn(mFreqBase)))) {
+            return false;
+        }
+        mRateDemodulator = (tones > 0) ? mDemodulators[tones] : null;
+        mDemodulator = (tones > 0) ? mRateDemodulator : mOfdmDemodulator;
+        mDemodulator.reset();
+        // 畳み込み符号化モードかどうかはレートバイトを受信してから切り替える
+        mCodec = mRsCodec;
+        mCodec.decode(ModemConfig.SYMBOL_IN);
+        // フレーム終了後は新たに探し始める
+        if (mDetector != null) {
+            mDetector.reset();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 受信したバイトを溜める可変長の byte 配列
+ * ArrayList<Byte> と違いボクシングせず, reset() 後も確保済みの配列を使い回すため
+ * 同程度の長さのフレームを受信し続ける間は新たな確保が起きない
+ */
+public class ByteAccumulator {
+    private static final int CAPACITY_DEFAULT = 256;
+
+    private byte mBuf[];
+    private int mSize = 0;
+
+    public ByteAccumulator() {
+        this(CAPACITY_DEFAULT);
+    }
+
+    public ByteAccumulator(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        mBuf = new byte[capacity];
+    }
+
+    // 下位 8 ビットを 1 バイトとして追加する
+    public void append(int value) {
+        if (mSize == mBuf.length) {
+            byte buf[] = new byte[mBuf.length * 2];
+            System.arraycopy(mBuf, 0, buf, 0, mSize);
+            mBuf = buf;
+        }
+        mBuf[mSize++] = (byte)value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public byte get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index);
+        }
+        return mBuf[index];
+    }
+
+    // 内部の配列. 有効なのは先頭から size() バイトまで
+    public byte[] array() {
+        return mBuf;
+    }
+
+    // 溜めた内容のコピー
+    public byte[] toByteArray() {
+        byte out[] = new byte[mSize];
+        System.arraycopy(mBuf, 0, out, 0, mSize);
+        return out;
+    }
+
+    public void reset() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,72 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 周波数分割多元接続 (FDMA) のチャネル割り当て
+ * FREQ_MIN - FREQ_MAX の範囲を, 単一波・シンボル長 100msec の帯域 1 本分ずつのチャネルに分ける
+ * 同じ部屋の送信機がそれぞれ別のチャネルで送れば衝突せず,
+ * 部屋全体のスループットはチャネル数に比例する
+ *
+ * 1 チャネルは終端符丁 (freqBase - 100) からデータの最高周波数 (freqBase + 2550) までを占め,
+ * 隣のチャネルとの間に GUARD の間隔をあける
+ * チャネルではシンボル長 100msec, 同時送信数 1, 先端にチャープを置くフレームのみを使う
+ * (それ以外のモードは帯域が隣のチャネルにはみ出す)
+ *
+ * チャネルごとのチャープ (ChirpPreamble) は自チャネルの帯域のみを掃引するため,
+ * どの基準波形と相関がとれたかでチャネル番号が決まる. 直後の先端符丁の周波数もチャネルごとに異なる
+ */
+public class ChannelPlan {
+    public static final int FREQ_MIN = 500;
+    public static final int FREQ_MAX = 20000;
+    public static final int SYMBOL_MS = 100;
+    public static final int TONES = 1;
+    public static final int GUARD = 150; // チャネル間の間隔 (Hz)
+    private static final int MARKER_OFFSET = 100; // freqBase から終端符丁までの間隔
+
+    private final int mFreqBases[];
+
+    public ChannelPlan() {
+        this(FREQ_MIN, FREQ_MAX);
+    }
+
+    // freqMin - freqMax (Hz) の範囲に収まるだけのチャネルを並べる
+    public ChannelPlan(int freqMin, int freqMax) {
+        int span = MARKER_OFFSET + ModemConfig.FREQ_STEP * (ModemConfig.ELMS_MAX - 1);
+        int width = span + GUARD;
+        if (freqMin <= 0 || freqMax >= ModemConfig.SAMPLE_RATE / 2 || freqMax - freqMin < span) {
+            throw new IllegalArgumentException("freqMin=" + freqMin + " freqMax=" + freqMax);
+        }
+        int count = (freqMax - freqMin - span) / width + 1;
+        mFreqBases = new int[count];
+        for (int i = 0; i < count; i++) {
+            mFreqBases[i] = freqMin + MARKER_OFFSET + width * i;
+        }
+    }
+
+    public int getChannelCount() {
+        return mFreqBases.length;
+    }
+
+    public int getFreqBase(int channel) {
+        return mFreqBases[channel];
+    }
+
+    // freqBase に対応するチャネル番号. 該当しなければ -1
+    public int getChannel(int freqBase) {
+        for (int i = 0; i < mFreqBases.length; i++) {
+            if (mFreqBases[i] == freqBase) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 送信側用. channel で送る変調パラメータ
+    public ModemConfig getConfig(int channel, int amplitude) {
+        return new ModemConfig(mFreqBases[channel], amplitude, TONES, SYMBOL_MS);
+    }
+
+    // channel の先端に置くチャープ
+    public ChirpPreamble getPreamble(int channel, int amplitude) {
+        return new ChirpPreamble(mFreqBases[channel], amplitude);
+    }
+}
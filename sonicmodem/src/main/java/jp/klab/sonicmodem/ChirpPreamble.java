@@ -0,0 +1,77 @@
+package jp.klab.sonicmodem;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 先端符丁の前に置く 50msec の線形チャープ (周波数が直線的に上がる掃引音)
+ * 帯域はデータ帯域 1 本分 (freqBase から 256 波分) とし, 同時送信数によらない
+ *
+ * 受信側は PreambleDetector でこの波形との相互相関をとり, フレームの先頭を
+ * サンプル単位で求める. 純音と違い相関のピークが鋭く, 先端符丁の周波数の
+ * 持続音 (他の機器の音など) では反応しない
+ *
+ * 両端 RAMP_MS に二乗余弦の振幅ランプをかけ, 立ち上がりの広がりを抑える
+ */
+public class ChirpPreamble {
+    public static final int PREAMBLE_MS = 50;
+    private static final int RAMP_MS = 5;
+
+    private final int mFreqStart;
+    private final int mFreqEnd;
+    private final short mWave[];
+
+    // 受信側用. 相関をとるための基準波形を振幅 1 (short の最大値) で作る
+    public ChirpPreamble(int freqBase) {
+        this(freqBase, Short.MAX_VALUE);
+    }
+
+    public ChirpPreamble(int freqBase, int amplitude) {
+        this(freqBase, freqBase + ModemConfig.FREQ_STEP * (ModemConfig.ELMS_MAX - 1), amplitude,
+                ModemConfig.SAMPLE_RATE);
+    }
+
+    public ChirpPreamble(int freqStart, int freqEnd, int amplitude, int sampleRate) {
+        if (freqStart <= 0 || freqEnd <= freqStart || freqEnd >= sampleRate / 2) {
+            throw new IllegalArgumentException("freqStart=" + freqStart + " freqEnd=" + freqEnd);
+        }
+        mFreqStart = freqStart;
+        mFreqEnd = freqEnd;
+        int length = sampleRate * PREAMBLE_MS / 1000;
+        int ramp = sampleRate * RAMP_MS / 1000;
+        mWave = new short[length];
+        // 瞬時周波数 f0 + (f1 - f0) t / T の位相 2π (f0 t + (f1 - f0) t^2 / 2T)
+        double k = (double)(freqEnd - freqStart) / length;
+        for (int i = 0; i < length; i++) {
+            double cycles = (freqStart + k * i / 2) * i / sampleRate;
+            double gain = amplitude;
+            if (i < ramp) {
+                gain *= 0.5 * (1.0 - Math.cos(Math.PI * (i + 0.5) / ramp));
+            } else if (i >= length - ramp) {
+                gain *= 0.5 * (1.0 - Math.cos(Math.PI * (length - i - 0.5) / ramp));
+            }
+            mWave[i] = (short)(gain * Math.sin(2.0 * Math.PI * (cycles - Math.floor(cycles))));
+        }
+    }
+
+    public int getFreqStart() {
+        return mFreqStart;
+    }
+
+    public int getFreqEnd() {
+        return mFreqEnd;
+    }
+
+    // サンプル数
+    public int getLength() {
+        return mWave.length;
+    }
+
+    // 波形. 共有するため呼び出し側で書き換えてはならない
+    public short[] getWave() {
+        return mWave;
+    }
+
+    public void write(ShortBuffer out) {
+        out.put(mWave);
+    }
+}
@@ -0,0 +1,125 @@
+package jp.klab.sonicmodem;
+
+import java.util.zip.CRC32;
+
+/**
+ * 畳み込み符号化モードのフレーム形式
+ * 先端符丁, CRC32 (4バイト) + ペイロードを ConvolutionalCode で符号化したバイト列, 終端符丁
+ * モードはレートバイトの ModemConfig.RATE_CODED で示すため, ヘッダは持たない
+ *
+ * 受信側は decode(symbol, likelihoods) でデータ値ごとの尤度を与えると軟判定で,
+ * decode(symbol) では硬判定で Viterbi 復号する. 終端符丁まで揃わないと復号できないので
+ * RECV_DATA を返さない
+ */
+public class ConvFrameCodec implements FrameCodec {
+    private static final int CRC_SIZE = 4;
+
+    private final ConvolutionalCode mCode = new ConvolutionalCode();
+    private int mValueCount = -1; // 先端符丁以降に受信したデータ数. 受信待ちなら -1
+    private double mSoft[] = new double[ReedSolomon.BLOCK_SIZE * 8]; // 受信した符号化ビットの軟判定値
+    private byte mDecoded[] = new byte[ReedSolomon.BLOCK_SIZE];
+    private byte mPayload[] = new byte[0];
+    private final CRC32 mCrc = new CRC32(); // 受信側で使い回す
+
+    @Override
+    public int[] encode(byte[] payload) {
+        // 本体 = CRC32 + ペイロード
+        byte body[] = new byte[CRC_SIZE + payload.length];
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long crcVal = crc.getValue();
+        for (int i = 0; i < CRC_SIZE; i++) {
+            body[i] = (byte)(crcVal >> (24-i*8));
+        }
+        System.arraycopy(payload, 0, body, CRC_SIZE, payload.length);
+        byte encoded[] = new byte[ConvolutionalCode.getEncodedSize(body.length)];
+        ConvolutionalCode.encode(body, 0, body.length, encoded, 0);
+
+        int symbols[] = new int[encoded.length + 2];
+        int n = 0;
+        symbols[n++] = ModemConfig.SYMBOL_IN;
+        for (int i = 0; i < encoded.length; i++) {
+            symbols[n++] = encoded[i] & 0xFF;
+        }
+        symbols[n] = ModemConfig.SYMBOL_OUT;
+        return symbols;
+    }
+
+    @Override
+    public int decode(int symbol) {
+        return decode(symbol, null);
+    }
+
+    // likelihoods: データ値ごとの尤度 (FFTDemodulator.getLikelihoods). null なら硬判定
+    public int decode(int symbol, double[] likelihoods) {
+        if (symbol == ModemConfig.SYMBOL_IN) { // 先端符丁
+            mValueCount = 0;
+            return RECV_START;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) { // 終端符丁
+            int count = mValueCount;
+            mValueCount = -1;
+            if (count < ConvolutionalCode.getEncodedSize(CRC_SIZE)) {
+                return RECV_NONE;
+            }
+            return finish(count) ? RECV_OK : RECV_NG;
+        } else if (symbol < 0 || mValueCount < 0) {
+            return RECV_NONE;
+        }
+        if ((mValueCount + 1) * 8 > mSoft.length) {
+            double soft[] = new double[mSoft.length * 2];
+            System.arraycopy(mSoft, 0, soft, 0, mSoft.length);
+            mSoft = soft;
+        }
+        ConvolutionalCode.toSoftBits(symbol & 0xFF, likelihoods, mSoft, mValueCount * 8);
+        mValueCount++;
+        return RECV_NONE;
+    }
+
+    // 受信した count バイト分の軟判定値を復号し, CRC32 を検査する
+    private boolean finish(int count) {
+        mPayload = new byte[0];
+        // 奇数長なら末尾の 1 バイトは余分に受信したものとして捨てる
+        int length = ConvolutionalCode.getDecodedSize(count & ~1);
+        if (length < CRC_SIZE) {
+            return false;
+        }
+        if (mDecoded.length < length) {
+            mDecoded = new byte[length * 2];
+        }
+        mCode.decode(mSoft, 0, mDecoded, 0, length);
+        long crcVal = 0;
+        for (int i = 0; i < CRC_SIZE; i++) {
+            crcVal = (crcVal << 8) | (mDecoded[i] & 0xFF);
+        }
+        mPayload = new byte[length - CRC_SIZE];
+        System.arraycopy(mDecoded, CRC_SIZE, mPayload, 0, mPayload.length);
+        mCrc.reset();
+        mCrc.update(mPayload, 0, mPayload.length);
+        return mCrc.getValue() == crcVal;
+    }
+
+    @Override
+    public boolean isReceiving() {
+        return mValueCount >= 0;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public int getData() {
+        return 0;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    @Override
+    public void reset() {
+        mValueCount = -1;
+    }
+}
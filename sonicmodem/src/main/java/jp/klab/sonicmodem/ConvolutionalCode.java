@@ -0,0 +1,145 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 符号化率 1/2, 拘束長 7 (生成多項式 171, 133 (8進)) の畳み込み符号と軟判定 Viterbi 復号
+ * データ 1 バイトは 16 ビット (2 バイト) に符号化し, 末尾に状態を 0 に戻す 6 ビットの
+ * テールを付けて 2 バイトに切り上げる
+ *
+ * 符号化ビットはバイトの上位ビットから順に詰める. 軟判定値は符号化ビットごとに
+ * 正なら 1, 負なら 0 らしさを表す値とし, 絶対値が大きいほど確からしいものとする
+ */
+public class ConvolutionalCode {
+    public static final int CONSTRAINT = 7;
+    public static final int TAIL_BITS = CONSTRAINT - 1;
+    private static final int STATES = 1 << (CONSTRAINT - 1);
+    private static final int POLY_A = 0171;
+    private static final int POLY_B = 0133;
+    private static final double METRIC_NONE = -1e300;
+
+    // 入力ビットと直前の状態を並べた 7 ビットのレジスタ値に対する 2 ビットの出力
+    private static final int OUTPUT[] = new int[1 << CONSTRAINT];
+
+    static {
+        for (int reg = 0; reg < OUTPUT.length; reg++) {
+            OUTPUT[reg] = (Integer.bitCount(reg & POLY_A) & 1) << 1 | (Integer.bitCount(reg & POLY_B) & 1);
+        }
+    }
+
+    private double mMetric[] = new double[STATES];
+    private double mNextMetric[] = new double[STATES];
+    private long mDecisions[] = new long[0]; // 時刻ごと, 状態ごとに選んだ直前の状態の下位ビット
+
+    // データ length バイトを符号化した長さ
+    public static int getEncodedSize(int length) {
+        return length * 2 + 2;
+    }
+
+    // 符号化した長さからデータの長さを求める. 該当しなければ -1
+    public static int getDecodedSize(int encodedSize) {
+        if (encodedSize < 2 || encodedSize % 2 != 0) {
+            return -1;
+        }
+        return (encodedSize - 2) / 2;
+    }
+
+    // data[off] から len バイトを符号化し out[outOff] から getEncodedSize(len) バイトを書き込む
+    public static void encode(byte[] data, int off, int len, byte[] out, int outOff) {
+        int state = 0;
+        int acc = 0;
+        int bits = 0;
+        int n = outOff;
+        int total = len * 8 + TAIL_BITS;
+        for (int t = 0; t < total; t++) {
+            int u = (t < len * 8) ? (data[off + t / 8] >> (7 - t % 8)) & 1 : 0;
+            int reg = (u << (CONSTRAINT - 1)) | state;
+            state = reg >> 1;
+            acc = (acc << 2) | OUTPUT[reg];
+            bits += 2;
+            if (bits == 8) {
+                out[n++] = (byte)acc;
+                acc = 0;
+                bits = 0;
+            }
+        }
+        // 端数は 0 で埋める
+        out[n] = (byte)(acc << (8 - bits));
+    }
+
+    // soft[softOff] からの軟判定値を復号し, out[outOff] から len バイトを書き込む
+    // soft には len * 16 + TAIL_BITS * 2 個の値が必要
+    public void decode(double[] soft, int softOff, byte[] out, int outOff, int len) {
+        int total = len * 8 + TAIL_BITS;
+        if (mDecisions.length < total) {
+            mDecisions = new long[total];
+        }
+        for (int s = 0; s < STATES; s++) {
+            mMetric[s] = METRIC_NONE;
+        }
+        mMetric[0] = 0;
+        for (int t = 0; t < total; t++) {
+            double a = soft[softOff + t * 2];
+            double b = soft[softOff + t * 2 + 1];
+            long decisions = 0;
+            for (int s = 0; s < STATES; s++) {
+                // 状態 s に至る直前の状態は 2 つ. 入力ビットは s の最上位ビット
+                int prev0 = (s << 1) & (STATES - 1);
+                int reg0 = ((s >> (CONSTRAINT - 2)) << (CONSTRAINT - 1)) | prev0;
+                double metric0 = mMetric[prev0] + branch(OUTPUT[reg0], a, b);
+                double metric1 = mMetric[prev0 | 1] + branch(OUTPUT[reg0 | 1], a, b);
+                if (metric1 > metric0) {
+                    mNextMetric[s] = metric1;
+                    decisions |= 1L << s;
+                } else {
+                    mNextMetric[s] = metric0;
+                }
+            }
+            mDecisions[t] = decisions;
+            double tmp[] = mMetric;
+            mMetric = mNextMetric;
+            mNextMetric = tmp;
+        }
+        // テールにより最終状態は 0. そこから遡って入力ビットを求める
+        int state = 0;
+        for (int i = 0; i < len; i++) {
+            out[outOff + i] = 0;
+        }
+        for (int t = total - 1; t >= 0; t--) {
+            int u = state >> (CONSTRAINT - 2);
+            if (t < len * 8 && u != 0) {
+                out[outOff + t / 8] |= (byte)(0x80 >> (t % 8));
+            }
+            state = ((state << 1) & (STATES - 1)) | (int)((mDecisions[t] >> state) & 1);
+        }
+    }
+
+    // 出力 2 ビットと軟判定値の相関
+    private static double branch(int output, double a, double b) {
+        return (((output & 2) != 0) ? a : -a) + (((output & 1) != 0) ? b : -b);
+    }
+
+    // 受信したデータ値 value の 8 ビットの軟判定値を soft[off] から書き込む
+    // likelihoods はデータ値ごとの尤度 (FFTDemodulator.getLikelihoods). null なら硬判定
+    // 各ビットが 1 のデータ値と 0 のデータ値の尤度の最大値の差を軟判定値とする
+    public static void toSoftBits(int value, double[] likelihoods, double[] soft, int off) {
+        for (int bit = 0; bit < 8; bit++) {
+            int mask = 0x80 >> bit;
+            if (likelihoods == null) {
+                soft[off + bit] = ((value & mask) != 0) ? 1.0 : -1.0;
+                continue;
+            }
+            double max0 = 0;
+            double max1 = 0;
+            for (int v = 0; v < ModemConfig.ELMS_MAX; v++) {
+                double l = likelihoods[v];
+                if ((v & mask) != 0) {
+                    if (l > max1) {
+                        max1 = l;
+                    }
+                } else if (l > max0) {
+                    max0 = l;
+                }
+            }
+            soft[off + bit] = max1 - max0;
+        }
+    }
+}
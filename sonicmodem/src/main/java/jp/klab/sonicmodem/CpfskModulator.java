@@ -0,0 +1,123 @@
+package jp.klab.sonicmodem;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 位相連続 FSK (CPFSK) の逐次生成
+ * ToneModulator はシンボルごとに位相 0 から波形を作るため, 周波数間隔が
+ * シンボル長の逆数の倍数でない場合にはシンボル境界で位相が飛ぶ
+ * ここでは帯域ごとの位相を次のシンボルへ引き継ぎ, 境界での不連続をなくす
+ *
+ * さらにシンボルの両端 rampSize サンプルに二乗余弦 (raised-cosine) の振幅ランプをかけ,
+ * 周波数の切り替わりによるスペクトルの広がりを抑える. rampSize = 0 ならランプなし
+ * 先端・終端符丁は受信側が途切れ位置でシンボル境界を求めるためランプをかけない
+ *
+ * 先端符丁, レートバイト, 多重トーンの扱いは ToneModulator と同じ
+ *
+ * 波形は SineTable の位相アキュムレータで生成し, 信号データを持たない
+ * 位相は整数の加算で折り返すため, 長く送り続けても位相の誤差が累積しない
+ *
+ * ChirpPreamble を与えた場合は先端符丁の前にチャープを置き, 受信側はその相関で
+ * フレームの先頭を求める. 先端・終端符丁は同時送信数の判別と終端の判定に足りる
+ * レートバイトと同じ 100msec に縮め, 1 秒ずつの符丁による前後 2 秒の付加を除く
+ */
+public class CpfskModulator implements Modulator {
+    private final ModemConfig mConfig;
+    private final int mRampSize;
+    private final double mRamp[]; // 立ち上がり側の係数. 立ち下がりは逆順に用いる
+    private final int mPhase[]; // 帯域ごとの現在位相 (1 周期 = 2^32)
+    private final double mFreqs[];
+    private final int mDelta[]; // 1 サンプルあたりの位相の進み
+    private final ChirpPreamble mPreamble;
+    private final int mMarkerSize; // 先端・終端符丁のサンプル数
+
+    public CpfskModulator(ModemConfig config, int rampSize) {
+        this(config, rampSize, null);
+    }
+
+    // preamble: 先端符丁の前に置くチャープ. null なら 1 秒の符丁のみ
+    public CpfskModulator(ModemConfig config, int rampSize, ChirpPreamble preamble) {
+        if (rampSize < 0 || rampSize * 2 > config.getUnitSize()) {
+            throw new IllegalArgumentException("rampSize=" + rampSize);
+        }
+        mConfig = config;
+        mRampSize = rampSize;
+        mRamp = new double[rampSize];
+        for (int i = 0; i < rampSize; i++) {
+            mRamp[i] = 0.5 * (1.0 - Math.cos(Math.PI * (i + 0.5) / rampSize));
+        }
+        mPhase = new int[config.getTones()];
+        mFreqs = new double[config.getTones()];
+        mDelta = new int[config.getTones()];
+        mPreamble = preamble;
+        mMarkerSize = (preamble != null) ? config.getRateSize() : config.getMarkerSize();
+    }
+
+    public int getRampSize() {
+        return mRampSize;
+    }
+
+    @Override
+    public int modulate(int[] symbols, int off, ShortBuffer out) {
+        int symbol = symbols[off];
+        int amp = mConfig.getAmplitude();
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            if (mPreamble != null) {
+                mPreamble.write(out);
+            }
+            mFreqs[0] = mConfig.getFreqIn();
+            writeTones(1, amp, mMarkerSize, 0, out);
+            mFreqs[0] = mConfig.getRateFreq();
+            writeTones(1, amp, mConfig.getRateSize(), mRampSize, out);
+            return 1;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) {
+            mFreqs[0] = mConfig.getFreqOut();
+            writeTones(1, amp, mMarkerSize, 0, out);
+            return 1;
+        }
+        // 後続のデータを最大 tones 個まとめ, 帯域 0, 1, ... に割り当てる
+        int tones = mConfig.getTones();
+        int count = 1;
+        while (count < tones && off + count < symbols.length &&
+                symbols[off + count] >= 0 && symbols[off + count] < ModemConfig.ELMS_MAX) {
+            count++;
+        }
+        for (int k = 0; k < count; k++) {
+            mFreqs[k] = mConfig.getFreq(k, symbols[off + k]);
+        }
+        writeTones(count, (double)amp / tones, mConfig.getUnitSize(), mRampSize, out);
+        return count;
+    }
+
+    // 帯域 0 から count 個の波を length サンプル分合成し, 両端 rampSize サンプルにランプをかけて出力する
+    private void writeTones(int count, double amp, int length, int rampSize, ShortBuffer out) {
+        for (int k = 0; k < count; k++) {
+            mDelta[k] = SineTable.getPhaseStep(mFreqs[k], mConfig.getSampleRate());
+        }
+        for (int i = 0; i < length; i++) {
+            double val = 0;
+            for (int k = 0; k < count; k++) {
+                val += SineTable.sin(mPhase[k]);
+                mPhase[k] += mDelta[k];
+            }
+            double gain = amp;
+            if (i < rampSize) {
+                gain *= mRamp[i];
+            } else if (i >= length - rampSize) {
+                gain *= mRamp[length - 1 - i];
+            }
+            out.put((short)(val * gain));
+        }
+    }
+
+    @Override
+    public int getSymbolLength(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            int length = mMarkerSize + mConfig.getRateSize();
+            return (mPreamble != null) ? mPreamble.getLength() + length : length;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) {
+            return mMarkerSize;
+        }
+        return mConfig.getSymbolLength(symbol);
+    }
+}
@@ -0,0 +1,109 @@
+package jp.klab.sonicmodem;
+
+import java.util.zip.CRC32;
+
+/**
+ * sonic09/sonic10 のフレーム形式
+ * 先端符丁, ペイロードの CRC32 (4バイト, ビッグエンディアン), ペイロード, 終端符丁
+ *
+ * 受信側は CRC32 を 1 バイト受信するごとに更新し, 終端符丁では比較するだけにする
+ * 受信中はバッファ・CRC32 を使い回して確保を行わず, ペイロードの配列は getPayload() で初めて作る
+ */
+public class Crc32FrameCodec implements FrameCodec {
+    private static final int CRC_SIZE = 4;
+
+    private int mValueCount = -1; // 先端符丁以降に受信したデータ数. 受信待ちなら -1
+    private long mCrc32Val = 0;
+    private boolean mHasCrc = false;
+    private int mData;
+    private final ByteAccumulator mDataBuf = new ByteAccumulator();
+    private final CRC32 mCrc = new CRC32(); // 受信中のペイロードの CRC32
+    private byte mPayload[] = null; // getPayload() で作るまで null
+
+    @Override
+    public int[] encode(byte[] payload) {
+        int symbols[] = new int[payload.length + CRC_SIZE + 2];
+        int n = 0;
+        symbols[n++] = ModemConfig.SYMBOL_IN;
+        // データ本体の CRC32
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long crcVal = crc.getValue();
+        for (int i = 0; i < CRC_SIZE; i++) {
+            symbols[n++] = (int)(crcVal >> (24-i*8)) & 0xFF;
+        }
+        // データ本体
+        for (int i = 0; i < payload.length; i++) {
+            symbols[n++] = payload[i] & 0xFF;
+        }
+        symbols[n] = ModemConfig.SYMBOL_OUT;
+        return symbols;
+    }
+
+    @Override
+    public int decode(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) { // 先端符丁
+            mValueCount = 0;
+            mCrc32Val = 0;
+            mHasCrc = false;
+            mDataBuf.reset();
+            mCrc.reset();
+            mPayload = null;
+            return RECV_START;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) { // 終端符丁
+            mValueCount = -1;
+            if (!mHasCrc) {
+                return RECV_NONE;
+            }
+            mHasCrc = false;
+            return (mCrc.getValue() == mCrc32Val) ? RECV_OK : RECV_NG;
+        } else if (symbol < 0 || mValueCount < 0) {
+            return RECV_NONE;
+        }
+        // 先端符丁直後の 4バイトは32ビットCRC
+        if (mValueCount < CRC_SIZE) {
+            mCrc32Val = (mCrc32Val << 8) | (symbol & 0xFF);
+            mValueCount++;
+            mHasCrc = (mValueCount == CRC_SIZE);
+            return RECV_NONE;
+        }
+        mValueCount++;
+        mData = symbol & 0xFF;
+        mDataBuf.append(mData);
+        mCrc.update(mData);
+        return RECV_DATA;
+    }
+
+    @Override
+    public boolean isReceiving() {
+        return mValueCount >= 0;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public int getData() {
+        return mData;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        if (mPayload == null) {
+            mPayload = mDataBuf.toByteArray();
+        }
+        return mPayload;
+    }
+
+    @Override
+    public void reset() {
+        mValueCount = -1;
+        mCrc32Val = 0;
+        mHasCrc = false;
+        mDataBuf.reset();
+        mCrc.reset();
+        mPayload = null;
+    }
+}
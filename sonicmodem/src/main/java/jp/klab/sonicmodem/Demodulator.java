@@ -0,0 +1,17 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 音声信号 (16bit PCM) からシンボルを判定する
+ */
+public interface Demodulator {
+    // 1 回の判定に用いるサンプル数
+    int getBlockSize();
+
+    // data[off] から getBlockSize() サンプル分のシンボルを symbols に格納し, その数を返す
+    // 同時送信数 2 以上では 1 ブロックから複数のデータが得られる
+    // 判定できなければ 0
+    int demodulate(short[] data, int off, int[] symbols);
+
+    // 先端符丁の検出時に呼ぶ. シンボル間で状態を持たない実装では何もしない
+    void reset();
+}
@@ -0,0 +1,173 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * FFT のピーク周波数からシンボルを判定する
+ * 同時送信数 2 以上では帯域ごとのピークからデータを判定する
+ *
+ * 窓関数を指定した場合は PowerSpectrum (float 精度, 2 のべき乗長に 0 詰め) で電力を求める
+ * 指定しなければ従来どおり double 精度・矩形窓で 1 シンボル長の FFT をかける
+ */
+public class FFTDemodulator implements Demodulator {
+    // 最も強い帯域のピークに対しこの比率未満の帯域以降は送られていないとみなす
+    private static final double RATIO_BAND_EMPTY = 0.01;
+    // 範囲を限ってピークを探すとき, 範囲内の電力に対するピークの比率がこれ未満なら雑音とみなす
+    private static final double RATIO_TONE_IN_BAND = 0.2;
+
+    private final ModemConfig mConfig;
+    private final DoubleFFT_1D mFFT; // PowerSpectrum を使う場合は null
+    private final double mFFTBuffer[];
+    private final PowerSpectrum mSpectrum;
+    private final int mFFTSize;
+    private final double mPower[]; // 周波数成分ごとの振幅の二乗
+    private int mFreq;
+    private boolean mInBandOnly = false;
+    private int mPeakStart = 0; // ピークを探す周波数成分の範囲
+    private int mPeakEnd;
+    private boolean mBandLimited = false;
+
+    public FFTDemodulator(ModemConfig config) {
+        mConfig = config;
+        mFFTSize = config.getUnitSize();
+        mFFT = new DoubleFFT_1D(mFFTSize);
+        mFFTBuffer = new double[mFFTSize];
+        mSpectrum = null;
+        mPower = new double[mFFTSize/2];
+        mPeakEnd = mFFTSize/2;
+    }
+
+    // window: PowerSpectrum.WINDOW_*
+    public FFTDemodulator(ModemConfig config, int window) {
+        mConfig = config;
+        mFFTSize = config.getUnitSize();
+        mFFT = null;
+        mFFTBuffer = null;
+        mSpectrum = new PowerSpectrum(mFFTSize, window);
+        mPower = new double[mFFTSize/2];
+        mPeakEnd = mFFTSize/2;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mFFTSize;
+    }
+
+    @Override
+    public int demodulate(short[] data, int off, int[] symbols) {
+        if (mSpectrum != null) {
+            mSpectrum.compute(data, off, mPower);
+        } else {
+            for (int i = 0; i < mFFTSize; i++) {
+                mFFTBuffer[i] = (double)data[off + i];
+            }
+            // FFT 実行
+            mFFT.realForward(mFFTBuffer);
+            for (int i = 0; i < mFFTSize/2; i++) {
+                double a = mFFTBuffer[i*2]; // 実部
+                double b = mFFTBuffer[i*2 + 1]; // 虚部
+                // 大小比較のみなので振幅の二乗 a^2 + b^2 をそのまま用いる
+                mPower[i] = a*a + b*b;
+            }
+        }
+
+        // 周波数成分ごとの電力からピーク周波数成分の要素番号を得る
+        double maxAmp = 0;
+        double bandPower = 0;
+        int index = 0;
+        for (int i = mPeakStart; i < mPeakEnd; i++) {
+            double r = mPower[i];
+            bandPower += r;
+            if (r > maxAmp) {
+                maxAmp = r;
+                index = i;
+            }
+        }
+        if (mBandLimited && maxAmp < bandPower * RATIO_TONE_IN_BAND) {
+            return 0;
+        }
+        // ピーク周波数を求める
+        mFreq = index * mConfig.getSampleRate() / mFFTSize;
+        int symbol = mConfig.getSymbol(mFreq);
+        if (symbol == ModemConfig.SYMBOL_NONE) {
+            if (!mInBandOnly) {
+                return 0;
+            }
+            // 帯域外の雑音の方が強くても帯域内のピークをデータとする
+            int start = mConfig.getFreq(0, 0) * mFFTSize / mConfig.getSampleRate();
+            double bandMax = 0;
+            for (int i = start; i < start + ModemConfig.ELMS_MAX * mConfig.getTones(); i++) {
+                bandMax = Math.max(bandMax, mPower[i]);
+            }
+            return demodulateBands(symbols, bandMax);
+        }
+        if (mConfig.getTones() == 1 || symbol >= ModemConfig.ELMS_MAX) {
+            symbols[0] = symbol;
+            return 1;
+        }
+        return demodulateBands(symbols, maxAmp);
+    }
+
+    // 帯域ごとのピークからデータを判定する
+    // 末尾の帯域はデータの端数により送られていない場合がある
+    private int demodulateBands(int[] symbols, double maxAmp) {
+        int tones = mConfig.getTones();
+        int base = mConfig.getFreq(0, 0) * mFFTSize / mConfig.getSampleRate();
+        for (int k = 0; k < tones; k++) {
+            int start = base + ModemConfig.ELMS_MAX * k;
+            int peak = start;
+            for (int i = start + 1; i < start + ModemConfig.ELMS_MAX; i++) {
+                if (mPower[i] > mPower[peak]) {
+                    peak = i;
+                }
+            }
+            if (mPower[peak] < maxAmp * RATIO_BAND_EMPTY) {
+                return k;
+            }
+            symbols[k] = peak - start;
+        }
+        return tones;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    // true なら帯域外にピークがあってもデータを返す (シンボルの欠落を防ぐ)
+    // 誤りを後段の軟判定で扱う畳み込み符号化モードで用いる
+    public void setInBandOnly(boolean inBandOnly) {
+        mInBandOnly = inBandOnly;
+    }
+
+    // true なら終端符丁からデータの最高周波数までの範囲のみでピークを探す
+    // 全二重モードで自分の発信する別の帯域の音を無視するために用いる
+    // 範囲内で際立ったピークがなければ判定結果なしとする
+    public void setBandLimited(boolean bandLimited) {
+        mBandLimited = bandLimited;
+        if (bandLimited) {
+            mPeakStart = mConfig.getFreqOut() * mFFTSize / mConfig.getSampleRate();
+            mPeakEnd = Math.min(mFFTSize/2, mConfig.getFreqMax() * mFFTSize / mConfig.getSampleRate() + 1);
+        } else {
+            mPeakStart = 0;
+            mPeakEnd = mFFTSize/2;
+        }
+    }
+
+    // 直前の demodulate で復調した band 番目の帯域の各データ値の尤度として,
+    // 候補 ELMS_MAX 波の振幅の二乗を合計 1 に正規化して likelihoods に返す
+    public void getLikelihoods(int band, double[] likelihoods) {
+        int start = mConfig.getFreq(band, 0) * mFFTSize / mConfig.getSampleRate();
+        double sum = 0;
+        for (int i = 0; i < ModemConfig.ELMS_MAX; i++) {
+            sum += mPower[start + i];
+        }
+        for (int i = 0; i < ModemConfig.ELMS_MAX; i++) {
+            likelihoods[i] = (sum > 0) ? mPower[start + i] / sum : 1.0 / ModemConfig.ELMS_MAX;
+        }
+    }
+
+    // 直前の demodulate で得たピーク周波数
+    public int getFreq() {
+        return mFreq;
+    }
+}
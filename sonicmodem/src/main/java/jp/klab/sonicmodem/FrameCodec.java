@@ -0,0 +1,34 @@
+package jp.klab.sonicmodem;
+
+/**
+ * ペイロードとシンボル列の相互変換
+ * 受信側はシンボルを 1 つずつ decode に与える
+ */
+public interface FrameCodec {
+    int RECV_NONE  = 0;
+    int RECV_START = 1; // フレーム開始
+    int RECV_DATA  = 2; // データを 1 バイト受信
+    int RECV_OK    = 3; // フレーム終了. 誤りなし
+    int RECV_NG    = 4; // フレーム終了. 誤りあり
+
+    // 送信するシンボル列を返す
+    int[] encode(byte[] payload);
+
+    // 受信したシンボルを与え RECV_* のいずれかを返す
+    int decode(int symbol);
+
+    // フレームを受信中か
+    boolean isReceiving();
+
+    // 受信中・直前のフレームで RECV_DATA を返しているか
+    // false ならペイロードは RECV_OK の後に getPayload() で受け取る
+    boolean isStreaming();
+
+    // RECV_DATA で受信したバイト値
+    int getData();
+
+    // 直前のフレームで受信したペイロード
+    byte[] getPayload();
+
+    void reset();
+}
@@ -0,0 +1,73 @@
+package jp.klab.sonicmodem;
+
+/**
+ * Goertzel アルゴリズムによる周波数判定
+ * 候補となる周波数成分のエネルギーのみを求める
+ */
+public class GoertzelBank {
+    private final int mSize;
+    private final int mFreqs[];
+    private final double mCoeffs[];
+    private final double mEnergies[];
+
+    // freqs: 判定対象の周波数群, size: 1シンボルのサンプル数
+    public GoertzelBank(int[] freqs, int sampleRate, int size) {
+        mSize = size;
+        mFreqs = freqs.clone();
+        mCoeffs = new double[freqs.length];
+        mEnergies = new double[freqs.length];
+        for (int i = 0; i < freqs.length; i++) {
+            // 周波数を最寄りの DFT ビンへ丸める
+            int k = (int)Math.round((double)freqs[i] * size / sampleRate);
+            mCoeffs[i] = 2.0 * Math.cos(2.0 * Math.PI * k / size);
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getFreq(int index) {
+        return mFreqs[index];
+    }
+
+    // data[off] から getSize() サンプル分について各候補周波数のエネルギー (振幅の二乗) を求め
+    // ピーク成分の要素番号を返す
+    // 入力のエネルギー総量に対しピーク成分が ratio 未満なら -1 を返す
+    public int detect(short[] data, int off, double ratio) {
+        double total = 0;
+        for (int i = 0; i < mSize; i++) {
+            double x = data[off + i];
+            total += x * x;
+        }
+        double maxEnergy = 0;
+        int index = -1;
+        for (int j = 0; j < mCoeffs.length; j++) {
+            double c = mCoeffs[j];
+            double s1 = 0;
+            double s2 = 0;
+            for (int i = 0; i < mSize; i++) {
+                double s = data[off + i] + c * s1 - s2;
+                s2 = s1;
+                s1 = s;
+            }
+            // |X[k]|^2 を sqrt なしで得る
+            double e = s1 * s1 + s2 * s2 - c * s1 * s2;
+            mEnergies[j] = e;
+            if (e > maxEnergy) {
+                maxEnergy = e;
+                index = j;
+            }
+        }
+        // 純音なら |X[k]|^2 = (N/2) * Σx^2
+        if (index < 0 || maxEnergy < ratio * total * mSize / 2) {
+            return -1;
+        }
+        return index;
+    }
+
+    // 直前の detect で求めた各候補周波数のエネルギー
+    public double[] getEnergies() {
+        return mEnergies;
+    }
+}
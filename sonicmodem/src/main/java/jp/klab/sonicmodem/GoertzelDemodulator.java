@@ -0,0 +1,40 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 指定したシンボルのみを Goertzel アルゴリズムで判定する
+ * 候補が少ない場合 (先端・終端符丁の待ち受けなど) は FFT より軽い
+ */
+public class GoertzelDemodulator implements Demodulator {
+    private static final double THRESHOLD_TONE_RATIO = 0.2;
+
+    private final int mSymbols[];
+    private final GoertzelBank mBank;
+
+    public GoertzelDemodulator(ModemConfig config, int[] symbols) {
+        mSymbols = symbols.clone();
+        int freqs[] = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            freqs[i] = config.getFreq(symbols[i]);
+        }
+        mBank = new GoertzelBank(freqs, config.getSampleRate(), config.getUnitSize());
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBank.getSize();
+    }
+
+    @Override
+    public int demodulate(short[] data, int off, int[] symbols) {
+        int index = mBank.detect(data, off, THRESHOLD_TONE_RATIO);
+        if (index < 0) {
+            return 0;
+        }
+        symbols[0] = mSymbols[index];
+        return 1;
+    }
+
+    @Override
+    public void reset() {
+    }
+}
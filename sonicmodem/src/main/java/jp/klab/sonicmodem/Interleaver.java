@@ -0,0 +1,47 @@
+package jp.klab.sonicmodem;
+
+/**
+ * ブロックインターリーバ
+ * len バイトを depth 行 × ceil(len / depth) 列の表に行ごとに書き込み, 列ごとに読み出す
+ * 最終行が短い場合は欠けたマスを飛ばすため, 出力長は入力長と同じ
+ * 行を符号語に合わせておけば, 連続する depth シンボルまでのバースト誤りは別々の符号語に分散する
+ *
+ * 呼び出し側の配列のみを用い, 作業領域を確保しない
+ */
+public class Interleaver {
+    public static final int DEPTH_MAX = 16;
+
+    public static boolean isValidDepth(int depth) {
+        return depth >= 1 && depth <= DEPTH_MAX;
+    }
+
+    // src[srcOff] からの len バイトを並べ替えて dst[dstOff] から書き込む
+    public static void interleave(byte[] src, int srcOff, byte[] dst, int dstOff, int len, int depth) {
+        if (depth <= 1) {
+            System.arraycopy(src, srcOff, dst, dstOff, len);
+            return;
+        }
+        int cols = (len + depth - 1) / depth;
+        int n = dstOff;
+        for (int c = 0; c < cols; c++) {
+            for (int idx = c; idx < len; idx += cols) {
+                dst[n++] = src[srcOff + idx];
+            }
+        }
+    }
+
+    // interleave の逆変換
+    public static void deinterleave(byte[] src, int srcOff, byte[] dst, int dstOff, int len, int depth) {
+        if (depth <= 1) {
+            System.arraycopy(src, srcOff, dst, dstOff, len);
+            return;
+        }
+        int cols = (len + depth - 1) / depth;
+        int n = srcOff;
+        for (int c = 0; c < cols; c++) {
+            for (int idx = c; idx < len; idx += cols) {
+                dst[dstOff + idx] = src[n++];
+            }
+        }
+    }
+}
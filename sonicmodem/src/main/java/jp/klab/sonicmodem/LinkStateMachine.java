@@ -0,0 +1,231 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 半二重リンクの送受信の切り替え (ターンテイキング)
+ * 集音側は集音ブロックごとに判定したシンボルを onBlock() で与え,
+ * 発信側は awaitTurn() で自分の番を待って発信し, 終えたら endTransmit() を呼ぶ
+ *
+ * 終端符丁 (FREQ_OUT) を検出した後, それが途切れた時点をフレームの終わりとする
+ * そこからガード時間 (反響の減衰と相手の送受信切り替えの猶予) 内に先端符丁が来なければ
+ * 自分の番とし, 来れば続けて送られたフレーム (ACK に続くデータなど) を受信する
+ * 時間は onBlock() に与えたサンプル数で数えるため, 集音の遅れに左右されない
+ * (発信中も集音を続けて onBlock() を呼ぶものとする)
+ *
+ * 終端符丁を取りこぼすと受信中のままになるため, 先端符丁から 1 フレームの時間の上限
+ * (setFrameTimeout) を過ぎれば受信待ちに戻り自分の番とする. 相手は応答を待っている
+ *
+ * 発信を終えてから応答の時間 (setResponseTimeout) 内に相手の先端符丁が来なければ
+ * checkResponseTimeout() が true を返す. 発信側はフレームかその応答が失われたとみなして再送する
+ *
+ * 全二重 (送受信で帯域を分ける) なら発信中も受信を続け, 相手のフレームが終われば
+ * 発信中でも次の自分の番とする. 受信中でもこちらから送り始められる
+ */
+public class LinkStateMachine {
+    public static final int STATE_IDLE         = 0; // 受信待ち
+    public static final int STATE_RECEIVING    = 1; // フレーム受信中
+    public static final int STATE_POSTAMBLE    = 2; // 終端符丁を受信中
+    public static final int STATE_TURNAROUND   = 3; // フレーム終了後のガード時間
+    public static final int STATE_TRANSMITTING = 4; // 発信中
+    public static final int GUARD_MS_DEFAULT = 200;
+    public static final int RESPONSE_TIMEOUT_MS_DEFAULT = 3000;
+    public static final int FRAME_TIMEOUT_MS_DEFAULT = 10000;
+
+    private final int mGuardSize;
+    private final boolean mFullDuplex;
+    private int mResponseSize = toSamples(RESPONSE_TIMEOUT_MS_DEFAULT);
+    private int mFrameSize = toSamples(FRAME_TIMEOUT_MS_DEFAULT);
+    private boolean mTransmitting = false;
+    private int mState = STATE_IDLE;
+    private int mGuardRemain;
+    private boolean mTurn = false; // 自分の番になり, まだ発信を始めていない
+    private long mClock = 0; // onBlock() に与えたサンプル数の累計
+    private long mTransmitEnd = -1; // 直前に発信を終えた時点
+    private long mReceiveStart = 0; // 受信中のフレームの先端符丁を受けた時点
+    private long mRoundTrip = -1;
+
+    public LinkStateMachine() {
+        this(GUARD_MS_DEFAULT);
+    }
+
+    // guardMs: フレーム終了から自分の番とするまでのガード時間
+    public LinkStateMachine(int guardMs) {
+        this(guardMs, false);
+    }
+
+    // fullDuplex: 全二重なら true
+    public LinkStateMachine(int guardMs, boolean fullDuplex) {
+        if (guardMs < 0) {
+            throw new IllegalArgumentException("guardMs=" + guardMs);
+        }
+        mGuardSize = toSamples(guardMs);
+        mFullDuplex = fullDuplex;
+    }
+
+    private static int toSamples(int ms) {
+        return (int)((long)ModemConfig.SAMPLE_RATE * ms / 1000);
+    }
+
+    // 先端符丁から終端符丁の途切れまでの時間の上限. 最も長いフレームより長くする
+    public synchronized void setFrameTimeout(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("timeoutMs=" + timeoutMs);
+        }
+        mFrameSize = toSamples(timeoutMs);
+    }
+
+    // 発信を終えてから相手の応答の先端符丁を待つ時間
+    // 相手のガード時間と送受信の切り替えより十分長くする
+    public synchronized void setResponseTimeout(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("timeoutMs=" + timeoutMs);
+        }
+        mResponseSize = toSamples(timeoutMs);
+    }
+
+    public boolean isFullDuplex() {
+        return mFullDuplex;
+    }
+
+    public int getGuardSize() {
+        return mGuardSize;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isTransmitting() {
+        return mTransmitting;
+    }
+
+    // samples サンプルの集音ブロックで判定したシンボル (判定結果なしなら SYMBOL_NONE) を与える
+    // 半二重では発信中は自分の音を拾うため無視する
+    public synchronized int onBlock(int symbol, int samples) {
+        mClock += samples;
+        if (symbol == ModemConfig.SYMBOL_IN && mState != STATE_TRANSMITTING) {
+            // フレームの時間は先端符丁から数える. 受信中に来たものは終端符丁を取りこぼした次のフレームとする
+            mReceiveStart = mClock;
+        }
+        switch (mState) {
+            case STATE_IDLE:
+                if (symbol == ModemConfig.SYMBOL_IN) {
+                    mState = STATE_RECEIVING;
+                }
+                break;
+            case STATE_RECEIVING:
+                if (symbol == ModemConfig.SYMBOL_OUT) {
+                    mState = STATE_POSTAMBLE;
+                }
+                checkFrameTimeout();
+                break;
+            case STATE_POSTAMBLE:
+                if (symbol == ModemConfig.SYMBOL_IN) {
+                    mState = STATE_RECEIVING;
+                } else if (symbol == ModemConfig.SYMBOL_OUT) {
+                    checkFrameTimeout();
+                } else {
+                    // 終端符丁が途切れた. このブロックもガード時間に含める
+                    mState = STATE_TURNAROUND;
+                    mGuardRemain = mGuardSize - samples;
+                    checkGuard();
+                }
+                break;
+            case STATE_TURNAROUND:
+                if (symbol == ModemConfig.SYMBOL_IN) {
+                    mState = STATE_RECEIVING;
+                } else {
+                    mGuardRemain -= samples;
+                    checkGuard();
+                }
+                break;
+        }
+        return mState;
+    }
+
+    // 終端符丁の途切れを受けないまま 1 フレームの時間の上限を過ぎたら, 受信待ちに戻り自分の番とする
+    private void checkFrameTimeout() {
+        if (mClock - mReceiveStart >= mFrameSize) {
+            mState = STATE_IDLE;
+            giveTurn();
+        }
+    }
+
+    private void checkGuard() {
+        if (mGuardRemain <= 0) {
+            mState = STATE_IDLE;
+            giveTurn();
+        }
+    }
+
+    private void giveTurn() {
+        if (mTransmitEnd >= 0 && !mTransmitting) {
+            mRoundTrip = mClock - mTransmitEnd;
+            mTransmitEnd = -1;
+        }
+        mTurn = true;
+        notifyAll();
+    }
+
+    // 相手のフレームを受信中でなければ自分の番にする (こちらから送り始める場合)
+    // 全二重なら受信中でもよい
+    public synchronized boolean requestTurn() {
+        if (mState != STATE_IDLE && !mFullDuplex) {
+            return false;
+        }
+        giveTurn();
+        return true;
+    }
+
+    // 自分の番になるまで最大 timeoutMs 待ち, 発信中の状態に移る. 0 なら待たない
+    // 自分の番にならなければ false を返す
+    public synchronized boolean awaitTurn(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mTurn) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        mTurn = false;
+        mTransmitting = true;
+        if (!mFullDuplex) {
+            mState = STATE_TRANSMITTING;
+        }
+        return true;
+    }
+
+    // 発信を終え受信待ちに戻る
+    public synchronized void endTransmit() {
+        mTransmitEnd = mClock;
+        mTransmitting = false;
+        if (!mFullDuplex) {
+            mState = STATE_IDLE;
+        }
+        notifyAll();
+    }
+
+    // 発信を終えてから応答の時間内に相手の先端符丁を受信せず, 受信待ちのままか
+    // 発信ごとに 1 回だけ true を返す. 再送するなら requestTurn() で自分の番にする
+    public synchronized boolean checkResponseTimeout() {
+        if (mState != STATE_IDLE || mTransmitting || mTransmitEnd < 0 ||
+                mClock - mTransmitEnd < mResponseSize) {
+            return false;
+        }
+        mTransmitEnd = -1;
+        return true;
+    }
+
+    // 直前の発信の終了から相手の応答を受信し終えて自分の番になるまでのサンプル数. 未計測なら -1
+    public synchronized long getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    public synchronized void reset() {
+        mState = STATE_IDLE;
+        mTurn = false;
+        mTransmitting = false;
+        mTransmitEnd = -1;
+        notifyAll();
+    }
+}
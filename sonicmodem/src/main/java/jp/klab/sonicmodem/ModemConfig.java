@@ -0,0 +1,221 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 変復調パラメータ
+ * 周波数とシンボル (0-255 のデータ値および先端・終端符丁) の対応を定める
+ *
+ * 同時送信数 (tones) が 2 以上の場合は 256 波ずつの帯域を tones 個並べ,
+ * 1 シンボル時間に tones バイトを送る. 同時送信数は先端符丁の周波数で示す
+ *
+ * シンボル長 (symbolMs) は 100/50/20msec から選ぶ. 周波数間隔は FFT の分解能に合わせ
+ * 1000 / symbolMs Hz とする. シンボル長は先端符丁の直後に 100msec の
+ * レートバイト (値はシンボル長の msec) として送る
+ *
+ * 畳み込み符号化モード (coded) ではレートバイトに RATE_CODED を加えて示す
+ */
+public class ModemConfig {
+    public static final int SAMPLE_RATE = 44100;
+    public static final int FREQ_BASE_LOW = 500;
+    public static final int FREQ_BASE_HIGH = 14000;
+    public static final int FREQ_STEP = 10;
+    public static final int ELMS_MAX = 256;
+    public static final int TONES[] = {1, 2, 4, 8}; // 同時送信数の選択肢
+    public static final int SYMBOL_MS[] = {100, 50, 20}; // シンボル長 (msec) の選択肢
+    public static final int SYMBOL_MS_DEFAULT = 100;
+    public static final int RATE_CODED = 0x80; // レートバイトの畳み込み符号化フラグ
+
+    public static final int SYMBOL_NONE = -1;
+    public static final int SYMBOL_IN = ELMS_MAX; // 先端符丁
+    public static final int SYMBOL_OUT = ELMS_MAX + 1; // 終端符丁
+
+    private final int mSampleRate;
+    private final int mFreqBase;
+    private final int mFreqStep;
+    private final int mAmplitude;
+    private final int mTones;
+    private final int mSymbolMs;
+    private final boolean mCoded;
+    private final int mUnitSize;
+    private final int mMarkerSize;
+
+    // 受信側用. 振幅は使わない
+    public ModemConfig(int freqBase) {
+        this(freqBase, 0);
+    }
+
+    public ModemConfig(int freqBase, int amplitude) {
+        this(freqBase, amplitude, 1);
+    }
+
+    public ModemConfig(int freqBase, int amplitude, int tones) {
+        this(freqBase, amplitude, tones, SYMBOL_MS_DEFAULT);
+    }
+
+    public ModemConfig(int freqBase, int amplitude, int tones, int symbolMs) {
+        this(freqBase, amplitude, tones, symbolMs, false);
+    }
+
+    public ModemConfig(int freqBase, int amplitude, int tones, int symbolMs, boolean coded) {
+        if (!isValidSymbolMs(symbolMs)) {
+            throw new IllegalArgumentException("symbolMs=" + symbolMs);
+        }
+        if (getFreqIn(freqBase, tones) < 0 || tones > getMaxTones(freqBase, symbolMs)) {
+            throw new IllegalArgumentException("tones=" + tones);
+        }
+        mSampleRate = SAMPLE_RATE;
+        mFreqBase = freqBase;
+        mFreqStep = 1000 / symbolMs;
+        mAmplitude = amplitude;
+        mTones = tones;
+        mSymbolMs = symbolMs;
+        mCoded = coded;
+        mUnitSize = SAMPLE_RATE * symbolMs / 1000;
+        mMarkerSize = SAMPLE_RATE; // 1秒分
+    }
+
+    public static boolean isValidSymbolMs(int symbolMs) {
+        for (int i = 0; i < SYMBOL_MS.length; i++) {
+            if (SYMBOL_MS[i] == symbolMs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 先端符丁の周波数. 同時送信数 1, 2, 4, 8 に対し 10Hz ずつずらす
+    public static int getFreqIn(int freqBase, int tones) {
+        for (int i = 0; i < TONES.length; i++) {
+            if (TONES[i] == tones) {
+                return freqBase - 100 + 20 + FREQ_STEP * i;
+            }
+        }
+        return -1;
+    }
+
+    // 先端符丁の周波数から同時送信数を求める. 該当しなければ 0
+    public static int getTones(int freqBase, int freqIn) {
+        for (int i = 0; i < TONES.length; i++) {
+            if (getFreqIn(freqBase, TONES[i]) == freqIn) {
+                return TONES[i];
+            }
+        }
+        return 0;
+    }
+
+    // 全帯域がナイキスト周波数未満に収まる最大の同時送信数
+    public static int getMaxTones(int freqBase) {
+        return getMaxTones(freqBase, SYMBOL_MS_DEFAULT);
+    }
+
+    // シンボル長 symbolMs で全帯域がナイキスト周波数未満に収まる最大の同時送信数
+    // 収まらなければ 0
+    public static int getMaxTones(int freqBase, int symbolMs) {
+        int max = 0;
+        for (int i = 0; i < TONES.length; i++) {
+            if (freqBase + 1000 / symbolMs * (ELMS_MAX * TONES[i] - 1) < SAMPLE_RATE / 2) {
+                max = TONES[i];
+            }
+        }
+        return max;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getFreqBase() {
+        return mFreqBase;
+    }
+
+    public int getFreqStep() {
+        return mFreqStep;
+    }
+
+    public int getAmplitude() {
+        return mAmplitude;
+    }
+
+    // 1 シンボル時間に送るバイト数
+    public int getTones() {
+        return mTones;
+    }
+
+    // シンボル長 (msec)
+    public int getSymbolMs() {
+        return mSymbolMs;
+    }
+
+    // データ 1 シンボルのサンプル数
+    public int getUnitSize() {
+        return mUnitSize;
+    }
+
+    // データが畳み込み符号化されているか
+    public boolean isCoded() {
+        return mCoded;
+    }
+
+    // レートバイトの値
+    public int getRateValue() {
+        return (mCoded) ? (mSymbolMs | RATE_CODED) : mSymbolMs;
+    }
+
+    // レートバイトのサンプル数. シンボル長によらず 100msec
+    public int getRateSize() {
+        return SAMPLE_RATE/10;
+    }
+
+    // レートバイトの周波数. 周波数間隔は 100msec 時のもの
+    public int getRateFreq() {
+        return mFreqBase + FREQ_STEP * getRateValue();
+    }
+
+    // 先端・終端符丁のサンプル数
+    public int getMarkerSize() {
+        return mMarkerSize;
+    }
+
+    public int getFreqOut() {
+        return mFreqBase - 100;
+    }
+
+    public int getFreqIn() {
+        return getFreqIn(mFreqBase, mTones);
+    }
+
+    public int getFreqMax() {
+        return mFreqBase + mFreqStep * (ELMS_MAX * mTones - 1);
+    }
+
+    // シンボルに対応する周波数
+    public int getFreq(int symbol) {
+        if (symbol == SYMBOL_IN) {
+            return getFreqIn();
+        } else if (symbol == SYMBOL_OUT) {
+            return getFreqOut();
+        }
+        return getFreq(0, symbol);
+    }
+
+    // band 番目の帯域でデータ値 value を表す周波数
+    public int getFreq(int band, int value) {
+        return mFreqBase + mFreqStep * (ELMS_MAX * band + value);
+    }
+
+    // 周波数に対応するシンボル. 該当しなければ SYMBOL_NONE
+    public int getSymbol(int freq) {
+        if (freq == getFreqIn()) {
+            return SYMBOL_IN;
+        } else if (freq == getFreqOut()) {
+            return SYMBOL_OUT;
+        } else if (freq >= mFreqBase && freq <= getFreqMax()) {
+            return ((freq - mFreqBase) / mFreqStep) % ELMS_MAX;
+        }
+        return SYMBOL_NONE;
+    }
+
+    // シンボルの長さ (サンプル数)
+    public int getSymbolLength(int symbol) {
+        return (symbol == SYMBOL_IN || symbol == SYMBOL_OUT) ? mMarkerSize : mUnitSize;
+    }
+}
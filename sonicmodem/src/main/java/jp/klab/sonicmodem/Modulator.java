@@ -0,0 +1,16 @@
+package jp.klab.sonicmodem;
+
+import java.nio.ShortBuffer;
+
+/**
+ * シンボルを音声信号 (16bit PCM) に変換する
+ */
+public interface Modulator {
+    // symbols[off] 以降のシンボルの信号を 1 シンボル時間分 out の現在位置から書き込み,
+    // 消費したシンボル数を返す (同時送信数 2 以上ではデータを最大その数だけまとめて送る)
+    // out の残り容量は getSymbolLength(symbols[off]) 以上であること
+    int modulate(int[] symbols, int off, ShortBuffer out);
+
+    // symbol の信号のサンプル数
+    int getSymbolLength(int symbol);
+}
@@ -0,0 +1,278 @@
+package jp.klab.sonicmodem;
+
+import java.util.Arrays;
+
+/**
+ * 1 つの集音から複数の帯域 (低音域と超音波など) のフレームを同時に受信する
+ * 帯域ごとに独立した BandReceiver (検出・復調・復号の状態機械) を持ち,
+ * 集音したブロックを全帯域へ与える. 送信側がどちらのモードでも切り替えなしに受信できる
+ *
+ * 帯域ごとの処理 (相関によるチャープ検出, FFT, 誤り訂正・CRC) は互いに独立なので
+ * 呼び出し側のスレッドと常駐するワーカースレッドで分担して並行に行い, 全帯域の処理を終えてから
+ * process から戻る. 集音ブロックごとにタスクやスレッドを作らず, 待ち合わせも確保を行わない
+ * 帯域ごとのシンボル境界は送信側ごとに異なるため, FFT は帯域ごとにブロックを揃えてかける
+ * Listener は呼び出し側のスレッドかワーカースレッドから呼ばれる (1 つの帯域は常に同じスレッド)
+ *
+ * FDMA のチャネル (ChannelPlan) を受信する場合, 受信待ちのチャープの検出は全チャネル分を
+ * 呼び出し側のスレッドでまとめて行う. 入力の FFT は 1 回のみ求めて全チャネルの基準波形で共有し
+ * (PreambleDetector), 検出したチャネルの BandReceiver へ以降のサンプルを振り分ける
+ * 受信中のチャネルの復調はチャープに揃えたブロックごとに, 帯域と同じくワーカースレッドで行う
+ */
+public class MultiBandReceiver {
+    private final BandReceiver mReceivers[];
+    private final PreambleDetector mDetector; // チャネルを受信する場合の全チャネル共通の検出器. それ以外は null
+    private final long mHandled[]; // チャネルごとに受信を始めたチャープの境界の位置
+    private final short mPending[]; // 検出したチャープの境界以降のサンプル
+    private final Thread mWorkers[]; // 呼び出し側のスレッドの他に処理を分担するスレッド
+    private final int mThreads; // 分担するスレッド数 (呼び出し側を含む)
+    private final Object mLock = new Object();
+    // 以下は mLock で保護する. ワーカーへの入力の受け渡しと完了の待ち合わせに使う
+    private short mData[];
+    private int mOff;
+    private int mLen;
+    private boolean mSilence;
+    private int mGeneration = 0; // ワーカーへ入力を与えた回数
+    private int mRunning = 0; // 処理中のワーカー数
+    private RuntimeException mError = null; // ワーカーで起きた例外
+    private boolean mShutdown = false;
+
+    // 帯域数と同じ数のスレッドで処理する
+    public MultiBandReceiver(int[] freqBases, BandReceiver.Listener listener) {
+        this(freqBases, freqBases.length, listener);
+    }
+
+    public MultiBandReceiver(int[] freqBases, int threads, BandReceiver.Listener listener) {
+        this(createReceivers(freqBases, listener), null, threads);
+    }
+
+    // plan の全チャネルを受信する. 帯域の数だけのスレッドは使わず, threads で指定する
+    public MultiBandReceiver(ChannelPlan plan, int threads, BandReceiver.Listener listener) {
+        this(createReceivers(plan, listener), createDetector(plan), threads);
+    }
+
+    private MultiBandReceiver(BandReceiver[] receivers, PreambleDetector detector, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads=" + threads);
+        }
+        mReceivers = receivers;
+        mDetector = detector;
+        mHandled = new long[receivers.length];
+        mPending = (detector != null) ? new short[detector.getLatency()] : null;
+        mThreads = Math.min(threads, receivers.length);
+        mWorkers = new Thread[mThreads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Worker(i + 1), "MultiBandReceiver");
+            // 集音を止めずにアプリを終えられるよう残さない
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+        reset();
+    }
+
+    // index 番目の分担 (index, index + mThreads, ... 番目の帯域) を処理し続けるワーカー
+    private class Worker implements Runnable {
+        private final int mIndex;
+
+        Worker(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            int generation = 0;
+            while (true) {
+                short data[];
+                int off;
+                int len;
+                boolean silence;
+                synchronized (mLock) {
+                    while (mGeneration == generation && !mShutdown) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // 終了は shutdown で行う. 途中で抜けると dispatch が完了を待ち続ける
+                        }
+                    }
+                    if (mShutdown) {
+                        return;
+                    }
+                    generation = mGeneration;
+                    data = mData;
+                    off = mOff;
+                    len = mLen;
+                    silence = mSilence;
+                }
+                RuntimeException error = null;
+                try {
+                    processShare(mIndex, data, off, len, silence);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                synchronized (mLock) {
+                    if (error != null && mError == null) {
+                        mError = error;
+                    }
+                    if (--mRunning == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private static BandReceiver[] createReceivers(int[] freqBases, BandReceiver.Listener listener) {
+        if (freqBases.length == 0) {
+            throw new IllegalArgumentException("freqBases.length=0");
+        }
+        BandReceiver receivers[] = new BandReceiver[freqBases.length];
+        for (int i = 0; i < freqBases.length; i++) {
+            receivers[i] = new BandReceiver(freqBases[i], listener);
+        }
+        return receivers;
+    }
+
+    private static BandReceiver[] createReceivers(ChannelPlan plan, BandReceiver.Listener listener) {
+        BandReceiver receivers[] = new BandReceiver[plan.getChannelCount()];
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = new BandReceiver(plan, i, listener);
+        }
+        return receivers;
+    }
+
+    // チャネルごとのチャープを基準波形とする. 長さはいずれも PREAMBLE_MS 分
+    private static PreambleDetector createDetector(ChannelPlan plan) {
+        short templates[][] = new short[plan.getChannelCount()][];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = plan.getPreamble(i, Short.MAX_VALUE).getWave();
+        }
+        return new PreambleDetector(templates);
+    }
+
+    public int getBandCount() {
+        return mReceivers.length;
+    }
+
+    public BandReceiver getReceiver(int index) {
+        return mReceivers[index];
+    }
+
+    // いずれかの帯域でフレームを受信中か
+    public boolean isReceiving() {
+        for (BandReceiver receiver : mReceivers) {
+            if (receiver.isReceiving()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reset() {
+        for (BandReceiver receiver : mReceivers) {
+            receiver.reset();
+        }
+        if (mDetector != null) {
+            mDetector.reset();
+        }
+        Arrays.fill(mHandled, -1);
+    }
+
+    // data[off] から len サンプルを全帯域へ入力し, 全帯域の処理を終えてから戻る
+    // silence: 無音と判定したブロックなら true (BandReceiver.process)
+    public void process(short[] data, int off, int len, boolean silence)
+            throws InterruptedException {
+        if (mDetector == null) {
+            dispatch(data, off, len, silence);
+            return;
+        }
+        if (silence && !isReceiving()) {
+            mDetector.reset();
+            Arrays.fill(mHandled, -1);
+            return;
+        }
+        int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            // チャープを検出した時点までを受信中のチャネルへ与えてから, 検出したチャネルの受信を始める
+            int count = mDetector.process(data, pos, end - pos);
+            if (isReceiving()) {
+                dispatch(data, pos, count, silence);
+            }
+            pos += count;
+            for (int i = 0; i < mReceivers.length; i++) {
+                long boundary = mDetector.getBoundary(i);
+                if (boundary > mHandled[i]) {
+                    mHandled[i] = boundary;
+                    if (!mReceivers[i].isReceiving()) {
+                        int pending = mDetector.copySinceBoundary(i, mPending);
+                        mReceivers[i].startAfterPreamble(mPending, 0, pending);
+                    }
+                }
+            }
+        }
+    }
+
+    // index 番目の分担の BandReceiver へ data[off] から len サンプルを与える
+    private void processShare(int index, short[] data, int off, int len, boolean silence) {
+        for (int i = index; i < mReceivers.length; i += mThreads) {
+            mReceivers[i].process(data, off, len, silence);
+        }
+    }
+
+    // data[off] から len サンプルを全ての BandReceiver へ与える
+    // 呼び出し側のスレッドは 0 番目の分担を処理し, ワーカーの完了を待ってから戻る
+    // 入力と各 BandReceiver の状態は mLock の受け渡しでスレッド間に見える
+    private void dispatch(short[] data, int off, int len, boolean silence)
+            throws InterruptedException {
+        if (mWorkers.length == 0) {
+            processShare(0, data, off, len, silence);
+            return;
+        }
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("shutdown");
+            }
+            mData = data;
+            mOff = off;
+            mLen = len;
+            mSilence = silence;
+            mRunning = mWorkers.length;
+            mError = null;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        RuntimeException error = null;
+        try {
+            processShare(0, data, off, len, silence);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        boolean interrupted = false;
+        synchronized (mLock) {
+            // ワーカーが処理中の BandReceiver を残して戻らない
+            while (mRunning > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (error == null) {
+                error = mError;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+    }
+
+    // ワーカースレッドを終了する. 以降 process は呼べない
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 雑音レベルに対する SN 比による無音判定
+ * 集音ブロックごとの平均電力 (実効値の二乗) から雑音レベルを推定し,
+ * それより snrDb 以上大きいブロックを「音あり」とする
+ *
+ * 雑音レベルは最小値追跡で求める. 平均電力が下回れば速やかに下げ,
+ * 上回る間は RISE_DB_PER_SEC の速さでゆっくり上げる
+ * 静かな部屋でも騒がしい部屋でも, 数秒で周囲の雑音に合わせた閾値となる
+ * 信号が長く続くと雑音レベルが信号に近づくため, フレームの受信中は判定を使わないものとする
+ *
+ * 音ありの後 holdMs の間は音ありのままとし, 符丁の切れ目などで閉じないようにする
+ * 受信待ちの間は音なしのブロックの復調 (FFT, 相関など) を省き, 待ち受け時の処理量を抑える
+ */
+public class NoiseGate {
+    public static final double SNR_DB_DEFAULT = 10.0;
+    public static final int HOLD_MS_DEFAULT = 200;
+    private static final double RISE_DB_PER_SEC = 3.0; // 雑音レベルを上げる速さ
+    private static final double FALL_RATE = 0.5; // 雑音レベルを下げる際に平均電力へ近づける割合
+    private static final double POWER_MIN = 10.0 * 10.0; // 雑音レベルの下限 (実効値 10)
+
+    private final int mSampleRate;
+    private final double mRatio; // 音ありとする電力比
+    private final int mHoldSize;
+    private double mFloor; // 雑音レベル (平均電力). 未推定なら負
+    private double mPower; // 直前のブロックの平均電力
+    private double mRefFloor; // 直前のブロックの判定に用いた雑音レベル
+    private int mHoldRemain;
+    private boolean mOpen;
+
+    public NoiseGate(int sampleRate) {
+        this(sampleRate, SNR_DB_DEFAULT, HOLD_MS_DEFAULT);
+    }
+
+    public NoiseGate(int sampleRate, double snrDb, int holdMs) {
+        if (sampleRate <= 0 || snrDb < 0 || holdMs < 0) {
+            throw new IllegalArgumentException("sampleRate=" + sampleRate + " snrDb=" + snrDb +
+                    " holdMs=" + holdMs);
+        }
+        mSampleRate = sampleRate;
+        mRatio = Math.pow(10.0, snrDb / 10.0);
+        mHoldSize = (int)((long)sampleRate * holdMs / 1000);
+        reset();
+    }
+
+    // 雑音レベルの推定をやり直す. 次のブロックの平均電力を初期値とする
+    public void reset() {
+        mFloor = -1;
+        mPower = 0;
+        mRefFloor = 0;
+        mHoldRemain = 0;
+        mOpen = false;
+    }
+
+    // data[off] から len サンプルのブロックを入力し, 音ありなら true を返す
+    public boolean process(short[] data, int off, int len) {
+        if (len <= 0) {
+            return mOpen;
+        }
+        // 正負どちらの振れも同じく数える
+        long sum = 0;
+        for (int i = off; i < off + len; i++) {
+            int x = data[i];
+            sum += x * x;
+        }
+        mPower = (double)sum / len;
+        if (mFloor < 0) {
+            mFloor = Math.max(mPower, POWER_MIN);
+        }
+        mRefFloor = mFloor;
+        boolean loud = mPower > mFloor * mRatio;
+        if (mPower < mFloor) {
+            mFloor += (mPower - mFloor) * FALL_RATE;
+        } else {
+            double rise = Math.pow(10.0, RISE_DB_PER_SEC * len / mSampleRate / 10.0);
+            mFloor = Math.min(mPower, mFloor * rise);
+        }
+        mFloor = Math.max(mFloor, POWER_MIN);
+        if (loud) {
+            mHoldRemain = mHoldSize;
+            mOpen = true;
+        } else {
+            mHoldRemain -= len;
+            mOpen = mHoldRemain > 0;
+        }
+        return mOpen;
+    }
+
+    // 直前のブロックが音ありか
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    // 雑音レベル (実効値)
+    public double getNoiseLevel() {
+        return Math.sqrt(Math.max(mFloor, 0));
+    }
+
+    // 直前のブロックの実効値
+    public double getLevel() {
+        return Math.sqrt(mPower);
+    }
+
+    // 直前のブロックの雑音レベルに対する SN 比 (dB)
+    public double getSnrDb() {
+        return (mRefFloor > 0) ? 10.0 * Math.log10(Math.max(mPower, 1.0) / mRefFloor) : 0;
+    }
+}
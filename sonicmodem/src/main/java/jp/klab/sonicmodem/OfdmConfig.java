@@ -0,0 +1,87 @@
+package jp.klab.sonicmodem;
+
+/**
+ * OFDM モードのパラメータ
+ * 先端・終端符丁, サンプリングレート, 振幅は ModemConfig のものを用いる
+ *
+ * 1 シンボル = サイクリックプレフィクス + FFT_SIZE サンプル
+ * サブキャリアは freqBase 以上の FFT ビンから連続して SUBCARRIERS 本並べ,
+ * PILOT_INTERVAL 本ごとにパイロット (位相固定) を置く. 残りは DQPSK で 2 ビットずつ運ぶ
+ */
+public class OfdmConfig {
+    public static final int FFT_SIZE = 1024; // ビン間隔 約 43Hz
+    public static final int CP_SIZE = 256; // 約 5.8msec. 残響による符号間干渉を吸収
+    public static final int SUBCARRIERS = 100;
+    public static final int PILOT_INTERVAL = 9; // パイロット 1 本 + データ 8 本の繰り返し
+    public static final int BITS_PER_CARRIER = 2;
+
+    private final ModemConfig mModemConfig;
+    private final int mFirstBin;
+    private final int mDataCarriers[]; // データ用サブキャリアのビン番号
+    private final int mPilotCarriers[]; // パイロットのビン番号
+
+    public OfdmConfig(ModemConfig modemConfig) {
+        mModemConfig = modemConfig;
+        int sampleRate = modemConfig.getSampleRate();
+        mFirstBin = (modemConfig.getFreqBase() * FFT_SIZE + sampleRate - 1) / sampleRate;
+        if ((mFirstBin + SUBCARRIERS) * sampleRate / FFT_SIZE >= sampleRate / 2) {
+            throw new IllegalArgumentException("freqBase=" + modemConfig.getFreqBase());
+        }
+        int pilots = (SUBCARRIERS + PILOT_INTERVAL - 1) / PILOT_INTERVAL;
+        mPilotCarriers = new int[pilots];
+        mDataCarriers = new int[SUBCARRIERS - pilots];
+        int p = 0;
+        int d = 0;
+        for (int i = 0; i < SUBCARRIERS; i++) {
+            if (i % PILOT_INTERVAL == 0) {
+                mPilotCarriers[p++] = mFirstBin + i;
+            } else {
+                mDataCarriers[d++] = mFirstBin + i;
+            }
+        }
+    }
+
+    // OFDM モードの先端符丁の周波数. 単一・多重トーンモードとは別の周波数とする
+    public static int getFreqIn(int freqBase) {
+        return freqBase - 40;
+    }
+
+    public ModemConfig getModemConfig() {
+        return mModemConfig;
+    }
+
+    public int getFreqIn() {
+        return getFreqIn(mModemConfig.getFreqBase());
+    }
+
+    // 1 シンボルのサンプル数 (サイクリックプレフィクスを含む)
+    public int getSymbolSize() {
+        return CP_SIZE + FFT_SIZE;
+    }
+
+    // 1 シンボルで送るバイト数
+    public int getBytesPerSymbol() {
+        return mDataCarriers.length * BITS_PER_CARRIER / 8;
+    }
+
+    public int getFirstBin() {
+        return mFirstBin;
+    }
+
+    public int getLastBin() {
+        return mFirstBin + SUBCARRIERS - 1;
+    }
+
+    public int[] getDataCarriers() {
+        return mDataCarriers.clone();
+    }
+
+    public int[] getPilotCarriers() {
+        return mPilotCarriers.clone();
+    }
+
+    // 伝送速度 (bit/s)
+    public int getBitRate() {
+        return getBytesPerSymbol() * 8 * mModemConfig.getSampleRate() / getSymbolSize();
+    }
+}
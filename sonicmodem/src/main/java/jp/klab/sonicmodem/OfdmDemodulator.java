@@ -0,0 +1,161 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * OFDM 復調
+ * サイクリックプレフィクスを除いた FFT_SIZE サンプルを FFT にかけ,
+ * 各サブキャリアの直前シンボルとの位相差から 2 ビットずつ判定する (DQPSK)
+ *
+ * 送受信間のサンプリング周波数差などによる位相ずれは
+ * 前後のパイロットの位相差を線形補間して差し引く
+ * 先端符丁の直後のシンボルは基準として位相を記録するのみで, データは返さない
+ */
+public class OfdmDemodulator implements Demodulator {
+    // パイロットの平均電力に対しこの比率未満のサブキャリアは使われていないとみなす
+    private static final double RATIO_CARRIER_EMPTY = 0.01;
+    // 位相の進み (π/2 単位) に対する 2 ビット (グレイ符号)
+    private static final int QUADRANT_TO_DIBIT[] = {0, 1, 3, 2};
+
+    private final OfdmConfig mConfig;
+    private final ModemConfig mModemConfig;
+    private final DoubleFFT_1D mFFT;
+    private final double mFFTBuffer[];
+    private final int mDataCarriers[];
+    private final int mPilotCarriers[];
+    private final double mPrevRe[]; // ビンごとの直前シンボルの複素振幅
+    private final double mPrevIm[];
+    private final double mPilotDiff[]; // パイロットごとの直前シンボルとの位相差
+    private boolean mHasReference = false;
+
+    public OfdmDemodulator(OfdmConfig config) {
+        mConfig = config;
+        mModemConfig = config.getModemConfig();
+        mFFT = new DoubleFFT_1D(OfdmConfig.FFT_SIZE);
+        mFFTBuffer = new double[OfdmConfig.FFT_SIZE];
+        mDataCarriers = config.getDataCarriers();
+        mPilotCarriers = config.getPilotCarriers();
+        mPrevRe = new double[OfdmConfig.FFT_SIZE / 2];
+        mPrevIm = new double[OfdmConfig.FFT_SIZE / 2];
+        mPilotDiff = new double[mPilotCarriers.length];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mConfig.getSymbolSize();
+    }
+
+    @Override
+    public void reset() {
+        mHasReference = false;
+    }
+
+    @Override
+    public int demodulate(short[] data, int off, int[] symbols) {
+        // サイクリックプレフィクスを読み飛ばす
+        for (int i = 0; i < OfdmConfig.FFT_SIZE; i++) {
+            mFFTBuffer[i] = (double)data[off + OfdmConfig.CP_SIZE + i];
+        }
+        mFFT.realForward(mFFTBuffer);
+
+        // 帯域外にピークがあれば終端符丁か否かのみを判定する
+        double maxAmp = 0;
+        int index = 0;
+        for (int i = 1; i < OfdmConfig.FFT_SIZE/2; i++) {
+            double r = power(i);
+            if (r > maxAmp) {
+                maxAmp = r;
+                index = i;
+            }
+        }
+        if (index < mConfig.getFirstBin() || index > mConfig.getLastBin()) {
+            double binWidth = (double)mModemConfig.getSampleRate() / OfdmConfig.FFT_SIZE;
+            double freq = index * binWidth;
+            if (Math.abs(freq - mModemConfig.getFreqOut()) < binWidth) {
+                mHasReference = false;
+                symbols[0] = ModemConfig.SYMBOL_OUT;
+                return 1;
+            }
+            return 0;
+        }
+        if (!mHasReference) {
+            saveCurrent();
+            mHasReference = true;
+            return 0;
+        }
+
+        double pilotPower = 0;
+        for (int i = 0; i < mPilotCarriers.length; i++) {
+            int bin = mPilotCarriers[i];
+            pilotPower += power(bin);
+            mPilotDiff[i] = phaseDiff(bin);
+        }
+        pilotPower /= mPilotCarriers.length;
+
+        int carriersPerByte = 8 / OfdmConfig.BITS_PER_CARRIER;
+        int count = 0;
+        for (int n = 0; n < mConfig.getBytesPerSymbol(); n++) {
+            double p = 0;
+            for (int j = 0; j < carriersPerByte; j++) {
+                p += power(mDataCarriers[n * carriersPerByte + j]);
+            }
+            if (p < pilotPower * carriersPerByte * RATIO_CARRIER_EMPTY) {
+                break;
+            }
+            int value = 0;
+            for (int j = 0; j < carriersPerByte; j++) {
+                int bin = mDataCarriers[n * carriersPerByte + j];
+                double diff = wrap(phaseDiff(bin) - pilotCorrection(bin));
+                int quadrant = (int)Math.round(diff / (Math.PI / 2)) & 0x03;
+                value = (value << 2) | QUADRANT_TO_DIBIT[quadrant];
+            }
+            symbols[count++] = value;
+        }
+        saveCurrent();
+        return count;
+    }
+
+    // 直前シンボルに対する bin の位相差 (-π, π]
+    private double phaseDiff(int bin) {
+        double re = mFFTBuffer[bin * 2];
+        double im = mFFTBuffer[bin * 2 + 1];
+        // 現在値 × 直前値の共役
+        double zRe = re * mPrevRe[bin] + im * mPrevIm[bin];
+        double zIm = im * mPrevRe[bin] - re * mPrevIm[bin];
+        return Math.atan2(zIm, zRe);
+    }
+
+    // bin を挟むパイロットの位相差を線形補間する
+    private double pilotCorrection(int bin) {
+        int offset = bin - mConfig.getFirstBin();
+        int j = offset / OfdmConfig.PILOT_INTERVAL;
+        if (j + 1 >= mPilotDiff.length) {
+            return mPilotDiff[mPilotDiff.length - 1];
+        }
+        double t = (double)(offset % OfdmConfig.PILOT_INTERVAL) / OfdmConfig.PILOT_INTERVAL;
+        return mPilotDiff[j] + wrap(mPilotDiff[j + 1] - mPilotDiff[j]) * t;
+    }
+
+    private double power(int bin) {
+        double a = mFFTBuffer[bin * 2]; // 実部
+        double b = mFFTBuffer[bin * 2 + 1]; // 虚部
+        return a*a + b*b;
+    }
+
+    private void saveCurrent() {
+        for (int bin = mConfig.getFirstBin(); bin <= mConfig.getLastBin(); bin++) {
+            mPrevRe[bin] = mFFTBuffer[bin * 2];
+            mPrevIm[bin] = mFFTBuffer[bin * 2 + 1];
+        }
+    }
+
+    private static double wrap(double phase) {
+        while (phase > Math.PI) {
+            phase -= 2 * Math.PI;
+        }
+        while (phase <= -Math.PI) {
+            phase += 2 * Math.PI;
+        }
+        return phase;
+    }
+}
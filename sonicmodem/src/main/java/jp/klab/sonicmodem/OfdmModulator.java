@@ -0,0 +1,134 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.nio.ShortBuffer;
+
+/**
+ * OFDM 変調
+ * 各データ用サブキャリアの位相を 2 ビットごとに 0, π/2, π, 3π/2 だけ進め (DQPSK),
+ * 逆 FFT で時間波形を得てサイクリックプレフィクスを付ける
+ *
+ * 先端符丁の直後には全サブキャリアの初期位相を示す基準シンボルを続けて出力する
+ * データの端数により使わないサブキャリアは振幅 0 とする
+ */
+public class OfdmModulator implements Modulator {
+    // 2 ビット (上位, 下位) に対する位相の進み (π/2 単位, グレイ符号)
+    private static final int DIBIT_TO_QUADRANT[] = {0, 1, 3, 2};
+
+    private final OfdmConfig mConfig;
+    private final ModemConfig mModemConfig;
+    private final DoubleFFT_1D mFFT;
+    private final double mFFTBuffer[];
+    private final int mDataCarriers[];
+    private final int mPilotCarriers[];
+    private final int mQuadrant[]; // データ用サブキャリアごとの現在の位相 (π/2 単位)
+    private final double mInitialPhase[]; // ビンごとの初期位相
+    private final double mCarrierAmp;
+    private final short mSigIn[];
+    private final short mSigOut[];
+
+    public OfdmModulator(OfdmConfig config) {
+        mConfig = config;
+        mModemConfig = config.getModemConfig();
+        mFFT = new DoubleFFT_1D(OfdmConfig.FFT_SIZE);
+        mFFTBuffer = new double[OfdmConfig.FFT_SIZE];
+        mDataCarriers = config.getDataCarriers();
+        mPilotCarriers = config.getPilotCarriers();
+        mQuadrant = new int[mDataCarriers.length];
+        // 初期位相は Newman 位相 π k^2 / K とし, 基準シンボルのピークを抑える
+        mInitialPhase = new double[OfdmConfig.FFT_SIZE / 2];
+        for (int i = 0; i < OfdmConfig.SUBCARRIERS; i++) {
+            mInitialPhase[config.getFirstBin() + i] = Math.PI * i * i / OfdmConfig.SUBCARRIERS;
+        }
+        // 合成波の実効値が amplitude / 4 となるようサブキャリアごとの振幅を決める
+        // ピークが amplitude を超えるのは稀で, 超えた分は切り詰める
+        mCarrierAmp = mModemConfig.getAmplitude() * Math.sqrt(2.0 / OfdmConfig.SUBCARRIERS) / 4;
+        // 先端・終端符丁は単一波なので他のモードの変調器と共有する
+        WaveformCache cache = WaveformCache.getShared();
+        mSigIn = cache.get(config.getFreqIn(), mModemConfig.getAmplitude(), mModemConfig.getMarkerSize());
+        mSigOut = cache.get(mModemConfig.getFreqOut(), mModemConfig.getAmplitude(), mModemConfig.getMarkerSize());
+    }
+
+    @Override
+    public int modulate(int[] symbols, int off, ShortBuffer out) {
+        int symbol = symbols[off];
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            out.put(mSigIn);
+            // 基準シンボル
+            for (int i = 0; i < mQuadrant.length; i++) {
+                mQuadrant[i] = 0;
+            }
+            writeSymbol(mDataCarriers.length, out);
+            return 1;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) {
+            out.put(mSigOut);
+            return 1;
+        }
+        // 後続のデータを最大 getBytesPerSymbol() 個まとめ, 1 バイトを 4 本のサブキャリアに割り当てる
+        int carriersPerByte = 8 / OfdmConfig.BITS_PER_CARRIER;
+        int count = 0;
+        while (count < mConfig.getBytesPerSymbol() && off + count < symbols.length &&
+                symbols[off + count] >= 0 && symbols[off + count] < ModemConfig.ELMS_MAX) {
+            int value = symbols[off + count];
+            for (int j = 0; j < carriersPerByte; j++) {
+                int dibit = (value >> (6 - j * 2)) & 0x03;
+                int c = count * carriersPerByte + j;
+                mQuadrant[c] = (mQuadrant[c] + DIBIT_TO_QUADRANT[dibit]) & 0x03;
+            }
+            count++;
+        }
+        writeSymbol(count * carriersPerByte, out);
+        return count;
+    }
+
+    // 先頭 activeCarriers 本のデータ用サブキャリアとパイロットから 1 シンボルを生成し出力する
+    private void writeSymbol(int activeCarriers, ShortBuffer out) {
+        for (int i = 0; i < mFFTBuffer.length; i++) {
+            mFFTBuffer[i] = 0;
+        }
+        for (int i = 0; i < mPilotCarriers.length; i++) {
+            setCarrier(mPilotCarriers[i], mInitialPhase[mPilotCarriers[i]]);
+        }
+        for (int i = 0; i < activeCarriers; i++) {
+            int bin = mDataCarriers[i];
+            setCarrier(bin, mInitialPhase[bin] + mQuadrant[i] * Math.PI / 2);
+        }
+        // 逆 FFT (1/N のスケーリング付き)
+        mFFT.realInverse(mFFTBuffer, true);
+        int amp = mModemConfig.getAmplitude();
+        // 末尾 CP_SIZE サンプルをサイクリックプレフィクスとして先に出力
+        for (int i = OfdmConfig.FFT_SIZE - OfdmConfig.CP_SIZE; i < OfdmConfig.FFT_SIZE; i++) {
+            out.put(clip(mFFTBuffer[i], amp));
+        }
+        for (int i = 0; i < OfdmConfig.FFT_SIZE; i++) {
+            out.put(clip(mFFTBuffer[i], amp));
+        }
+    }
+
+    private void setCarrier(int bin, double phase) {
+        // 実信号の逆変換では正の周波数成分 1 本が振幅 2/N の余弦波になる
+        double r = mCarrierAmp * OfdmConfig.FFT_SIZE / 2;
+        mFFTBuffer[bin * 2] = r * Math.cos(phase); // 実部
+        mFFTBuffer[bin * 2 + 1] = r * Math.sin(phase); // 虚部
+    }
+
+    private static short clip(double val, int amp) {
+        if (val > amp) {
+            return (short)amp;
+        } else if (val < -amp) {
+            return (short)-amp;
+        }
+        return (short)val;
+    }
+
+    @Override
+    public int getSymbolLength(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            return mModemConfig.getMarkerSize() + mConfig.getSymbolSize();
+        } else if (symbol == ModemConfig.SYMBOL_OUT) {
+            return mModemConfig.getMarkerSize();
+        }
+        return mConfig.getSymbolSize();
+    }
+}
@@ -0,0 +1,120 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.FloatFFT_1D;
+
+import java.util.Arrays;
+
+/**
+ * 窓関数付きの float 精度 FFT によるブロックの電力スペクトル
+ *
+ * 1 シンボルのサンプル数 (4410 など) は 2 のべき乗でなく, 7 を因数に持つため
+ * JTransforms は Bluestein 法 (2 倍以上の長さの FFT を 3 回) で処理する
+ * ここでは 1.5 倍以上の 2 のべき乗の長さまで 0 を詰めて 1 回の FFT で求め,
+ * 周波数分解能 sampleRate / blockSize (シンボル長の逆数) の格子点ごとの電力を返す
+ * 0 詰めのビンは格子点と一致しないため, 格子点を挟む 2 つのビンの電力の和とする
+ * (最寄りの 1 ビンのみでは格子点とのずれによる減衰で誤りが増える)
+ *
+ * 窓関数は矩形窓のほかハン窓, ブラックマン窓を選べる. シンボル境界に揃ったブロックでは
+ * 各トーンが格子点に乗り互いに直交するため矩形窓が最も誤りが少なく,
+ * 窓関数は主ローブが広がる分だけ雑音に弱くなる. 境界に揃わない受信で隣接シンボルの
+ * 漏れ込みを抑えたい場合に用いる
+ *
+ * 窓関数はあらかじめ float の係数表とし, short から float への変換と同時にかける
+ * 電力は実部と虚部の二乗和とし, 平方根はとらない
+ */
+public class PowerSpectrum {
+    public static final int WINDOW_RECT = 0;
+    public static final int WINDOW_HANN = 1;
+    public static final int WINDOW_BLACKMAN = 2;
+
+    private final int mBlockSize;
+    private final int mFFTSize;
+    private final FloatFFT_1D mFFT;
+    private final float mBuffer[];
+    private final float mWindow[]; // 矩形窓なら null
+    private final int mBins[]; // 格子点の直下の FFT のビン番号
+
+    public PowerSpectrum(int blockSize, int window) {
+        if (blockSize < 2) {
+            throw new IllegalArgumentException("blockSize=" + blockSize);
+        }
+        mBlockSize = blockSize;
+        int size = 1;
+        while (size < blockSize + blockSize / 2) {
+            size <<= 1;
+        }
+        mFFTSize = size;
+        mFFT = new FloatFFT_1D(size);
+        mBuffer = new float[size];
+        mWindow = createWindow(blockSize, window);
+        mBins = new int[blockSize / 2];
+        for (int i = 0; i < mBins.length; i++) {
+            mBins[i] = (int)((long)i * size / blockSize);
+        }
+    }
+
+    // 係数の平均が 1 となるよう正規化し, 矩形窓と同じ尺度の電力を返す
+    private static float[] createWindow(int size, int window) {
+        double a0;
+        double a1;
+        double a2;
+        switch (window) {
+            case WINDOW_RECT:
+                return null;
+            case WINDOW_HANN:
+                a0 = 0.5;
+                a1 = 0.5;
+                a2 = 0;
+                break;
+            case WINDOW_BLACKMAN:
+                a0 = 0.42;
+                a1 = 0.5;
+                a2 = 0.08;
+                break;
+            default:
+                throw new IllegalArgumentException("window=" + window);
+        }
+        float w[] = new float[size];
+        for (int i = 0; i < size; i++) {
+            double t = 2.0 * Math.PI * i / size;
+            w[i] = (float)((a0 - a1 * Math.cos(t) + a2 * Math.cos(2 * t)) / a0);
+        }
+        return w;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getFFTSize() {
+        return mFFTSize;
+    }
+
+    // data[off] から getBlockSize() サンプルの電力スペクトルを
+    // power[0] から getBlockSize() / 2 個 (格子点ごと) に求める
+    public void compute(short[] data, int off, double[] power) {
+        float buf[] = mBuffer;
+        if (mWindow == null) {
+            for (int i = 0; i < mBlockSize; i++) {
+                buf[i] = data[off + i];
+            }
+        } else {
+            float w[] = mWindow;
+            for (int i = 0; i < mBlockSize; i++) {
+                buf[i] = data[off + i] * w[i];
+            }
+        }
+        Arrays.fill(buf, mBlockSize, mFFTSize, 0f);
+        mFFT.realForward(buf);
+        // buf は [Re0, Re(N/2), Re1, Im1, ...]. 格子点を挟むビンは N/2 未満
+        power[0] = buf[0] * buf[0];
+        for (int i = 1; i < mBins.length; i++) {
+            int k = mBins[i] * 2;
+            float re0 = buf[k];
+            float im0 = buf[k + 1];
+            float re1 = buf[k + 2];
+            float im1 = buf[k + 3];
+            power[i] = re0 * re0 + im0 * im0 + re1 * re1 + im1 * im1;
+        }
+    }
+}
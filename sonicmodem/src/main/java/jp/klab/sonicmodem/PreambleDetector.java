@@ -0,0 +1,300 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+/**
+ * 相互相関 (整合フィルタ) によるプリアンブルの検出
+ * 入力を基準波形 (ChirpPreamble など) と照合し, 波形の末尾, すなわち後続の
+ * シンボルの先頭をサンプル単位で求める
+ *
+ * 相関は FFT による高速相関 (オーバーラップセーブ法) で求める
+ * FFT 長 N は基準波形長 L の 1.5 倍以上の 2 のべき乗とし, 直前の L - 1 サンプルを
+ * 残したまま N - L + 1 サンプル入力するごとに 1 回 FFT と逆 FFT を行う
+ * N を大きくするほど 1 サンプルあたりの計算量は減るが, 検出までの遅れが増える
+ * 50msec のチャープでは N = 4096 で, 遅れは 1 シンボル (100msec) 未満に収まる
+ *
+ * 相関値は窓内の入力エネルギーと基準波形のエネルギーで正規化した
+ * c^2 / (Σx^2 Σh^2) (0 - 1) とし, 入力の音量によらず閾値で判定する
+ * 閾値を超えた後 L/4 サンプルの間それより大きな値が出なければピークとみなす
+ *
+ * 入力エネルギーには, 窓内の全帯域のエネルギーと, FFT の区間全体のうち基準波形の帯域の
+ * エネルギーの小さい方を用いる (どちらも窓内の帯域内エネルギー以上). 帯域外の音
+ * (他のチャネルの送信など) が大きくても相関値が下がりにくい
+ *
+ * 同じ長さの基準波形を複数与えると (FDMA のチャネルごとのチャープなど), 入力の FFT は
+ * 1 回だけ求めて共有し, 基準波形ごとに積と逆 FFT のみを行う. ピークは基準波形ごとに求める
+ */
+public class PreambleDetector {
+    public static final double THRESHOLD_DEFAULT = 0.25;
+    private static final double BAND_RATIO = 1e-3; // 基準波形の帯域とみなすビンの電力 (最大に対する比)
+
+    private final int mLength; // 基準波形のサンプル数
+    private final int mFFTSize;
+    private final int mHop; // 1 回の FFT で新たに相関を求める位置の数
+    private final int mHold; // ピーク確定までに待つサンプル数
+    private final double mThreshold;
+    private final DoubleFFT_1D mFFT;
+    private final double mTemplates[][]; // 基準波形ごとの FFT
+    private final double mTemplateEnergies[];
+    private final int mBandStart[]; // 基準波形の帯域 (FFT のビン番号)
+    private final int mBandEnd[];
+    private final double mBandEnergies[]; // FFT の区間全体の帯域内エネルギー
+    private final double mSpectrum[]; // 入力の FFT
+    private final double mWork[][]; // 基準波形ごとの相関
+    private final short mBuf[]; // 直近 mFFTSize サンプル. 先頭 mLength - 1 は前回の残り
+    private int mFill; // mBuf の入力済みサンプル数
+    private long mBufPos; // mBuf[0] の絶対位置
+    // 以下は基準波形ごと
+    private final double mScores[]; // 確定前の最大の相関値
+    private final long mPeakPos[]; // 確定前のピークに対応する境界の絶対位置. なければ -1
+    private final long mBoundaries[];
+    private final double mBoundaryScores[];
+    private int mDetected = 0; // 直前にピークを確定した基準波形の番号
+
+    public PreambleDetector(short[] template) {
+        this(template, THRESHOLD_DEFAULT);
+    }
+
+    public PreambleDetector(short[] template, double threshold) {
+        this(new short[][] {template}, threshold);
+    }
+
+    public PreambleDetector(short[][] templates) {
+        this(templates, THRESHOLD_DEFAULT);
+    }
+
+    // templates: 同じ長さの基準波形
+    public PreambleDetector(short[][] templates, double threshold) {
+        if (templates.length == 0 || templates[0].length == 0) {
+            throw new IllegalArgumentException("templates.length=" + templates.length);
+        }
+        for (short[] template : templates) {
+            if (template.length != templates[0].length) {
+                throw new IllegalArgumentException("template.length=" + template.length);
+            }
+        }
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold=" + threshold);
+        }
+        mLength = templates[0].length;
+        int size = 1;
+        while (size < mLength + mLength / 2) {
+            size <<= 1;
+        }
+        mFFTSize = size;
+        mHop = size - mLength + 1;
+        mHold = mLength / 4;
+        mThreshold = threshold;
+        mFFT = new DoubleFFT_1D(size);
+        int count = templates.length;
+        mTemplates = new double[count][size];
+        mTemplateEnergies = new double[count];
+        mBandStart = new int[count];
+        mBandEnd = new int[count];
+        mBandEnergies = new double[count];
+        for (int t = 0; t < count; t++) {
+            double energy = 0;
+            for (int i = 0; i < mLength; i++) {
+                mTemplates[t][i] = templates[t][i];
+                energy += (double)templates[t][i] * templates[t][i];
+            }
+            mTemplateEnergies[t] = energy;
+            mFFT.realForward(mTemplates[t]);
+            setBand(t);
+        }
+        mSpectrum = new double[size];
+        mWork = new double[count][size];
+        mBuf = new short[size];
+        mScores = new double[count];
+        mPeakPos = new long[count];
+        mBoundaries = new long[count];
+        mBoundaryScores = new double[count];
+        reset();
+    }
+
+    // 基準波形の電力が最大の BAND_RATIO 以上のビンの範囲を帯域とする
+    private void setBand(int t) {
+        double power[] = new double[mFFTSize / 2];
+        double max = 0;
+        for (int k = 1; k < mFFTSize / 2; k++) {
+            double re = mTemplates[t][k * 2];
+            double im = mTemplates[t][k * 2 + 1];
+            power[k] = re * re + im * im;
+            max = Math.max(max, power[k]);
+        }
+        mBandStart[t] = mFFTSize / 2;
+        mBandEnd[t] = 1;
+        for (int k = 1; k < mFFTSize / 2; k++) {
+            if (power[k] >= max * BAND_RATIO) {
+                mBandStart[t] = Math.min(mBandStart[t], k);
+                mBandEnd[t] = k + 1;
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < mBuf.length; i++) {
+            mBuf[i] = 0;
+        }
+        // 先頭の mLength - 1 サンプルを無音とみなして始める
+        mFill = mLength - 1;
+        mBufPos = -(mLength - 1);
+        for (int t = 0; t < mTemplates.length; t++) {
+            mScores[t] = 0;
+            mPeakPos[t] = -1;
+            mBoundaries[t] = -1;
+        }
+        mDetected = 0;
+    }
+
+    // 基準波形の数
+    public int getTemplateCount() {
+        return mTemplates.length;
+    }
+
+    // 基準波形のサンプル数
+    public int getLength() {
+        return mLength;
+    }
+
+    // 入力してから相関を求めるまでの最大の遅れ (サンプル数)
+    public int getLatency() {
+        return mHop + mHold;
+    }
+
+    // data[off] から len サンプルを入力する
+    // いずれかの基準波形のプリアンブルを検出した場合はその時点までに消費したサンプル数を,
+    // それ以外は len を返す
+    // 検出位置はブロック単位の相関計算を終えた時点で確定するため, 戻り値の時点より前にある
+    public int process(short[] data, int off, int len) {
+        int n = 0;
+        while (n < len) {
+            if (mFill == mFFTSize) {
+                // 次の区間のため末尾 mLength - 1 サンプルを先頭へ移す
+                System.arraycopy(mBuf, mHop, mBuf, 0, mLength - 1);
+                mFill = mLength - 1;
+                mBufPos += mHop;
+            }
+            int count = Math.min(len - n, mFFTSize - mFill);
+            System.arraycopy(data, off + n, mBuf, mFill, count);
+            mFill += count;
+            n += count;
+            if (mFill == mFFTSize && correlate()) {
+                return n;
+            }
+        }
+        return len;
+    }
+
+    // mBuf に対し mHop 個の位置の相関値を求め, いずれかのピークが確定すれば true を返す
+    private boolean correlate() {
+        for (int i = 0; i < mFFTSize; i++) {
+            mSpectrum[i] = mBuf[i];
+        }
+        mFFT.realForward(mSpectrum);
+        for (int t = 0; t < mTemplates.length; t++) {
+            double work[] = mWork[t];
+            double template[] = mTemplates[t];
+            // X[k] * conj(H[k]). realForward の出力は [Re0, Re(N/2), Re1, Im1, ...]
+            work[0] = mSpectrum[0] * template[0];
+            work[1] = mSpectrum[1] * template[1];
+            for (int k = 2; k < mFFTSize; k += 2) {
+                double xr = mSpectrum[k];
+                double xi = mSpectrum[k + 1];
+                double hr = template[k];
+                double hi = template[k + 1];
+                work[k] = xr * hr + xi * hi;
+                work[k + 1] = xi * hr - xr * hi;
+            }
+            mFFT.realInverse(work, true);
+            // パーセバルの定理より Σx^2 = (|X0|^2 + |X(N/2)|^2 + 2 Σ|Xk|^2) / N
+            double bandEnergy = 0;
+            for (int k = mBandStart[t]; k < mBandEnd[t]; k++) {
+                double xr = mSpectrum[k * 2];
+                double xi = mSpectrum[k * 2 + 1];
+                bandEnergy += xr * xr + xi * xi;
+            }
+            mBandEnergies[t] = bandEnergy * 2 / mFFTSize;
+        }
+        // mWork[t][m] = Σ x[m + i] h[i]. m < mHop では巡回の折り返しを含まない
+        double energy = 0;
+        for (int i = 0; i < mLength - 1; i++) {
+            energy += (double)mBuf[i] * mBuf[i];
+        }
+        for (int m = 0; m < mHop; m++) {
+            double x = mBuf[m + mLength - 1];
+            energy += x * x;
+            for (int t = 0; t < mTemplates.length; t++) {
+                double c = mWork[t][m];
+                double e = Math.min(energy, mBandEnergies[t]);
+                // 正規化相関の二乗を sqrt なしで閾値と比べる
+                if (c > 0 && e > 0 && c * c > mThreshold * e * mTemplateEnergies[t]) {
+                    double score = c * c / (e * mTemplateEnergies[t]);
+                    if (score > mScores[t]) {
+                        mScores[t] = score;
+                        mPeakPos[t] = mBufPos + m + mLength;
+                    }
+                }
+            }
+            x = mBuf[m];
+            energy -= x * x;
+        }
+        boolean detected = false;
+        for (int t = 0; t < mTemplates.length; t++) {
+            if (mPeakPos[t] >= 0 && mBufPos + mHop - 1 + mLength - mPeakPos[t] >= mHold) {
+                // 同時に確定した場合は相関値の大きい方を getBoundary() で返す
+                if (!detected || mScores[t] > mBoundaryScores[mDetected]) {
+                    mDetected = t;
+                }
+                mBoundaries[t] = mPeakPos[t];
+                mBoundaryScores[t] = mScores[t];
+                mScores[t] = 0;
+                mPeakPos[t] = -1;
+                detected = true;
+            }
+        }
+        return detected;
+    }
+
+    // 直前に検出したプリアンブル末尾の絶対位置 (reset 以降の入力サンプル数で数える). 未検出なら -1
+    public long getBoundary() {
+        return mBoundaries[mDetected];
+    }
+
+    // 直前に検出したピークの正規化相関値
+    public double getScore() {
+        return mBoundaryScores[mDetected];
+    }
+
+    // 直前にピークを確定した基準波形の番号
+    public int getDetectedIndex() {
+        return mDetected;
+    }
+
+    // index 番目の基準波形で直前に検出したプリアンブル末尾の絶対位置. 未検出なら -1
+    public long getBoundary(int index) {
+        return mBoundaries[index];
+    }
+
+    public double getScore(int index) {
+        return mBoundaryScores[index];
+    }
+
+    // 直前に検出した境界以降に入力済みのサンプルを dst へコピーしその数を返す
+    public int copySinceBoundary(short[] dst) {
+        return copySinceBoundary(mDetected, dst);
+    }
+
+    // index 番目の基準波形で検出した境界以降に入力済みのサンプルを dst へコピーしその数を返す
+    // 境界が既にバッファから外れていれば 0 を返す
+    public int copySinceBoundary(int index, short[] dst) {
+        long boundary = mBoundaries[index];
+        if (boundary < 0 || boundary < mBufPos) {
+            return 0;
+        }
+        int start = (int)(boundary - mBufPos);
+        int count = Math.min(mFill - start, dst.length);
+        System.arraycopy(mBuf, start, dst, 0, count);
+        return count;
+    }
+}
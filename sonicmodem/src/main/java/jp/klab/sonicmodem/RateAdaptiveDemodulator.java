@@ -0,0 +1,103 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 先端符丁に続くレートバイトからシンボル長を判定し, 以降のデータをそのシンボル長で復調する
+ * レートバイトを待つ間は 100msec 単位で判定し, 先端・終端符丁はそのまま返す
+ * 畳み込み符号化モードのフレームでは getLikelihoods で軟判定用の尤度を取り出す
+ */
+public class RateAdaptiveDemodulator implements Demodulator {
+    private final FFTDemodulator mRateDemodulator;
+    private final FFTDemodulator mDemodulators[]; // ModemConfig.SYMBOL_MS の順. 使えないものは null
+    private final int mSymbols[];
+    private FFTDemodulator mDemodulator = null; // レートバイト待ちなら null
+    private int mSymbolMs;
+    private boolean mCoded;
+
+    public RateAdaptiveDemodulator(int freqBase, int tones) {
+        mRateDemodulator = new FFTDemodulator(new ModemConfig(freqBase, 0, tones));
+        mDemodulators = new FFTDemodulator[ModemConfig.SYMBOL_MS.length];
+        for (int i = 0; i < ModemConfig.SYMBOL_MS.length; i++) {
+            int symbolMs = ModemConfig.SYMBOL_MS[i];
+            if (tones <= ModemConfig.getMaxTones(freqBase, symbolMs)) {
+                mDemodulators[i] = new FFTDemodulator(new ModemConfig(freqBase, 0, tones, symbolMs));
+            }
+        }
+        mSymbols = new int[tones];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return (mDemodulator == null) ?
+                mRateDemodulator.getBlockSize() : mDemodulator.getBlockSize();
+    }
+
+    // 前のフレームのレートバイトの判定 (シンボル長, 畳み込み符号化モード) も消す
+    @Override
+    public void reset() {
+        mDemodulator = null;
+        mSymbolMs = 0;
+        mCoded = false;
+        for (FFTDemodulator demodulator : mDemodulators) {
+            if (demodulator != null) {
+                demodulator.setInBandOnly(false);
+            }
+        }
+    }
+
+    @Override
+    public int demodulate(short[] data, int off, int[] symbols) {
+        if (mDemodulator != null) {
+            int count = mDemodulator.demodulate(data, off, symbols);
+            if (count > 0 && symbols[0] == ModemConfig.SYMBOL_OUT) {
+                mDemodulator = null;
+            }
+            return count;
+        }
+        int count = mRateDemodulator.demodulate(data, off, mSymbols);
+        if (count == 0) {
+            return 0;
+        }
+        int symbol = mSymbols[0];
+        if (symbol == ModemConfig.SYMBOL_IN || symbol == ModemConfig.SYMBOL_OUT) {
+            symbols[0] = symbol;
+            return 1;
+        }
+        // レートバイト
+        int symbolMs = symbol & ~ModemConfig.RATE_CODED;
+        for (int i = 0; i < ModemConfig.SYMBOL_MS.length; i++) {
+            if (ModemConfig.SYMBOL_MS[i] == symbolMs && mDemodulators[i] != null) {
+                mDemodulator = mDemodulators[i];
+                mSymbolMs = symbolMs;
+                mCoded = (symbol & ModemConfig.RATE_CODED) != 0;
+                mDemodulator.setInBandOnly(mCoded);
+            }
+        }
+        return 0;
+    }
+
+    // true なら自分の帯域の範囲のみでピークを探す (FFTDemodulator.setBandLimited)
+    public void setBandLimited(boolean bandLimited) {
+        mRateDemodulator.setBandLimited(bandLimited);
+        for (FFTDemodulator demodulator : mDemodulators) {
+            if (demodulator != null) {
+                demodulator.setBandLimited(bandLimited);
+            }
+        }
+    }
+
+    // 直前に判定したシンボル長 (msec). reset 後, レートバイトを判定するまでは 0
+    public int getSymbolMs() {
+        return mSymbolMs;
+    }
+
+    // 直前に判定したレートバイトが畳み込み符号化モードを示していたか
+    // reset 後, レートバイトを判定するまでは false
+    public boolean isCoded() {
+        return mCoded;
+    }
+
+    // 直前の demodulate で返した band 番目のデータの尤度 (FFTDemodulator.getLikelihoods)
+    public void getLikelihoods(int band, double[] likelihoods) {
+        mDemodulator.getLikelihoods(band, likelihoods);
+    }
+}
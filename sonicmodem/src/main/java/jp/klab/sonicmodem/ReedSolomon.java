@@ -0,0 +1,214 @@
+package jp.klab.sonicmodem;
+
+/**
+ * GF(256) 上のリード・ソロモン符号 (組織符号, 符号長 255 以下の短縮符号に対応)
+ * 原始多項式 x^8 + x^4 + x^3 + x^2 + 1, 生成多項式の根は α^0 .. α^(paritySize-1)
+ * paritySize バイトのパリティで paritySize / 2 バイトまでの誤りを訂正する
+ */
+public class ReedSolomon {
+    public static final int BLOCK_SIZE = 255; // 符号長の上限
+    private static final int PRIMITIVE = 0x11d;
+    private static final int EXP[] = new int[512];
+    private static final int LOG[] = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= PRIMITIVE;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int mParitySize;
+    private final int mGenerator[]; // 生成多項式 (最高次から)
+    private final int mSyndromes[];
+    private final int mLocator[]; // 誤り位置多項式 (最低次から)
+    private final int mPrevLocator[];
+    private final int mTemp[];
+    private final int mEvaluator[]; // 誤り評価多項式 (最低次から)
+
+    public ReedSolomon(int paritySize) {
+        if (paritySize <= 0 || paritySize >= BLOCK_SIZE) {
+            throw new IllegalArgumentException("paritySize=" + paritySize);
+        }
+        mParitySize = paritySize;
+        // g(x) = (x - α^0)(x - α^1)...(x - α^(paritySize-1))
+        mGenerator = new int[paritySize + 1];
+        mGenerator[0] = 1;
+        for (int i = 0; i < paritySize; i++) {
+            for (int j = i + 1; j > 0; j--) {
+                mGenerator[j] ^= mul(mGenerator[j - 1], EXP[i]);
+            }
+        }
+        mSyndromes = new int[paritySize];
+        mLocator = new int[paritySize + 1];
+        mPrevLocator = new int[paritySize + 1];
+        mTemp = new int[paritySize + 1];
+        mEvaluator = new int[paritySize];
+    }
+
+    public int getParitySize() {
+        return mParitySize;
+    }
+
+    // 1 符号語あたりのデータ長の上限
+    public int getDataSize() {
+        return BLOCK_SIZE - mParitySize;
+    }
+
+    private static int mul(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int div(int a, int b) {
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+    // data[off] から len バイトのパリティを parity[parityOff] から getParitySize() バイトに書き込む
+    public void encode(byte[] data, int off, int len, byte[] parity, int parityOff) {
+        if (len <= 0 || len > getDataSize()) {
+            throw new IllegalArgumentException("len=" + len);
+        }
+        // data(x) * x^paritySize を g(x) で割った余りを LFSR で求める
+        for (int j = 0; j < mParitySize; j++) {
+            parity[parityOff + j] = 0;
+        }
+        for (int i = 0; i < len; i++) {
+            int coef = (data[off + i] ^ parity[parityOff]) & 0xFF;
+            for (int j = 0; j < mParitySize - 1; j++) {
+                parity[parityOff + j] = (byte)(parity[parityOff + j + 1] ^ mul(mGenerator[j + 1], coef));
+            }
+            parity[parityOff + mParitySize - 1] = (byte)mul(mGenerator[mParitySize], coef);
+        }
+    }
+
+    // codeword[off] から len バイト (データ + パリティ) の誤りをその場で訂正する
+    // 訂正したバイト数を返す. 訂正できなければ -1
+    public int decode(byte[] codeword, int off, int len) {
+        if (len <= mParitySize || len > BLOCK_SIZE) {
+            throw new IllegalArgumentException("len=" + len);
+        }
+        if (!computeSyndromes(codeword, off, len)) {
+            return 0;
+        }
+        // Berlekamp-Massey 法で誤り位置多項式を求める
+        int degree = findLocator();
+        if (degree * 2 > mParitySize) {
+            return -1;
+        }
+        // Ω(x) = S(x) Λ(x) mod x^paritySize
+        for (int i = 0; i < mParitySize; i++) {
+            int v = 0;
+            for (int j = 0; j <= Math.min(i, degree); j++) {
+                v ^= mul(mLocator[j], mSyndromes[i - j]);
+            }
+            mEvaluator[i] = v;
+        }
+        // Chien 探索で誤り位置を求め, Forney の公式で誤りの値を求める
+        int found = 0;
+        for (int pos = 0; pos < len; pos++) {
+            int power = len - 1 - pos; // このバイトの次数
+            int xInv = EXP[(255 - power) % 255]; // X^-1
+            if (evaluate(mLocator, degree + 1, xInv) != 0) {
+                continue;
+            }
+            // Λ'(x) は奇数次の項のみ残る
+            int derivative = 0;
+            for (int i = 1; i <= degree; i += 2) {
+                derivative ^= mul(mLocator[i], EXP[(LOG[xInv] * (i - 1)) % 255]);
+            }
+            if (derivative == 0) {
+                return -1;
+            }
+            int omega = evaluate(mEvaluator, mParitySize, xInv);
+            int magnitude = mul(EXP[power], div(omega, derivative));
+            codeword[off + pos] ^= (byte)magnitude;
+            found++;
+        }
+        if (found != degree || computeSyndromes(codeword, off, len)) {
+            return -1;
+        }
+        return found;
+    }
+
+    // シンドローム S_i = c(α^i) を求める. 誤りがあれば true
+    private boolean computeSyndromes(byte[] codeword, int off, int len) {
+        boolean hasError = false;
+        for (int i = 0; i < mParitySize; i++) {
+            int s = 0;
+            for (int j = 0; j < len; j++) {
+                s = mul(s, EXP[i]) ^ (codeword[off + j] & 0xFF);
+            }
+            mSyndromes[i] = s;
+            if (s != 0) {
+                hasError = true;
+            }
+        }
+        return hasError;
+    }
+
+    // mLocator に誤り位置多項式を求め, その次数を返す
+    private int findLocator() {
+        for (int i = 0; i <= mParitySize; i++) {
+            mLocator[i] = 0;
+            mPrevLocator[i] = 0;
+        }
+        mLocator[0] = 1;
+        mPrevLocator[0] = 1;
+        int degree = 0;
+        int shift = 1;
+        int prevDiscrepancy = 1;
+        for (int n = 0; n < mParitySize; n++) {
+            int d = mSyndromes[n];
+            for (int i = 1; i <= degree; i++) {
+                d ^= mul(mLocator[i], mSyndromes[n - i]);
+            }
+            if (d == 0) {
+                shift++;
+                continue;
+            }
+            int coef = div(d, prevDiscrepancy);
+            if (2 * degree <= n) {
+                System.arraycopy(mLocator, 0, mTemp, 0, mLocator.length);
+                subtractShifted(coef, shift);
+                degree = n + 1 - degree;
+                System.arraycopy(mTemp, 0, mPrevLocator, 0, mTemp.length);
+                prevDiscrepancy = d;
+                shift = 1;
+            } else {
+                subtractShifted(coef, shift);
+                shift++;
+            }
+        }
+        return degree;
+    }
+
+    // Λ(x) -= coef x^shift B(x)
+    private void subtractShifted(int coef, int shift) {
+        for (int i = 0; i + shift <= mParitySize; i++) {
+            mLocator[i + shift] ^= mul(coef, mPrevLocator[i]);
+        }
+    }
+
+    // 最低次からの係数 poly[0..n-1] の多項式の x における値
+    private static int evaluate(int[] poly, int n, int x) {
+        int v = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            v = mul(v, x) ^ poly[i];
+        }
+        return v;
+    }
+}
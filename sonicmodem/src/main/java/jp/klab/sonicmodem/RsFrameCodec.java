@@ -0,0 +1,360 @@
+package jp.klab.sonicmodem;
+
+import java.util.zip.CRC32;
+
+/**
+ * リード・ソロモン符号による誤り訂正付きのフレーム形式
+ * 先端符丁, ヘッダ (パリティ長, インターリーブ深さ の組を HEADER_REPEAT 回), 符号語列, 終端符丁
+ *
+ * Crc32FrameCodec と同じく CRC32 (4バイト) + ペイロードを本体とし,
+ * 本体を長さがほぼ等しい複数のブロックに区切ってそれぞれにパリティを付ける
+ * ブロック数は 1 符号語 255 バイトに収まる最小数とインターリーブ深さの大きい方で,
+ * 受信側は全体の長さ, パリティ長, 深さから区切りを求める
+ * 符号語をつなげた符号語列を Interleaver で深さ分の行に書き込み, 列ごとに読み出して送る
+ * 行は符号語列を深さで等分した長さで, 符号語の区切りとは揃わない
+ * (符号語数が深さより多い場合や, 符号語の長さに端数がある場合は 1 行に複数の符号語がまたがる)
+ * ブロック数を深さ以上とするので各符号語は 1 行の長さ以下に収まり, 送信順で隣り合うシンボルは
+ * 符号語列の 1 行分離れた位置になる. 深さ程度までの連続したシンボルの誤りは各符号語に分散される
+ * パリティ長 0 なら誤り訂正なしで, 本体を (インターリーブのみ行い) そのまま送る
+ *
+ * 受信側はヘッダの多数決でパリティ長と深さを判定するため, 送信側の設定に合わせる必要はない
+ * 誤り訂正またはインターリーブありのフレームは終端符丁まで揃わないと復元できないので
+ * RECV_DATA を返さない
+ *
+ * パリティ長 0, 深さ DEPTH_STREAM はストリーミング形式で, CRC32 をペイロードの後に置く
+ * 送信側はペイロード全体を待たずに発信でき (StreamFrameEncoder), 受信側は CRC32 を
+ * 1 バイトごとに更新して終端符丁で比較するだけにする
+ * 末尾 4 バイトが CRC32 なので, 受信したバイトは 4 バイト遅れて RECV_DATA で通知する
+ * 長さの分からないストリームでもメモリが増えないよう, 受信側はペイロードを溜めず
+ * (getPayload() は空), 末尾の CRC32 になりうる直近 4 バイトのみを保持する
+ */
+public class RsFrameCodec implements FrameCodec {
+    public static final int HEADER_REPEAT = 3;
+    public static final int HEADER_SIZE = 2; // パリティ長, インターリーブ深さ
+    public static final int PARITY_MAX = 64;
+    public static final int DEPTH_STREAM = 0; // ストリーミング形式 (CRC32 が末尾)
+    static final int CRC_SIZE = 4;
+
+    private final int mParitySize;
+    private final int mDepth;
+    private final ReedSolomon mDecoders[] = new ReedSolomon[PARITY_MAX + 1]; // パリティ長ごとに必要になれば作る
+
+    private int mValueCount = -1; // 先端符丁以降に受信したデータ数. 受信待ちなら -1
+    private final int mHeader[] = new int[HEADER_SIZE * HEADER_REPEAT];
+    private int mRecvParitySize = -1; // ヘッダで判定したパリティ長. 未判定・判定不能なら -1
+    private int mRecvDepth = -1;
+    private int mCorrected = 0;
+    private int mData;
+    private byte mRecvBuf[] = new byte[ReedSolomon.BLOCK_SIZE]; // 受信した符号語列. 足りなければ拡張して使い回す
+    private byte mWorkBuf[] = new byte[ReedSolomon.BLOCK_SIZE]; // デインターリーブ先
+    private byte mPayload[] = new byte[0];
+    private final byte mTail[] = new byte[CRC_SIZE]; // ストリーミング形式で直近に受信した 4 バイト
+    private final CRC32 mCrc = new CRC32(); // 受信側で使い回す
+    private StreamFrameEncoder mStreamEncoder = null;
+
+    // paritySize: 送信時のパリティ長 (0 .. PARITY_MAX). 受信のみなら 0 でよい
+    public RsFrameCodec(int paritySize) {
+        this(paritySize, 1);
+    }
+
+    // depth: 送信時のインターリーブ深さ (1 .. Interleaver.DEPTH_MAX). 1 ならインターリーブなし
+    // パリティ長 0 なら DEPTH_STREAM でストリーミング形式
+    public RsFrameCodec(int paritySize, int depth) {
+        if (paritySize < 0 || paritySize > PARITY_MAX) {
+            throw new IllegalArgumentException("paritySize=" + paritySize);
+        }
+        if (!isValidHeader(paritySize, depth)) {
+            throw new IllegalArgumentException("depth=" + depth);
+        }
+        mParitySize = paritySize;
+        mDepth = depth;
+    }
+
+    public int getParitySize() {
+        return mParitySize;
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    private static boolean isValidHeader(int paritySize, int depth) {
+        return Interleaver.isValidDepth(depth) || (paritySize == 0 && depth == DEPTH_STREAM);
+    }
+
+    private static boolean isStream(int paritySize, int depth) {
+        return paritySize == 0 && depth == DEPTH_STREAM;
+    }
+
+    private ReedSolomon getDecoder(int paritySize) {
+        if (mDecoders[paritySize] == null) {
+            mDecoders[paritySize] = new ReedSolomon(paritySize);
+        }
+        return mDecoders[paritySize];
+    }
+
+    // 本体 length バイトを区切るブロック数
+    private static int getBlockCount(int length, int paritySize, int depth) {
+        if (paritySize == 0) {
+            return 1;
+        }
+        int dataSize = ReedSolomon.BLOCK_SIZE - paritySize;
+        int blocks = Math.max(depth, (length + dataSize - 1) / dataSize);
+        // 各ブロックに 1 バイト以上のデータを残す
+        return Math.min(blocks, length);
+    }
+
+    // 本体 length バイトを符号化した長さ
+    public static int getEncodedSize(int length, int paritySize, int depth) {
+        return length + getBlockCount(length, paritySize, depth) * paritySize;
+    }
+
+    // 符号化した長さから本体の長さを求める. 該当しなければ -1
+    private static int getBodySize(int encodedSize, int paritySize, int depth) {
+        if (paritySize == 0) {
+            return encodedSize;
+        }
+        // ブロック数が増えると本体は短くなり, 本体から求まるブロック数は減るので解は高々 1 つ
+        for (int blocks = 1; blocks * (paritySize + 1) <= encodedSize; blocks++) {
+            int length = encodedSize - blocks * paritySize;
+            if (getBlockCount(length, paritySize, depth) == blocks) {
+                return length;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int[] encode(byte[] payload) {
+        if (isStream(mParitySize, mDepth)) {
+            if (mStreamEncoder == null) {
+                mStreamEncoder = new StreamFrameEncoder();
+            }
+            int symbols[] = new int[StreamFrameEncoder.HEAD_SIZE + payload.length +
+                    StreamFrameEncoder.TAIL_SIZE];
+            int n = mStreamEncoder.begin(symbols, 0);
+            n += mStreamEncoder.encode(payload, 0, payload.length, symbols, n);
+            mStreamEncoder.end(symbols, n);
+            return symbols;
+        }
+        // 本体 = CRC32 + ペイロード
+        byte body[] = new byte[CRC_SIZE + payload.length];
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long crcVal = crc.getValue();
+        for (int i = 0; i < CRC_SIZE; i++) {
+            body[i] = (byte)(crcVal >> (24-i*8));
+        }
+        System.arraycopy(payload, 0, body, CRC_SIZE, payload.length);
+
+        byte encoded[] = new byte[getEncodedSize(body.length, mParitySize, mDepth)];
+        if (mParitySize == 0) {
+            System.arraycopy(body, 0, encoded, 0, body.length);
+        } else {
+            ReedSolomon rs = getDecoder(mParitySize);
+            int blocks = getBlockCount(body.length, mParitySize, mDepth);
+            int off = 0;
+            int n = 0;
+            for (int b = 0; b < blocks; b++) {
+                // 端数は先頭のブロックから 1 バイトずつ割り当てる
+                int len = body.length / blocks + ((b < body.length % blocks) ? 1 : 0);
+                System.arraycopy(body, off, encoded, n, len);
+                rs.encode(body, off, len, encoded, n + len);
+                off += len;
+                n += len + mParitySize;
+            }
+        }
+        byte interleaved[] = new byte[encoded.length];
+        Interleaver.interleave(encoded, 0, interleaved, 0, encoded.length, mDepth);
+
+        int symbols[] = new int[interleaved.length + HEADER_SIZE * HEADER_REPEAT + 2];
+        int n = 0;
+        symbols[n++] = ModemConfig.SYMBOL_IN;
+        for (int i = 0; i < HEADER_REPEAT; i++) {
+            symbols[n++] = mParitySize;
+            symbols[n++] = mDepth;
+        }
+        for (int i = 0; i < interleaved.length; i++) {
+            symbols[n++] = interleaved[i] & 0xFF;
+        }
+        symbols[n] = ModemConfig.SYMBOL_OUT;
+        return symbols;
+    }
+
+    @Override
+    public int decode(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) { // 先端符丁
+            mValueCount = 0;
+            mRecvParitySize = -1;
+            mRecvDepth = -1;
+            return RECV_START;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) { // 終端符丁
+            int count = mValueCount;
+            mValueCount = -1;
+            if (count < mHeader.length + CRC_SIZE) {
+                return RECV_NONE;
+            }
+            return finish(count - mHeader.length) ? RECV_OK : RECV_NG;
+        } else if (symbol < 0 || mValueCount < 0) {
+            return RECV_NONE;
+        }
+        // 先端符丁直後はヘッダ
+        if (mValueCount < mHeader.length) {
+            mHeader[mValueCount++] = symbol & 0xFF;
+            if (mValueCount == mHeader.length) {
+                mRecvParitySize = vote(0);
+                mRecvDepth = vote(1);
+                if (mRecvParitySize > PARITY_MAX || !isValidHeader(mRecvParitySize, mRecvDepth)) {
+                    mRecvParitySize = -1;
+                    mRecvDepth = -1;
+                }
+                mCrc.reset();
+            }
+            return RECV_NONE;
+        }
+        int pos = mValueCount - mHeader.length;
+        mValueCount++;
+        mData = symbol & 0xFF;
+        // ストリーミング形式では直近 4 バイトを巡回して保持し,
+        // CRC32 でないと確定した 4 バイト前のバイトを通知する
+        if (isStream(mRecvParitySize, mRecvDepth)) {
+            int slot = pos % CRC_SIZE;
+            int prev = mTail[slot] & 0xFF;
+            mTail[slot] = (byte)mData;
+            if (pos < CRC_SIZE) {
+                return RECV_NONE;
+            }
+            mData = prev;
+            mCrc.update(mData);
+            return RECV_DATA;
+        }
+        if (pos >= mRecvBuf.length) {
+            byte buf[] = new byte[mRecvBuf.length * 2];
+            System.arraycopy(mRecvBuf, 0, buf, 0, mRecvBuf.length);
+            mRecvBuf = buf;
+        }
+        mRecvBuf[pos] = (byte)mData;
+        // 誤り訂正・インターリーブなしならペイロードをそのまま通知する
+        if (mRecvParitySize == 0 && mRecvDepth == 1 && pos >= CRC_SIZE) {
+            return RECV_DATA;
+        }
+        return RECV_NONE;
+    }
+
+    // ヘッダの field 番目の項目の多数決. 判定できなければ -1
+    private int vote(int field) {
+        for (int i = field; i < mHeader.length; i += HEADER_SIZE) {
+            int votes = 0;
+            for (int j = field; j < mHeader.length; j += HEADER_SIZE) {
+                if (mHeader[j] == mHeader[i]) {
+                    votes++;
+                }
+            }
+            if (votes * 2 > HEADER_REPEAT) {
+                return mHeader[i];
+            }
+        }
+        return -1;
+    }
+
+    // 受信した length バイトの符号語列を並べ戻して訂正し, CRC32 を検査する
+    private boolean finish(int length) {
+        mCorrected = 0;
+        mPayload = new byte[0];
+        int paritySize = mRecvParitySize;
+        int depth = mRecvDepth;
+        if (paritySize < 0) {
+            return false;
+        }
+        if (isStream(paritySize, depth)) {
+            // CRC32 は受信しながら計算済みなので末尾の値と比べるだけ
+            long crcVal = 0;
+            for (int i = length - CRC_SIZE; i < length; i++) {
+                crcVal = (crcVal << 8) | (mTail[i % CRC_SIZE] & 0xFF);
+            }
+            return mCrc.getValue() == crcVal;
+        }
+        int bodySize = getBodySize(length, paritySize, depth);
+        if (bodySize < CRC_SIZE) {
+            return false;
+        }
+        if (mWorkBuf.length < length) {
+            mWorkBuf = new byte[mRecvBuf.length];
+        }
+        byte buf[] = mWorkBuf;
+        Interleaver.deinterleave(mRecvBuf, 0, buf, 0, length, depth);
+        if (paritySize > 0) {
+            ReedSolomon rs = getDecoder(paritySize);
+            int blocks = getBlockCount(bodySize, paritySize, depth);
+            int off = 0;
+            int n = 0;
+            for (int b = 0; b < blocks; b++) {
+                int len = bodySize / blocks + ((b < bodySize % blocks) ? 1 : 0);
+                int corrected = rs.decode(buf, off, len + paritySize);
+                if (corrected < 0) {
+                    return false;
+                }
+                mCorrected += corrected;
+                // 訂正後のデータ部を前に詰める
+                System.arraycopy(buf, off, buf, n, len);
+                off += len + paritySize;
+                n += len;
+            }
+        }
+        long crcVal = 0;
+        for (int i = 0; i < CRC_SIZE; i++) {
+            crcVal = (crcVal << 8) | (buf[i] & 0xFF);
+        }
+        mPayload = new byte[bodySize - CRC_SIZE];
+        System.arraycopy(buf, CRC_SIZE, mPayload, 0, mPayload.length);
+        mCrc.reset();
+        mCrc.update(mPayload, 0, mPayload.length);
+        return mCrc.getValue() == crcVal;
+    }
+
+    // 受信中・直前のフレームのパリティ長. 判定できなければ -1
+    public int getRecvParitySize() {
+        return mRecvParitySize;
+    }
+
+    // 受信中・直前のフレームのインターリーブ深さ. 判定できなければ -1
+    public int getRecvDepth() {
+        return mRecvDepth;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return mRecvParitySize == 0 && (mRecvDepth == 1 || mRecvDepth == DEPTH_STREAM);
+    }
+
+    // 直前のフレームで訂正したバイト数
+    public int getCorrectedCount() {
+        return mCorrected;
+    }
+
+    @Override
+    public boolean isReceiving() {
+        return mValueCount >= 0;
+    }
+
+    @Override
+    public int getData() {
+        return mData;
+    }
+
+    // ストリーミング形式のペイロードは RECV_DATA でのみ受け取り, ここでは空を返す
+    @Override
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    // 符号語列の受信バッファの大きさ (バイト)
+    int getRecvBufferSize() {
+        return mRecvBuf.length;
+    }
+
+    @Override
+    public void reset() {
+        mValueCount = -1;
+    }
+}
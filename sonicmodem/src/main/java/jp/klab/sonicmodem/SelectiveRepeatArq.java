@@ -0,0 +1,411 @@
+package jp.klab.sonicmodem;
+
+/**
+ * 選択再送 (selective-repeat) ARQ
+ * メッセージを番号付きのブロックに分け, ブロックごとの CRC16 で受信側が誤りを判定する
+ * 受信側は受信ずみブロックのビットマップを ACK フレームで返し,
+ * 送信側は受信されなかったブロックのみを次のデータフレームで再送する
+ *
+ * データフレーム: 先端符丁, ヘッダを HEADER_REPEAT 回, ブロック, ..., 終端符丁
+ *   ヘッダ = TYPE_DATA, メッセージ番号, ブロック数, ブロック長, メッセージ長 (2バイト), CRC16 (2バイト)
+ *   ブロック = ブロック番号, データ (ブロック長. 最後のブロックは 0 で埋める), CRC16 (2バイト)
+ * ACK フレーム: 先端符丁, ACK を HEADER_REPEAT 回, 終端符丁
+ *   ACK = TYPE_ACK, メッセージ番号, ブロック数, ビットマップ, CRC16 (2バイト)
+ *
+ * ブロックはすべて同じ長さのため, シンボル誤りがあっても後続のブロックの区切りは保たれる
+ * 受信中に判定結果なし (SYMBOL_NONE) となったシンボルも 1 バイト分として数え, 区切りをずらさない
+ * (ただし setRateByte なら先端符丁直後のレートバイトの分は数えない)
+ * ヘッダと ACK は CRC16 が合う最初の複製を使うので, 1 つが壊れてもフレーム全体は無駄にならない
+ * 1 ターンに受信したフレームに対し createResponse() で次に発信するフレームを得る
+ *
+ * 全二重 (setFullDuplex) では相手の ACK を待たずに次のターンが来るため,
+ * 送ったデータフレームへの ACK か NACK を受け取るまでは再送しない
+ *
+ * データフレームか ACK がまるごと失われると相手は応答しないため, 発信後に応答がなければ
+ * onTimeout() で再送するかを判定する. 応答のないままの再送は RETRY_MAX 回までとする
+ */
+public class SelectiveRepeatArq {
+    public static final int TYPE_DATA = 0xD5;
+    public static final int TYPE_ACK = 0xA5;
+    public static final int BLOCK_COUNT_MAX = 255;
+    public static final int HEADER_REPEAT = 2;
+    public static final int RETRY_MAX = 5; // 応答のないまま再送する回数の上限
+
+    public static final int RECV_NONE  = 0;
+    public static final int RECV_START = 1; // フレーム開始
+    public static final int RECV_DATA  = 2; // データフレームを受信
+    public static final int RECV_ACK   = 3; // ACK フレームを受信
+    public static final int RECV_NG    = 4; // フレームを解釈できなかった
+
+    private static final int HEADER_SIZE = 8;
+    private static final int CRC_SIZE = 2;
+    private static final int BLOCKS_OFFSET = HEADER_SIZE * HEADER_REPEAT;
+
+    private final int mBlockSize;
+
+    // 送信側
+    private int mSendId = 0;
+    private byte mSendMessage[] = new byte[0];
+    private int mSendBlocks = 0;
+    private boolean mAcked[] = new boolean[BLOCK_COUNT_MAX];
+    private int mTransmitted = 0; // 送信したブロック数の累計
+    private int mRetries = 0; // 応答のないまま再送した回数
+
+    // 受信側
+    private int mValueCount = -1; // 先端符丁以降に受信したデータ数. 受信待ちなら -1
+    private byte mFrame[] = new byte[256];
+    private int mRecvId = -1;
+    private int mRecvBlocks = 0;
+    private int mRecvBlockSize = 0;
+    private int mRecvLength = 0;
+    private boolean mReceived[] = new boolean[BLOCK_COUNT_MAX];
+    private byte mRecvMessage[] = new byte[0];
+    private boolean mCompleted = false; // 直前のデータフレームでメッセージが揃った
+    private boolean mAckRequired = false; // 次のターンで ACK を返す
+    private boolean mFullDuplex = false;
+    private boolean mInFlight = false; // ACK を待っているデータフレームがある
+    private boolean mRateByte = false; // 先端符丁の直後にレートバイトのシンボルがある
+    private boolean mRatePending = false; // 次に受信するシンボルがレートバイト
+
+    public SelectiveRepeatArq(int blockSize) {
+        if (blockSize < 1 || blockSize > 255) {
+            throw new IllegalArgumentException("blockSize=" + blockSize);
+        }
+        mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public void setFullDuplex(boolean fullDuplex) {
+        mFullDuplex = fullDuplex;
+    }
+
+    // true なら先端符丁の直後の 1 シンボルをレートバイトとしてフレームのデータに数えない
+    // 変調器が先端符丁に続けてレートバイトを送り, 受信側が 1 シンボル時間ごとに decode する場合に用いる
+    // (RateAdaptiveDemodulator はレートバイトを判定結果なしとして返す)
+    public void setRateByte(boolean rateByte) {
+        mRateByte = rateByte;
+    }
+
+    // CRC-16-CCITT (多項式 0x1021, 初期値 0xFFFF)
+    static int crc16(byte[] data, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc = updateCrc(crc, data[i] & 0xFF);
+        }
+        return crc;
+    }
+
+    // 新しいメッセージの送信を始める. 送りきっていないメッセージは破棄する
+    public void send(byte[] message) {
+        int blocks = Math.max(1, (message.length + mBlockSize - 1) / mBlockSize);
+        if (blocks > BLOCK_COUNT_MAX) {
+            throw new IllegalArgumentException("length=" + message.length);
+        }
+        mSendId = (mSendId + 1) & 0xFF;
+        mSendMessage = message.clone();
+        mSendBlocks = blocks;
+        for (int i = 0; i < blocks; i++) {
+            mAcked[i] = false;
+        }
+        mInFlight = false;
+        mRetries = 0;
+    }
+
+    // 受信側に届いていないブロックが残っているか
+    public boolean hasPending() {
+        return getPendingCount() > 0;
+    }
+
+    public int getPendingCount() {
+        int count = 0;
+        for (int i = 0; i < mSendBlocks; i++) {
+            if (!mAcked[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // これまでに送信したブロック数 (再送を含む)
+    public int getTransmittedCount() {
+        return mTransmitted;
+    }
+
+    // 未達のブロックのみを載せたデータフレーム
+    public int[] createDataFrame() {
+        int pending = getPendingCount();
+        int unit = 1 + mBlockSize + CRC_SIZE;
+        byte frame[] = new byte[BLOCKS_OFFSET + unit * pending];
+        frame[0] = (byte)TYPE_DATA;
+        frame[1] = (byte)mSendId;
+        frame[2] = (byte)mSendBlocks;
+        frame[3] = (byte)mBlockSize;
+        frame[4] = (byte)(mSendMessage.length >> 8);
+        frame[5] = (byte)mSendMessage.length;
+        putCrc(frame, 0, HEADER_SIZE - CRC_SIZE);
+        for (int i = 1; i < HEADER_REPEAT; i++) {
+            System.arraycopy(frame, 0, frame, i * HEADER_SIZE, HEADER_SIZE);
+        }
+        int n = BLOCKS_OFFSET;
+        for (int i = 0; i < mSendBlocks; i++) {
+            if (mAcked[i]) {
+                continue;
+            }
+            frame[n] = (byte)i;
+            int off = i * mBlockSize;
+            System.arraycopy(mSendMessage, off, frame, n + 1,
+                    Math.max(0, Math.min(mBlockSize, mSendMessage.length - off)));
+            // メッセージ番号も含めて検査し, 前のメッセージのブロックと取り違えない
+            int crc = blockCrc(frame, n, mSendId);
+            frame[n + 1 + mBlockSize] = (byte)(crc >> 8);
+            frame[n + 2 + mBlockSize] = (byte)crc;
+            n += unit;
+            mTransmitted++;
+        }
+        mInFlight = true;
+        return toSymbols(frame, frame.length);
+    }
+
+    // 直前に受信したデータフレームに対する ACK フレーム
+    // メッセージ番号が分からなければ空のビットマップを返す
+    public int[] createAckFrame() {
+        int blocks = (mRecvId < 0) ? 0 : mRecvBlocks;
+        int size = 3 + (blocks + 7) / 8 + CRC_SIZE;
+        byte frame[] = new byte[size * HEADER_REPEAT];
+        frame[0] = (byte)TYPE_ACK;
+        frame[1] = (byte)mRecvId;
+        frame[2] = (byte)blocks;
+        for (int i = 0; i < blocks; i++) {
+            if (mReceived[i]) {
+                frame[3 + i / 8] |= (byte)(0x80 >> (i % 8));
+            }
+        }
+        putCrc(frame, 0, size - CRC_SIZE);
+        for (int i = 1; i < HEADER_REPEAT; i++) {
+            System.arraycopy(frame, 0, frame, i * size, size);
+        }
+        return toSymbols(frame, frame.length);
+    }
+
+    // 発信後, 相手の応答を受信しないまま時間切れになった (LinkStateMachine.checkResponseTimeout)
+    // 未達のブロックを再送するなら true を返す. 再送は次の createResponse() で作る
+    public boolean onTimeout() {
+        mInFlight = false;
+        if (!hasPending() || mRetries >= RETRY_MAX) {
+            return false;
+        }
+        mRetries++;
+        return true;
+    }
+
+    // 1 ターンに受信したフレームに対して発信するフレーム列. 発信不要なら長さ 0
+    // ACK が必要なら ACK フレーム, 未達のブロックがあればデータフレームを続ける
+    public int[] createResponse() {
+        int ack[] = (mAckRequired) ? createAckFrame() : new int[0];
+        mAckRequired = false;
+        int data[] = (hasPending() && !(mFullDuplex && mInFlight)) ? createDataFrame() : new int[0];
+        int symbols[] = new int[ack.length + data.length];
+        System.arraycopy(ack, 0, symbols, 0, ack.length);
+        System.arraycopy(data, 0, symbols, ack.length, data.length);
+        return symbols;
+    }
+
+    // 受信したシンボルを与え RECV_* のいずれかを返す
+    public int decode(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) { // 先端符丁
+            mValueCount = 0;
+            mRatePending = mRateByte;
+            return RECV_START;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) { // 終端符丁
+            int count = mValueCount;
+            mValueCount = -1;
+            if (count < 0) {
+                return RECV_NONE;
+            }
+            return parse(count);
+        } else if (mValueCount < 0) {
+            return RECV_NONE;
+        }
+        if (mRatePending) {
+            mRatePending = false;
+            return RECV_NONE;
+        }
+        if (mValueCount >= mFrame.length) {
+            byte frame[] = new byte[mFrame.length * 2];
+            System.arraycopy(mFrame, 0, frame, 0, mFrame.length);
+            mFrame = frame;
+        }
+        // 判定結果なしのシンボルは 0 で埋めて消失とし, そのブロックの CRC16 のみを不一致にする
+        mFrame[mValueCount++] = (byte)((symbol < 0) ? 0 : symbol);
+        return RECV_NONE;
+    }
+
+    public boolean isReceiving() {
+        return mValueCount >= 0;
+    }
+
+    private int parse(int length) {
+        // 相手から応答があったので再送の回数を数え直す
+        mRetries = 0;
+        for (int i = 0; i < HEADER_REPEAT; i++) {
+            int off = i * HEADER_SIZE;
+            if (off + HEADER_SIZE <= length && (mFrame[off] & 0xFF) == TYPE_DATA
+                    && checkCrc(mFrame, off, HEADER_SIZE - CRC_SIZE)) {
+                parseHeader(off);
+                parseBlocks(length);
+                mAckRequired = true;
+                return RECV_DATA;
+            }
+        }
+        // ACK の複製は終端符丁までを等分した位置にある
+        for (int i = 0; i < HEADER_REPEAT; i++) {
+            int off = i * (length / HEADER_REPEAT);
+            if (off + 3 + CRC_SIZE <= length && (mFrame[off] & 0xFF) == TYPE_ACK && parseAck(off, length)) {
+                mInFlight = false;
+                return RECV_ACK;
+            }
+        }
+        // ヘッダが壊れていても受信中のメッセージの再送なら, ブロックは各自の CRC16 で検査して取り込む
+        if (mRecvId >= 0 && !isMessageComplete() && parseBlocks(length) > 0) {
+            mAckRequired = true;
+            return RECV_DATA;
+        }
+        // 送信中なら ACK の欠落とみなして未達のブロックを再送し, そうでなければ NACK を返す
+        // 全二重では相手のデータフレームだった場合に備え, 常に NACK も返す
+        if (!hasPending() || mFullDuplex) {
+            mAckRequired = true;
+        }
+        mInFlight = false;
+        return RECV_NG;
+    }
+
+    private void parseHeader(int off) {
+        int id = mFrame[off + 1] & 0xFF;
+        int blocks = mFrame[off + 2] & 0xFF;
+        if (id != mRecvId || blocks != mRecvBlocks) {
+            // 新しいメッセージ
+            mRecvId = id;
+            mRecvBlocks = blocks;
+            mRecvBlockSize = mFrame[off + 3] & 0xFF;
+            mRecvLength = ((mFrame[off + 4] & 0xFF) << 8) | (mFrame[off + 5] & 0xFF);
+            mRecvMessage = new byte[blocks * mRecvBlockSize];
+            for (int i = 0; i < BLOCK_COUNT_MAX; i++) {
+                mReceived[i] = false;
+            }
+        }
+    }
+
+    // ヘッダに続くブロックを取り込み, 新たに受信したブロック数を返す
+    private int parseBlocks(int length) {
+        boolean wasComplete = isMessageComplete();
+        int count = 0;
+        int unit = 1 + mRecvBlockSize + CRC_SIZE;
+        for (int n = BLOCKS_OFFSET; n + unit <= length; n += unit) {
+            int index = mFrame[n] & 0xFF;
+            int crc = ((mFrame[n + 1 + mRecvBlockSize] & 0xFF) << 8) | (mFrame[n + 2 + mRecvBlockSize] & 0xFF);
+            if (index < mRecvBlocks && blockCrc(mFrame, n, mRecvId, mRecvBlockSize) == crc) {
+                System.arraycopy(mFrame, n + 1, mRecvMessage, index * mRecvBlockSize, mRecvBlockSize);
+                if (!mReceived[index]) {
+                    mReceived[index] = true;
+                    count++;
+                }
+            }
+        }
+        mCompleted = !wasComplete && isMessageComplete();
+        return count;
+    }
+
+    // mFrame[off] からの ACK を検査して反映する. 壊れていれば false
+    private boolean parseAck(int off, int length) {
+        int blocks = mFrame[off + 2] & 0xFF;
+        int size = 3 + (blocks + 7) / 8 + CRC_SIZE;
+        if (off + size > length || !checkCrc(mFrame, off, size - CRC_SIZE)) {
+            return false;
+        }
+        // 別のメッセージに対する ACK (NACK を含む) は未達のブロックをすべて再送させる
+        if ((mFrame[off + 1] & 0xFF) != mSendId || blocks != mSendBlocks) {
+            return true;
+        }
+        for (int i = 0; i < blocks; i++) {
+            if ((mFrame[off + 3 + i / 8] & (0x80 >> (i % 8))) != 0) {
+                mAcked[i] = true;
+            }
+        }
+        return true;
+    }
+
+    // 受信中のメッセージのブロックがすべて揃ったか
+    public boolean isMessageComplete() {
+        if (mRecvId < 0) {
+            return false;
+        }
+        for (int i = 0; i < mRecvBlocks; i++) {
+            if (!mReceived[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 直前のデータフレームで初めてメッセージが揃ったか (再送による重複では false)
+    public boolean isNewlyCompleted() {
+        return mCompleted;
+    }
+
+    // 揃ったメッセージ
+    public byte[] getMessage() {
+        byte message[] = new byte[Math.min(mRecvLength, mRecvMessage.length)];
+        System.arraycopy(mRecvMessage, 0, message, 0, message.length);
+        return message;
+    }
+
+    public void reset() {
+        mValueCount = -1;
+    }
+
+    private int blockCrc(byte[] frame, int off, int id) {
+        return blockCrc(frame, off, id, mBlockSize);
+    }
+
+    // メッセージ番号, ブロック番号, データの CRC16
+    // ブロック番号の直前にメッセージ番号があるものとして計算する
+    private static int blockCrc(byte[] frame, int off, int id, int blockSize) {
+        int crc = updateCrc(0xFFFF, id);
+        for (int i = off; i < off + 1 + blockSize; i++) {
+            crc = updateCrc(crc, frame[i] & 0xFF);
+        }
+        return crc;
+    }
+
+    private static int updateCrc(int crc, int value) {
+        crc ^= value << 8;
+        for (int b = 0; b < 8; b++) {
+            crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x1021) : (crc << 1);
+        }
+        return crc & 0xFFFF;
+    }
+
+    private static void putCrc(byte[] frame, int off, int len) {
+        int crc = crc16(frame, off, len);
+        frame[off + len] = (byte)(crc >> 8);
+        frame[off + len + 1] = (byte)crc;
+    }
+
+    private static boolean checkCrc(byte[] frame, int off, int len) {
+        int crc = ((frame[off + len] & 0xFF) << 8) | (frame[off + len + 1] & 0xFF);
+        return crc16(frame, off, len) == crc;
+    }
+
+    private static int[] toSymbols(byte[] frame, int length) {
+        int symbols[] = new int[length + 2];
+        symbols[0] = ModemConfig.SYMBOL_IN;
+        for (int i = 0; i < length; i++) {
+            symbols[i + 1] = frame[i] & 0xFF;
+        }
+        symbols[length + 1] = ModemConfig.SYMBOL_OUT;
+        return symbols;
+    }
+}
@@ -0,0 +1,134 @@
+package jp.klab.sonicmodem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 集音スレッドから復調スレッドへ音声サンプルを渡す単一生産者・単一消費者のリングバッファ
+ * 書き込みは集音スレッドのみ, 読み出しは復調スレッドのみが行うものとし, ロックを用いない
+ *
+ * 容量は 2 のべき乗で, 書き込み位置・読み出し位置は単調増加の通し番号を容量でマスクして用いる
+ * 2 つの位置は AtomicLongArray 上でキャッシュライン (64 バイト) 以上離して置き,
+ * 生産者と消費者が互いの位置の更新で同じキャッシュラインを奪い合わないようにする
+ *
+ * 空きが足りなければ入りきらないサンプルを捨て, その回数とサンプル数を数える
+ * (復調が遅れて集音を止めてしまうよりも, 捨てたことを検出できる方がよい)
+ */
+public class ShortRingBuffer {
+    private static final int PAD = 8; // long 8 個 = 64 バイト
+    private static final int WRITE_INDEX = PAD;
+    private static final int READ_INDEX = PAD * 3;
+
+    private final short mBuffer[];
+    private final int mMask;
+    private final AtomicLongArray mIndices = new AtomicLongArray(PAD * 4);
+    private volatile long mOverruns = 0; // 書き込みのみが更新する
+    private volatile long mDropped = 0;
+    private volatile Thread mWaiter = null; // 待っている消費者
+
+    // capacity: 2 のべき乗のサンプル数
+    public ShortRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        mBuffer = new short[capacity];
+        mMask = capacity - 1;
+    }
+
+    // minCapacity 以上の最小の 2 のべき乗の容量で作る
+    public static ShortRingBuffer withMinCapacity(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(1, minCapacity));
+        if (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        return new ShortRingBuffer(capacity);
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    // 読み出せるサンプル数
+    public int available() {
+        return (int)(mIndices.get(WRITE_INDEX) - mIndices.get(READ_INDEX));
+    }
+
+    // 生産者: src[off] から len サンプルを書き込み, 書き込んだ数を返す
+    // 入りきらない分は捨てて overrun として数える
+    public int write(short[] src, int off, int len) {
+        long w = mIndices.get(WRITE_INDEX);
+        int free = mBuffer.length - (int)(w - mIndices.get(READ_INDEX));
+        int n = Math.min(len, free);
+        if (n < len) {
+            mOverruns++;
+            mDropped += len - n;
+        }
+        if (n > 0) {
+            int pos = (int)w & mMask;
+            int first = Math.min(n, mBuffer.length - pos);
+            System.arraycopy(src, off, mBuffer, pos, first);
+            System.arraycopy(src, off + first, mBuffer, 0, n - first);
+            // サンプルを書き終えてから位置を公開する
+            // 続く mWaiter の読み出しより前に見えるよう lazySet ではなく set を用いる
+            // (消費者が待ちに入る直前の available() との間で起こしそびれないため)
+            mIndices.set(WRITE_INDEX, w + n);
+        }
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return n;
+    }
+
+    // 消費者: 最大 len サンプルを dst[off] へ読み出し, 読み出した数を返す
+    public int read(short[] dst, int off, int len) {
+        long r = mIndices.get(READ_INDEX);
+        int n = Math.min(len, (int)(mIndices.get(WRITE_INDEX) - r));
+        if (n > 0) {
+            int pos = (int)r & mMask;
+            int first = Math.min(n, mBuffer.length - pos);
+            System.arraycopy(mBuffer, pos, dst, off, first);
+            System.arraycopy(mBuffer, 0, dst, off + first, n - first);
+            // 読み終えてから領域を生産者に返す
+            mIndices.lazySet(READ_INDEX, r + n);
+        }
+        return n;
+    }
+
+    // 消費者: count サンプル以上読み出せるようになるまで最大 timeoutMs 待つ
+    // 読み出せるようになれば true
+    public boolean await(int count, long timeoutMs) {
+        if (available() >= count) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        mWaiter = Thread.currentThread();
+        try {
+            while (available() < count) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || Thread.interrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, wait);
+            }
+            return true;
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    // 空きが足りずにサンプルを捨てた回数
+    public long getOverrunCount() {
+        return mOverruns;
+    }
+
+    // 捨てたサンプル数
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    // 消費者: 溜まっているサンプルを捨てる
+    public void clear() {
+        mIndices.lazySet(READ_INDEX, mIndices.get(WRITE_INDEX));
+    }
+}
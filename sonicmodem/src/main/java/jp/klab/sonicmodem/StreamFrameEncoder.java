@@ -0,0 +1,66 @@
+package jp.klab.sonicmodem;
+
+import java.util.zip.CRC32;
+
+/**
+ * RsFrameCodec のストリーミング形式 (CRC32 を末尾に置く) のフレームを逐次符号化する
+ * 先端符丁, ヘッダ (パリティ長 0, 深さ RsFrameCodec.DEPTH_STREAM), ペイロード, CRC32 (4バイト), 終端符丁
+ *
+ * CRC32 はバイトを符号化するごとに更新するため, ペイロード全体が揃う前から発信を始められる
+ * begin(), encode() を必要な回数, end() の順に呼ぶ
+ */
+public class StreamFrameEncoder {
+    // begin() が書き込むシンボル数
+    public static final int HEAD_SIZE = 1 + RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT;
+    // end() が書き込むシンボル数
+    public static final int TAIL_SIZE = RsFrameCodec.CRC_SIZE + 1;
+
+    private final CRC32 mCrc = new CRC32();
+    private long mLength = -1; // 符号化したペイロード長. begin() 前なら -1
+
+    // 先端符丁とヘッダを out[off] から書き込み, 書き込んだ数を返す
+    public int begin(int[] out, int off) {
+        mCrc.reset();
+        mLength = 0;
+        int n = off;
+        out[n++] = ModemConfig.SYMBOL_IN;
+        for (int i = 0; i < RsFrameCodec.HEADER_REPEAT; i++) {
+            out[n++] = 0;
+            out[n++] = RsFrameCodec.DEPTH_STREAM;
+        }
+        return n - off;
+    }
+
+    // src[srcOff] からの len バイトを out[off] からシンボルとして書き込み, 書き込んだ数を返す
+    public int encode(byte[] src, int srcOff, int len, int[] out, int off) {
+        if (mLength < 0) {
+            throw new IllegalStateException("not begun");
+        }
+        mCrc.update(src, srcOff, len);
+        for (int i = 0; i < len; i++) {
+            out[off + i] = src[srcOff + i] & 0xFF;
+        }
+        mLength += len;
+        return len;
+    }
+
+    // CRC32 (ビッグエンディアン) と終端符丁を out[off] から書き込み, 書き込んだ数を返す
+    public int end(int[] out, int off) {
+        if (mLength < 0) {
+            throw new IllegalStateException("not begun");
+        }
+        long crcVal = mCrc.getValue();
+        int n = off;
+        for (int i = 0; i < RsFrameCodec.CRC_SIZE; i++) {
+            out[n++] = (int)(crcVal >> (24-i*8)) & 0xFF;
+        }
+        out[n++] = ModemConfig.SYMBOL_OUT;
+        mLength = -1;
+        return n - off;
+    }
+
+    // begin() 以降に符号化したペイロード長
+    public long getLength() {
+        return mLength;
+    }
+}
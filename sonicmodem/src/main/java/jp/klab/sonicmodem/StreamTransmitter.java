@@ -0,0 +1,205 @@
+package jp.klab.sonicmodem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 入力ストリームを読みながらストリーミング形式 (StreamFrameEncoder) のフレームに区切って発信する
+ * 入力全体や波形全体をメモリに置かないため, 数 KB 以上のファイルも送れる
+ *
+ * 波形は呼び出し側のスレッドで合成し, 2 つの PCM バッファを交互に使って書き出しスレッドへ渡す
+ * 書き出し (AudioTrack.write など, 再生が追いつくまで戻らない) の間に次の波形を合成する
+ */
+public class StreamTransmitter {
+    public static final int FRAME_SIZE_DEFAULT = 1024; // 1 フレームのペイロード長の上限
+    private static final int CHUNK_SIZE = 64; // 一度に読み込み符号化するバイト数
+    private static final int IDLE_WAIT_MAX_MS = 16; // 入力が届かない間の待ち時間の上限
+
+    // 合成した PCM の書き出し先. 書き出し用のスレッドから呼ばれる
+    public interface PcmWriter {
+        void write(short[] pcm, int off, int len);
+    }
+
+    private final Modulator mModulator;
+    private final int mTones;
+    private final int mFrameSize;
+    private final PcmWriter mWriter;
+    private final StreamFrameEncoder mEncoder = new StreamFrameEncoder();
+    private final ByteBuffer mReadBuf = ByteBuffer.allocate(CHUNK_SIZE);
+    private final int mSymbols[];
+    private final ShortBuffer mPcmBufs[] = new ShortBuffer[2];
+    private final ShortBuffer mEnd = ShortBuffer.allocate(0); // 書き出し終了の合図
+    private final BlockingQueue<ShortBuffer> mFree = new ArrayBlockingQueue<ShortBuffer>(2);
+    private final BlockingQueue<ShortBuffer> mFilled = new ArrayBlockingQueue<ShortBuffer>(3);
+    private ShortBuffer mPcm; // 合成中のバッファ
+    private volatile boolean mCancel = false;
+    private volatile RuntimeException mWriteError = null;
+    private int mFrameCount = 0;
+
+    // tones: modulator が 1 シンボルにまとめるデータ数 (同時送信数)
+    public StreamTransmitter(Modulator modulator, int tones, PcmWriter writer) {
+        this(modulator, tones, FRAME_SIZE_DEFAULT, writer);
+    }
+
+    public StreamTransmitter(Modulator modulator, int tones, int frameSize, PcmWriter writer) {
+        if (tones <= 0) {
+            throw new IllegalArgumentException("tones=" + tones);
+        }
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("frameSize=" + frameSize);
+        }
+        mModulator = modulator;
+        mTones = tones;
+        mFrameSize = frameSize;
+        mWriter = writer;
+        mSymbols = new int[StreamFrameEncoder.HEAD_SIZE + tones + CHUNK_SIZE +
+                StreamFrameEncoder.TAIL_SIZE];
+        // 最も長いシンボル (通常は先端符丁) が収まる大きさ
+        int pcmSize = Math.max(modulator.getSymbolLength(0),
+                Math.max(modulator.getSymbolLength(ModemConfig.SYMBOL_IN),
+                        modulator.getSymbolLength(ModemConfig.SYMBOL_OUT)));
+        for (int i = 0; i < mPcmBufs.length; i++) {
+            mPcmBufs[i] = ShortBuffer.allocate(pcmSize);
+        }
+    }
+
+    public long send(InputStream in) throws IOException {
+        return send(Channels.newChannel(in));
+    }
+
+    // ch を終わりまで読んで発信し, 書き出しを終えたら送ったバイト数を返す
+    // ノンブロッキングの ch が 0 バイトを返す間は, 1msec から倍々に IDLE_WAIT_MAX_MS まで待って読み直す
+    public long send(ReadableByteChannel ch) throws IOException {
+        mCancel = false;
+        mWriteError = null;
+        mFree.clear();
+        mFilled.clear();
+        mPcm = mPcmBufs[0];
+        mPcm.clear();
+        mFree.add(mPcmBufs[1]);
+        Thread writer = new Thread(mWriteLoop);
+        writer.start();
+        long total = 0;
+        try {
+            int count = 0; // mSymbols の未発信のシンボル数
+            int frameLength = -1; // 送信中のフレームのペイロード長. フレーム外なら -1
+            int idleWait = 0; // 入力が届かない間の次の待ち時間 (msec)
+            while (!mCancel) {
+                mReadBuf.clear();
+                mReadBuf.limit(Math.min(CHUNK_SIZE, mFrameSize - Math.max(frameLength, 0)));
+                int n = ch.read(mReadBuf);
+                if (n < 0) {
+                    break;
+                }
+                if (n == 0) {
+                    // センサなどの入力が途切れている間に CPU を占有しない
+                    idleWait = Math.min(Math.max(idleWait * 2, 1), IDLE_WAIT_MAX_MS);
+                    Thread.sleep(idleWait);
+                    continue;
+                }
+                idleWait = 0;
+                if (frameLength < 0) {
+                    count = mEncoder.begin(mSymbols, 0);
+                    frameLength = 0;
+                    mFrameCount++;
+                }
+                count += mEncoder.encode(mReadBuf.array(), 0, n, mSymbols, count);
+                frameLength += n;
+                total += n;
+                if (frameLength >= mFrameSize) {
+                    count += mEncoder.end(mSymbols, count);
+                    count = emit(count, 1);
+                    frameLength = -1;
+                } else {
+                    // 同時送信数に満たない端数は続きのデータとまとめて 1 シンボルで送る
+                    count = emit(count, mTones);
+                }
+            }
+            if (frameLength >= 0 && !mCancel) {
+                count += mEncoder.end(mSymbols, count);
+                emit(count, 1);
+            }
+            if (mPcm.position() > 0) {
+                handOff();
+            }
+        } catch (InterruptedException e) {
+            mCancel = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            mFilled.offer(mEnd);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mWriteError != null) {
+            throw new IOException(mWriteError);
+        }
+        return total;
+    }
+
+    // mSymbols の先頭から count 個のうち group 個以上残っている間を合成し,
+    // 残りを先頭に詰めてその数を返す
+    private int emit(int count, int group) throws InterruptedException {
+        int i = 0;
+        while (i < count && count - i >= group && !mCancel) {
+            if (mPcm.remaining() < mModulator.getSymbolLength(mSymbols[i])) {
+                handOff();
+            }
+            i += mModulator.modulate(mSymbols, i, mPcm);
+        }
+        System.arraycopy(mSymbols, i, mSymbols, 0, count - i);
+        return count - i;
+    }
+
+    // 合成したバッファを書き出しスレッドへ渡し, もう一方の空いたバッファに切り替える
+    private void handOff() throws InterruptedException {
+        mPcm.flip();
+        mFilled.put(mPcm);
+        mPcm = mFree.take();
+        mPcm.clear();
+    }
+
+    private final Runnable mWriteLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ShortBuffer buf = mFilled.take();
+                    if (buf == mEnd) {
+                        break;
+                    }
+                    if (!mCancel) {
+                        mWriter.write(buf.array(), 0, buf.limit());
+                    }
+                    mFree.put(buf);
+                }
+            } catch (InterruptedException e) {
+                mCancel = true;
+            } catch (RuntimeException e) {
+                mWriteError = e;
+                mCancel = true;
+                // 合成側が空きを待ち続けないよう返しておく
+                mFree.offer(mPcmBufs[0]);
+                mFree.offer(mPcmBufs[1]);
+            }
+        }
+    };
+
+    // 送信中の send() を打ち切る. 合成済みで書き出していない分は捨てる
+    public void cancel() {
+        mCancel = true;
+    }
+
+    // これまでに送り始めたフレーム数
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+}
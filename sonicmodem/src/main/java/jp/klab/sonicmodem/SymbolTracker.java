@@ -0,0 +1,134 @@
+package jp.klab.sonicmodem;
+
+/**
+ * スライディング DFT によるシンボル境界の検出
+ * 対象周波数成分のエネルギーを 1 サンプルごとに更新し
+ * 持続していた信号が途切れた位置をシンボル境界とみなす
+ */
+public class SymbolTracker {
+    private static final double RATIO_LOCK = 0.5; // 信号とみなすエネルギー比
+    private static final double RATIO_PEAK = 0.01; // ピーク維持とみなす減衰率
+    private static final double RATIO_DROP = 0.5; // 途切れとみなす減衰率
+
+    private final int mSize;
+    private final int mFreqs[];
+    private final double mCos[];
+    private final double mSin[];
+    private final double mRe[];
+    private final double mIm[];
+    private final short mWindow[]; // 直近 mSize サンプル分のリングバッファ
+    private final int mBias; // ピーク維持判定による境界位置のずれ
+    private long mPos; // 入力済みサンプル数
+    private long mPower; // 窓内の二乗和
+    private int mTone = -1; // 持続中の信号
+    private double mPeak;
+    private long mPeakPos;
+    private int mLastTone = -1; // 直前に途切れた信号
+    private long mBoundary = -1;
+
+    // freqs: 追跡対象の周波数群, size: 1シンボルのサンプル数
+    public SymbolTracker(int[] freqs, int sampleRate, int size) {
+        mSize = size;
+        mFreqs = freqs.clone();
+        mCos = new double[freqs.length];
+        mSin = new double[freqs.length];
+        mRe = new double[freqs.length];
+        mIm = new double[freqs.length];
+        mWindow = new short[size];
+        for (int i = 0; i < freqs.length; i++) {
+            int k = (int)Math.round((double)freqs[i] * size / sampleRate);
+            mCos[i] = Math.cos(2.0 * Math.PI * k / size);
+            mSin[i] = Math.sin(2.0 * Math.PI * k / size);
+        }
+        // 純音の窓が d サンプルずれるとエネルギーは ((N-d)/N)^2 倍
+        mBias = (int)Math.round(size * (1.0 - Math.sqrt(1.0 - RATIO_PEAK)));
+        reset();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mRe.length; i++) {
+            mRe[i] = 0;
+            mIm[i] = 0;
+        }
+        for (int i = 0; i < mSize; i++) {
+            mWindow[i] = 0;
+        }
+        mPos = 0;
+        mPower = 0;
+        mTone = -1;
+        mLastTone = -1;
+        mBoundary = -1;
+    }
+
+    // data[off] から len サンプルを入力する
+    // 持続していた信号の途切れを検出した場合はその時点までに消費したサンプル数を,
+    // それ以外は len を返す
+    public int process(short[] data, int off, int len) {
+        for (int n = 0; n < len; n++) {
+            short x = data[off + n];
+            int w = (int)(mPos % mSize);
+            short old = mWindow[w];
+            mWindow[w] = x;
+            mPower += x * x - old * old;
+            mPos++;
+            // X(n) = (X(n-1) + x(n) - x(n-N)) * e^(j2πk/N)
+            double d = x - old;
+            int maxTone = -1;
+            double maxEnergy = 0;
+            for (int i = 0; i < mRe.length; i++) {
+                double re = mRe[i] + d;
+                double im = mIm[i];
+                mRe[i] = re * mCos[i] - im * mSin[i];
+                mIm[i] = re * mSin[i] + im * mCos[i];
+                double e = mRe[i] * mRe[i] + mIm[i] * mIm[i];
+                if (e > maxEnergy) {
+                    maxEnergy = e;
+                    maxTone = i;
+                }
+            }
+            if (mPos < mSize) {
+                continue;
+            }
+            if (mTone < 0) {
+                // 純音なら |X[k]|^2 = (N/2) * Σx^2
+                if (maxTone >= 0 && maxEnergy >= RATIO_LOCK * mPower * mSize / 2) {
+                    mTone = maxTone;
+                    mPeak = maxEnergy;
+                    mPeakPos = mPos;
+                }
+                continue;
+            }
+            double e = mRe[mTone] * mRe[mTone] + mIm[mTone] * mIm[mTone];
+            if (e > mPeak) {
+                mPeak = e;
+            }
+            if (e >= mPeak * (1.0 - RATIO_PEAK)) {
+                mPeakPos = mPos;
+            } else if (e < mPeak * RATIO_DROP) {
+                // 窓が信号の終端に一致していた位置を境界とする
+                mLastTone = mTone;
+                mBoundary = mPeakPos - mBias;
+                mTone = -1;
+                return n + 1;
+            }
+        }
+        return len;
+    }
+
+    // 直前に途切れた信号の周波数. 未検出なら -1
+    public int getLastFreq() {
+        return (mLastTone < 0) ? -1 : mFreqs[mLastTone];
+    }
+
+    // 直前に検出した境界以降に入力済みのサンプルを dst へコピーしその数を返す
+    public int copySinceBoundary(short[] dst) {
+        if (mBoundary < 0) {
+            return 0;
+        }
+        int count = (int)Math.min(mPos - mBoundary, Math.min(mSize, dst.length));
+        for (int i = 0; i < count; i++) {
+            dst[i] = mWindow[(int)((mPos - count + i) % mSize)];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,124 @@
+package jp.klab.sonicmodem;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * シンボルごとに単一周波数のサイン波を出力する
+ * 信号データは WaveformCache から初めて使う時点で取り出し, 周波数・振幅・長さが同じなら
+ * 他の変調器 (モード切り替え前の設定など) と共有する
+ *
+ * 同時送信数 2 以上ではデータ 1 バイトごとに帯域を変えたサイン波を重ねて出力する
+ * 各波の振幅は amplitude / 同時送信数 とし, 合成後も amplitude を超えないようにする
+ *
+ * 先端符丁の直後にはシンボル長を示すレートバイトを続けて出力する
+ */
+public class ToneModulator implements Modulator {
+    private final ModemConfig mConfig;
+    private final WaveformCache mCache;
+    private final short mSigIn[];
+    private final short mSigOut[];
+    private final short mSigRate[];
+    private final short mSignals[][]; // 使うまで null
+    private final double mSineTable[]; // sin(2π j / mTableSize) の 1 周期分
+    private final int mTableSize;
+
+    // サイン波データを生成
+    public static void createSineWave(short[] buf, int freq, int amplitude, boolean doClear) {
+        if (doClear) {
+            Arrays.fill(buf, (short) 0);
+        }
+        WaveformCache.addSineWave(buf, 0, buf.length, freq, amplitude, ModemConfig.SAMPLE_RATE);
+    }
+
+    public ToneModulator(ModemConfig config) {
+        this(config, WaveformCache.getShared());
+    }
+
+    public ToneModulator(ModemConfig config, WaveformCache cache) {
+        mConfig = config;
+        mCache = cache;
+        int amp = config.getAmplitude();
+        int rate = config.getSampleRate();
+        // 先端・終端符丁の信号データ
+        mSigIn = cache.get(config.getFreqIn(), amp, config.getMarkerSize(), rate);
+        mSigOut = cache.get(config.getFreqOut(), amp, config.getMarkerSize(), rate);
+        mSigRate = cache.get(config.getRateFreq(), amp, config.getRateSize(), rate);
+        // 256種類の信号データは送信するときに取り出す
+        mSignals = new short[ModemConfig.ELMS_MAX][];
+        // 全データ周波数は FREQ_STEP の倍数なので SAMPLE_RATE / FREQ_STEP サンプルを周期とする
+        // 同時送信数 1 では使わないので作らない
+        if (config.getTones() > 1) {
+            mTableSize = rate / config.getFreqStep();
+            mSineTable = new double[mTableSize];
+            // 1 周期分を回転の漸化式で求める
+            double c = Math.cos(2.0 * Math.PI / mTableSize);
+            double s = Math.sin(2.0 * Math.PI / mTableSize);
+            double re = 1;
+            double im = 0;
+            for (int i = 0; i < mTableSize; i++) {
+                mSineTable[i] = im;
+                double next = re * c - im * s;
+                im = re * s + im * c;
+                re = next;
+            }
+        } else {
+            mTableSize = 0;
+            mSineTable = null;
+        }
+    }
+
+    private short[] getSignal(int symbol) {
+        short signal[] = mSignals[symbol];
+        if (signal == null) {
+            signal = mCache.get(mConfig.getFreq(symbol), mConfig.getAmplitude(),
+                    mConfig.getUnitSize(), mConfig.getSampleRate());
+            mSignals[symbol] = signal;
+        }
+        return signal;
+    }
+
+    @Override
+    public int modulate(int[] symbols, int off, ShortBuffer out) {
+        int symbol = symbols[off];
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            out.put(mSigIn);
+            out.put(mSigRate);
+            return 1;
+        } else if (symbol == ModemConfig.SYMBOL_OUT) {
+            out.put(mSigOut);
+            return 1;
+        }
+        int tones = mConfig.getTones();
+        if (tones == 1) {
+            out.put(getSignal(symbol));
+            return 1;
+        }
+        // 後続のデータを最大 tones 個まとめ, 帯域 0, 1, ... に割り当てる
+        int count = 1;
+        while (count < tones && off + count < symbols.length &&
+                symbols[off + count] >= 0 && symbols[off + count] < ModemConfig.ELMS_MAX) {
+            count++;
+        }
+        int step = mConfig.getFreqStep();
+        double amp = (double)mConfig.getAmplitude() / tones;
+        int unitSize = mConfig.getUnitSize();
+        for (int i = 0; i < unitSize; i++) {
+            double val = 0;
+            for (int k = 0; k < count; k++) {
+                int m = mConfig.getFreq(k, symbols[off + k]) / step; // 1 周期中の波数
+                val += amp * mSineTable[(m * i) % mTableSize];
+            }
+            out.put((short)val);
+        }
+        return count;
+    }
+
+    @Override
+    public int getSymbolLength(int symbol) {
+        if (symbol == ModemConfig.SYMBOL_IN) {
+            return mConfig.getMarkerSize() + mConfig.getRateSize();
+        }
+        return mConfig.getSymbolLength(symbol);
+    }
+}
@@ -0,0 +1,132 @@
+package jp.klab.sonicmodem;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+
+/**
+ * サイン波の信号データのキャッシュ
+ * (周波数, 振幅, サンプル数, サンプリングレート) ごとに初めて要求された時点で生成し,
+ * 同じ組を使う変調器 (モード切り替え前後の ToneModulator など) で共有する
+ *
+ * 値は SoftReference で持つため, 使っている変調器がなくなりメモリが不足すれば GC が回収する
+ * 回収された組は次に要求された時点で作り直す
+ *
+ * 返す配列は共有されるため, 呼び出し側で書き換えてはならない
+ */
+public class WaveformCache {
+    private static final WaveformCache sShared = new WaveformCache();
+
+    private static final class Key {
+        final int freq;
+        final int amplitude;
+        final int length;
+        final int sampleRate;
+
+        Key(int freq, int amplitude, int length, int sampleRate) {
+            this.freq = freq;
+            this.amplitude = amplitude;
+            this.length = length;
+            this.sampleRate = sampleRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return freq == k.freq && amplitude == k.amplitude &&
+                    length == k.length && sampleRate == k.sampleRate;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((freq * 31 + amplitude) * 31 + length) * 31 + sampleRate;
+        }
+    }
+
+    // 回収されたときにキーから取り除けるよう, キーを覚えておく
+    private static final class Entry extends SoftReference<short[]> {
+        final Key key;
+
+        Entry(Key key, short[] wave, ReferenceQueue<short[]> queue) {
+            super(wave, queue);
+            this.key = key;
+        }
+    }
+
+    private final HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+    private final ReferenceQueue<short[]> mQueue = new ReferenceQueue<short[]>();
+    private int mGenerated = 0;
+
+    // 全変調器で共有するキャッシュ
+    public static WaveformCache getShared() {
+        return sShared;
+    }
+
+    // freq Hz, 振幅 amplitude, length サンプルのサイン波 (位相 0 から)
+    public synchronized short[] get(int freq, int amplitude, int length, int sampleRate) {
+        if (length < 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("length=" + length + " sampleRate=" + sampleRate);
+        }
+        expunge();
+        Key key = new Key(freq, amplitude, length, sampleRate);
+        Entry entry = mEntries.get(key);
+        short wave[] = (entry != null) ? entry.get() : null;
+        if (wave == null) {
+            wave = new short[length];
+            addSineWave(wave, 0, length, freq, amplitude, sampleRate);
+            mEntries.put(key, new Entry(key, wave, mQueue));
+            mGenerated++;
+        }
+        return wave;
+    }
+
+    public short[] get(int freq, int amplitude, int length) {
+        return get(freq, amplitude, length, ModemConfig.SAMPLE_RATE);
+    }
+
+    // 回収された組を取り除く
+    private void expunge() {
+        Entry entry;
+        while ((entry = (Entry)mQueue.poll()) != null) {
+            if (mEntries.get(entry.key) == entry) {
+                mEntries.remove(entry.key);
+            }
+        }
+    }
+
+    // 保持している (回収されていない) 組の数
+    public synchronized int size() {
+        expunge();
+        return mEntries.size();
+    }
+
+    // これまでに生成した信号データの数
+    public synchronized int getGeneratedCount() {
+        return mGenerated;
+    }
+
+    // 明示的に全て手放す (Activity の onTrimMemory などから)
+    public synchronized void clear() {
+        mEntries.clear();
+        expunge();
+    }
+
+    // buf[off] から length サンプルに freq Hz, 振幅 amplitude のサイン波 (位相 0 から) を加える
+    // sin((n+1)w) = 2cos(w) sin(nw) - sin((n-1)w) の漸化式で求め, Math.sin はサンプルごとに呼ばない
+    public static void addSineWave(short[] buf, int off, int length, int freq, double amplitude,
+                                   int sampleRate) {
+        double w = 2.0 * Math.PI * freq / sampleRate;
+        double coeff = 2.0 * Math.cos(w);
+        double prev = -amplitude * Math.sin(w); // sin(-w)
+        double cur = 0; // sin(0)
+        for (int i = 0; i < length; i++) {
+            buf[off + i] += (short)cur;
+            double next = coeff * cur - prev;
+            prev = cur;
+            cur = next;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConvolutionalCodeTest {
+    private static final int AMP = 500;
+
+    private static short[] modulate(ModemConfig config, int[] symbols) {
+        CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10);
+        int length = 0;
+        for (int symbol : symbols) {
+            length += modulator.getSymbolLength(symbol);
+        }
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        return buf.array();
+    }
+
+    // 雑音を加えた信号を受信し, soft なら軟判定, そうでなければ硬判定で復号した結果
+    private static int receive(short[] pcm, boolean soft, byte[] expected) {
+        RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(ModemConfig.FREQ_BASE_HIGH, 1);
+        ConvFrameCodec codec = new ConvFrameCodec();
+        int recv[] = new int[1];
+        double likelihoods[] = new double[ModemConfig.ELMS_MAX];
+        int result = FrameCodec.RECV_NONE;
+        int size;
+        for (int off = 0; off + (size = demodulator.getBlockSize()) <= pcm.length; off += size) {
+            int count = demodulator.demodulate(pcm, off, recv);
+            for (int i = 0; i < count; i++) {
+                int ret;
+                if (soft && recv[i] < ModemConfig.ELMS_MAX) {
+                    assertTrue(demodulator.isCoded());
+                    demodulator.getLikelihoods(i, likelihoods);
+                    ret = codec.decode(recv[i], likelihoods);
+                } else {
+                    ret = codec.decode(recv[i]);
+                }
+                if (ret == FrameCodec.RECV_OK || ret == FrameCodec.RECV_NG) {
+                    result = ret;
+                }
+            }
+        }
+        if (result == FrameCodec.RECV_OK) {
+            assertArrayEquals(expected, codec.getPayload());
+        }
+        return result;
+    }
+
+    @Test
+    public void encode_decode_roundTrip() throws Exception {
+        Random r = new Random(0);
+        ConvolutionalCode code = new ConvolutionalCode();
+        for (int len : new int[] {1, 5, 100}) {
+            byte data[] = new byte[len];
+            r.nextBytes(data);
+            byte encoded[] = new byte[ConvolutionalCode.getEncodedSize(len)];
+            ConvolutionalCode.encode(data, 0, len, encoded, 0);
+            assertEquals(len, ConvolutionalCode.getDecodedSize(encoded.length));
+            double soft[] = new double[encoded.length * 8];
+            for (int i = 0; i < encoded.length; i++) {
+                ConvolutionalCode.toSoftBits(encoded[i] & 0xFF, null, soft, i * 8);
+            }
+            // 離れた位置の 1 ビット誤りは訂正される
+            for (int i = 3; i < len * 16; i += 40) {
+                soft[i] = -soft[i];
+            }
+            byte decoded[] = new byte[len];
+            code.decode(soft, 0, decoded, 0, len);
+            assertArrayEquals(data, decoded);
+        }
+    }
+
+    @Test
+    public void rateByte_signalsCodedMode() throws Exception {
+        byte payload[] = "coded".getBytes("UTF-8");
+        for (int symbolMs : new int[] {100, 50}) {
+            ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_HIGH, AMP, 1, symbolMs, true);
+            assertEquals(symbolMs | ModemConfig.RATE_CODED, config.getRateValue());
+            short pcm[] = modulate(config, new ConvFrameCodec().encode(payload));
+            assertEquals(FrameCodec.RECV_OK, receive(pcm, true, payload));
+        }
+    }
+
+    @Test
+    public void softDecision_outperformsHardDecision() throws Exception {
+        Random r = new Random(1);
+        byte payload[] = "soft decision Viterbi".getBytes("UTF-8");
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_HIGH, AMP, 1, 100, true);
+        short sig[] = modulate(config, new ConvFrameCodec().encode(payload));
+        int data = config.getMarkerSize() + config.getRateSize();
+        int softOK = 0;
+        int hardOK = 0;
+        for (int trial = 0; trial < 20; trial++) {
+            // 先端符丁とレートバイトは正しく受信できたものとし, データ部のみに雑音を加える
+            short pcm[] = sig.clone();
+            for (int i = data; i < pcm.length - config.getMarkerSize(); i++) {
+                double v = pcm[i] + r.nextGaussian() * AMP * 9;
+                pcm[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+            }
+            if (receive(pcm, true, payload) == FrameCodec.RECV_OK) {
+                softOK++;
+            }
+            if (receive(pcm, false, payload) == FrameCodec.RECV_OK) {
+                hardOK++;
+            }
+        }
+        assertTrue("soft=" + softOK + " hard=" + hardOK, softOK >= 8 && softOK > hardOK + 3);
+    }
+
+    @Test
+    public void reset_doesNotCarryCodedModeToNextFrame() throws Exception {
+        byte payload[] = "next".getBytes("UTF-8");
+        ModemConfig coded = new ModemConfig(ModemConfig.FREQ_BASE_HIGH, AMP, 1, 100, true);
+        ModemConfig plain = new ModemConfig(ModemConfig.FREQ_BASE_HIGH, AMP, 1, 100, false);
+        short first[] = modulate(coded, new ConvFrameCodec().encode(payload));
+        short second[] = modulate(plain, new RsFrameCodec(0).encode(payload));
+        RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(ModemConfig.FREQ_BASE_HIGH, 1);
+        int recv[] = new int[1];
+        int size;
+        for (int off = 0; off + (size = demodulator.getBlockSize()) <= first.length; off += size) {
+            demodulator.demodulate(first, off, recv);
+        }
+        assertTrue(demodulator.isCoded());
+
+        // 受信側は先端符丁を受けるたびに reset する. レートバイトを受ける前に前のフレームの判定を使わない
+        demodulator.reset();
+        assertFalse(demodulator.isCoded());
+        assertEquals(0, demodulator.getSymbolMs());
+        RsFrameCodec codec = new RsFrameCodec(0);
+        int result = FrameCodec.RECV_NONE;
+        for (int off = 0; off + (size = demodulator.getBlockSize()) <= second.length; off += size) {
+            int count = demodulator.demodulate(second, off, recv);
+            for (int i = 0; i < count; i++) {
+                assertFalse(demodulator.isCoded());
+                int ret = codec.decode(recv[i]);
+                if (ret == FrameCodec.RECV_OK || ret == FrameCodec.RECV_NG) {
+                    result = ret;
+                }
+            }
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertEquals(100, demodulator.getSymbolMs());
+    }
+}
@@ -0,0 +1,201 @@
+package jp.klab.sonicmodem;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CpfskModulatorTest {
+
+    private static short[] modulate(Modulator modulator, int[] symbols, int length) {
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        return buf.array();
+    }
+
+    private static int[] randomData(Random r, int length) {
+        int symbols[] = new int[length];
+        for (int i = 0; i < length; i++) {
+            symbols[i] = r.nextInt(ModemConfig.ELMS_MAX);
+        }
+        return symbols;
+    }
+
+    // 帯域の上端から 1kHz 以上離れた成分のエネルギーの割合
+    private static double outOfBandRatio(ModemConfig config, short[] pcm) {
+        double buf[] = new double[pcm.length];
+        for (int i = 0; i < pcm.length; i++) {
+            buf[i] = pcm[i];
+        }
+        new DoubleFFT_1D(buf.length).realForward(buf);
+        double total = 0;
+        double out = 0;
+        int edge = (int)((long)(config.getFreqMax() + 1000) * buf.length / config.getSampleRate());
+        for (int i = 1; i < buf.length / 2; i++) {
+            double p = buf[i*2] * buf[i*2] + buf[i*2 + 1] * buf[i*2 + 1];
+            total += p;
+            if (i > edge) {
+                out += p;
+            }
+        }
+        return out / total;
+    }
+
+    @Test
+    public void frame_roundTrip() throws Exception {
+        byte payload[] = "Hello, sonic!".getBytes("UTF-8");
+        for (int symbolMs : ModemConfig.SYMBOL_MS) {
+            for (int tones : new int[] {1, 2}) {
+                if (tones > ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_LOW, symbolMs)) {
+                    continue;
+                }
+                ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, tones, symbolMs);
+                CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10);
+                int symbols[] = new Crc32FrameCodec().encode(payload);
+                int length = 0;
+                for (int symbol : symbols) {
+                    length += modulator.getSymbolLength(symbol);
+                }
+                short pcm[] = modulate(modulator, symbols, length);
+                RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(
+                        ModemConfig.FREQ_BASE_LOW, tones);
+                Crc32FrameCodec codec = new Crc32FrameCodec();
+                int recv[] = new int[tones];
+                int result = FrameCodec.RECV_NONE;
+                int size;
+                for (int off = 0; off + (size = demodulator.getBlockSize()) <= pcm.length;
+                        off += size) {
+                    int count = demodulator.demodulate(pcm, off, recv);
+                    for (int i = 0; i < count; i++) {
+                        int r = codec.decode(recv[i]);
+                        if (r == FrameCodec.RECV_OK || r == FrameCodec.RECV_NG) {
+                            result = r;
+                        }
+                    }
+                }
+                assertEquals(FrameCodec.RECV_OK, result);
+                assertArrayEquals(payload, codec.getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void phase_isContinuousAcrossSymbols() throws Exception {
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 28000, 1, 20);
+        CpfskModulator modulator = new CpfskModulator(config, 0);
+        // 低い周波数のみを用い, 位相が飛べば 1 サンプルの変化量が大きく超えるようにする
+        Random r = new Random(0);
+        int symbols[] = new int[100];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = r.nextInt(8);
+        }
+        short pcm[] = modulate(modulator, symbols, config.getUnitSize() * symbols.length);
+        // 1 サンプルあたりの変化量は最高周波数の正弦波の傾き以下
+        double maxStep = config.getAmplitude() * 2 * Math.PI * config.getFreq(7)
+                / config.getSampleRate() + 2;
+        for (int i = 1; i < pcm.length; i++) {
+            assertTrue("i=" + i, Math.abs(pcm[i] - pcm[i - 1]) <= maxStep);
+        }
+    }
+
+    @Test
+    public void sineTable_interpolationError() throws Exception {
+        Random r = new Random(2);
+        double maxError = 0;
+        for (int i = 0; i < 1000000; i++) {
+            int phase = r.nextInt();
+            double expected = Math.sin(2.0 * Math.PI * (phase & 0xFFFFFFFFL) / 4294967296.0);
+            maxError = Math.max(maxError, Math.abs(SineTable.sin(phase) - expected));
+        }
+        // 線形補間の理論値 (2π / 4096)^2 / 8 ≒ 2.9e-7 に float の丸めを加えた程度
+        assertTrue("maxError=" + maxError, maxError < 4e-7);
+    }
+
+    @Test
+    public void wavetable_matchesMathSin() throws Exception {
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 28000, 2, 50);
+        int rampSize = config.getUnitSize() / 10;
+        int symbols[] = new int[2 + 40];
+        symbols[0] = ModemConfig.SYMBOL_IN;
+        System.arraycopy(randomData(new Random(3), 40), 0, symbols, 1, 40);
+        symbols[symbols.length - 1] = ModemConfig.SYMBOL_OUT;
+        CpfskModulator modulator = new CpfskModulator(config, rampSize);
+        int length = 0;
+        for (int i = 0; i < symbols.length; ) {
+            length += modulator.getSymbolLength(symbols[i]);
+            i += (symbols[i] < ModemConfig.ELMS_MAX) ? config.getTones() : 1;
+        }
+        short pcm[] = modulate(modulator, symbols, length);
+
+        // 位相を double で持ち Math.sin で求める従来の生成方法
+        double ramp[] = new double[rampSize];
+        for (int i = 0; i < rampSize; i++) {
+            ramp[i] = 0.5 * (1.0 - Math.cos(Math.PI * (i + 0.5) / rampSize));
+        }
+        double phase[] = new double[2];
+        int n = 0;
+        int maxError = 0;
+        for (int s = 0; s < symbols.length; ) {
+            int freqs[];
+            int sizes[];
+            int ramps[];
+            double amp = config.getAmplitude();
+            int used = 1;
+            if (symbols[s] == ModemConfig.SYMBOL_IN) {
+                freqs = new int[] {config.getFreqIn(), config.getRateFreq()};
+                sizes = new int[] {config.getMarkerSize(), config.getRateSize()};
+                ramps = new int[] {0, rampSize};
+            } else if (symbols[s] == ModemConfig.SYMBOL_OUT) {
+                freqs = new int[] {config.getFreqOut()};
+                sizes = new int[] {config.getMarkerSize()};
+                ramps = new int[] {0};
+            } else {
+                freqs = null;
+                sizes = new int[] {config.getUnitSize()};
+                ramps = new int[] {rampSize};
+                used = 2;
+                amp /= 2;
+            }
+            for (int part = 0; part < sizes.length; part++) {
+                int tones = (freqs == null) ? 2 : 1;
+                for (int i = 0; i < sizes[part]; i++) {
+                    double val = 0;
+                    for (int k = 0; k < tones; k++) {
+                        int freq = (freqs == null) ? config.getFreq(k, symbols[s + k]) : freqs[part];
+                        val += Math.sin(phase[k]);
+                        phase[k] += 2.0 * Math.PI * freq / config.getSampleRate();
+                    }
+                    double gain = amp;
+                    if (i < ramps[part]) {
+                        gain *= ramp[i];
+                    } else if (i >= sizes[part] - ramps[part]) {
+                        gain *= ramp[sizes[part] - 1 - i];
+                    }
+                    maxError = Math.max(maxError, Math.abs(pcm[n++] - (short)(val * gain)));
+                }
+            }
+            s += used;
+        }
+        assertEquals(length, n);
+        // 位相の進みの丸めによるずれは 1 秒あたり 3e-5 ラジアン程度で, 切り捨ての差を含めて 2 LSB 以内
+        assertTrue("maxError=" + maxError, maxError <= 2);
+    }
+
+    @Test
+    public void ramp_reducesSplatter() throws Exception {
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, 1, 20);
+        int symbols[] = randomData(new Random(1), 1 << 7);
+        int length = config.getUnitSize() * symbols.length;
+        double tone = outOfBandRatio(config, modulate(new ToneModulator(config), symbols, length));
+        double noRamp = outOfBandRatio(config, modulate(new CpfskModulator(config, 0), symbols, length));
+        double ramp = outOfBandRatio(config,
+                modulate(new CpfskModulator(config, config.getUnitSize() / 10), symbols, length));
+        assertTrue("tone=" + tone + " ramp=" + ramp, ramp < tone / 10);
+        assertTrue("noRamp=" + noRamp + " ramp=" + ramp, ramp < noRamp / 10);
+    }
+}
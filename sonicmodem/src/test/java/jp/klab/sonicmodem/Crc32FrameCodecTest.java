@@ -0,0 +1,204 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32FrameCodecTest {
+
+    // sonic09 の送信内容をそのまま sonic10 の手順で復号する
+    private static byte[] loopback(ModemConfig config, byte[] payload, int expectedResult) {
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        ToneModulator modulator = new ToneModulator(config);
+        RateAdaptiveDemodulator demodulator =
+                new RateAdaptiveDemodulator(config.getFreqBase(), config.getTones());
+        ShortBuffer buf = ShortBuffer.allocate(modulator.getSymbolLength(ModemConfig.SYMBOL_IN));
+        int result = FrameCodec.RECV_NONE;
+        ByteArrayOutputStream recv = new ByteArrayOutputStream();
+        int symbols[] = codec.encode(payload);
+        int recvSymbols[] = new int[config.getTones()];
+        for (int i = 0; i < symbols.length; ) {
+            buf.clear();
+            int used = modulator.modulate(symbols, i, buf);
+            assertEquals(modulator.getSymbolLength(symbols[i]), buf.position());
+            i += used;
+            // レートバイトの判定後はブロック長が変わる
+            int size;
+            for (int off = 0; off + (size = demodulator.getBlockSize()) <= buf.position();
+                    off += size) {
+                int count = demodulator.demodulate(buf.array(), off, recvSymbols);
+                for (int j = 0; j < count; j++) {
+                    result = codec.decode(recvSymbols[j]);
+                    if (result == FrameCodec.RECV_DATA) {
+                        recv.write(codec.getData());
+                    }
+                    if (result == FrameCodec.RECV_OK || result == FrameCodec.RECV_NG) {
+                        assertEquals(expectedResult, result);
+                    }
+                }
+            }
+        }
+        assertFalse(codec.isReceiving());
+        assertEquals(config.getSymbolMs(), demodulator.getSymbolMs());
+        assertArrayEquals(codec.getPayload(), recv.toByteArray());
+        return codec.getPayload();
+    }
+
+    @Test
+    public void frame_roundTrip() throws Exception {
+        byte payload[] = "Hello, sonic!".getBytes("UTF-8");
+        assertArrayEquals(payload, loopback(new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000),
+                payload, FrameCodec.RECV_OK));
+        assertArrayEquals(payload, loopback(new ModemConfig(ModemConfig.FREQ_BASE_HIGH, 28000),
+                payload, FrameCodec.RECV_OK));
+    }
+
+    @Test
+    public void allByteValues_roundTrip() throws Exception {
+        byte payload[] = new byte[256];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)i;
+        }
+        assertArrayEquals(payload, loopback(new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000),
+                payload, FrameCodec.RECV_OK));
+    }
+
+    @Test
+    public void multiTone_roundTrip() throws Exception {
+        // 端数が出る長さを含め, 同時送信数ごとに往復させる
+        for (int length = 1; length <= 20; length += 3) {
+            byte payload[] = new byte[length];
+            new Random(length).nextBytes(payload);
+            for (int tones : ModemConfig.TONES) {
+                if (tones <= ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_LOW)) {
+                    assertArrayEquals(payload, loopback(
+                            new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, tones),
+                            payload, FrameCodec.RECV_OK));
+                }
+                if (tones <= ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_HIGH)) {
+                    assertArrayEquals(payload, loopback(
+                            new ModemConfig(ModemConfig.FREQ_BASE_HIGH, 28000, tones),
+                            payload, FrameCodec.RECV_OK));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void symbolMs_roundTrip() throws Exception {
+        byte payload[] = "Hello, sonic!".getBytes("UTF-8");
+        for (int base : new int[] {ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_HIGH}) {
+            for (int symbolMs : ModemConfig.SYMBOL_MS) {
+                for (int tones : ModemConfig.TONES) {
+                    if (tones <= ModemConfig.getMaxTones(base, symbolMs)) {
+                        assertArrayEquals(payload, loopback(
+                                new ModemConfig(base, 28000, tones, symbolMs),
+                                payload, FrameCodec.RECV_OK));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void symbolMs_limitsBand() throws Exception {
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, 1, 20);
+        assertEquals(882, config.getUnitSize());
+        assertEquals(50, config.getFreqStep());
+        assertTrue(config.getFreqMax() < ModemConfig.SAMPLE_RATE / 2);
+        // 超音波帯では 20msec の 256 波が収まらない
+        assertEquals(0, ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_HIGH, 20));
+        assertEquals(1, ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_HIGH, 50));
+        assertFalse(ModemConfig.isValidSymbolMs(10));
+    }
+
+    @Test
+    public void multiTone_sendsTonesBytesPerSymbol() throws Exception {
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, 4);
+        int symbols[] = new Crc32FrameCodec().encode(new byte[10]);
+        ToneModulator modulator = new ToneModulator(config);
+        ShortBuffer buf = ShortBuffer.allocate(modulator.getSymbolLength(ModemConfig.SYMBOL_IN));
+        // 先端符丁, CRC32 4 バイト, データ 4 + 4 + 2 バイト, 終端符丁
+        int expected[] = {1, 4, 4, 4, 2, 1};
+        int i = 0;
+        for (int n : expected) {
+            buf.clear();
+            assertEquals(n, modulator.modulate(symbols, i, buf));
+            i += n;
+        }
+        assertEquals(symbols.length, i);
+    }
+
+    @Test
+    public void preamble_signalsTones() throws Exception {
+        for (int base : new int[] {ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_HIGH}) {
+            // 同時送信数 1 の先端符丁は従来どおり
+            assertEquals(base - 80, new ModemConfig(base).getFreqIn());
+            for (int tones : ModemConfig.TONES) {
+                assertEquals(tones, ModemConfig.getTones(base, ModemConfig.getFreqIn(base, tones)));
+            }
+            assertEquals(0, ModemConfig.getTones(base, base - 100));
+        }
+        assertEquals(8, ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_LOW));
+        assertEquals(2, ModemConfig.getMaxTones(ModemConfig.FREQ_BASE_HIGH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tonesBeyondNyquist_isRejected() {
+        new ModemConfig(ModemConfig.FREQ_BASE_HIGH, 28000, 4);
+    }
+
+    @Test
+    public void encode_matchesSonic09() throws Exception {
+        byte payload[] = "abc".getBytes("UTF-8");
+        int symbols[] = new Crc32FrameCodec().encode(payload);
+        // CRC32("abc") = 0x352441c2
+        assertArrayEquals(new int[] {ModemConfig.SYMBOL_IN, 0x35, 0x24, 0x41, 0xc2,
+                'a', 'b', 'c', ModemConfig.SYMBOL_OUT}, symbols);
+    }
+
+    @Test
+    public void corruptedSymbol_isReportedNG() throws Exception {
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        int symbols[] = codec.encode("abc".getBytes("UTF-8"));
+        symbols[6] ^= 1;
+        int result = FrameCodec.RECV_NONE;
+        for (int symbol : symbols) {
+            result = codec.decode(symbol);
+        }
+        assertEquals(FrameCodec.RECV_NG, result);
+        // 終端符丁が続いても結果は一度だけ
+        assertEquals(FrameCodec.RECV_NONE, codec.decode(ModemConfig.SYMBOL_OUT));
+    }
+
+    @Test
+    public void consecutiveFrames_reuseReceiveBuffer() throws Exception {
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        Random r = new Random(0);
+        // 受信バッファの初期容量を超える長さと, それより短いフレームを続けて受信する
+        for (int length : new int[] {1000, 3, 0, 300}) {
+            byte payload[] = new byte[length];
+            r.nextBytes(payload);
+            int result = FrameCodec.RECV_NONE;
+            for (int symbol : codec.encode(payload)) {
+                result = codec.decode(symbol);
+            }
+            assertEquals(FrameCodec.RECV_OK, result);
+            assertArrayEquals(payload, codec.getPayload());
+        }
+    }
+
+    @Test
+    public void dataOutsideFrame_isIgnored() throws Exception {
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        assertEquals(FrameCodec.RECV_NONE, codec.decode(0x41));
+        assertEquals(FrameCodec.RECV_NONE, codec.decode(ModemConfig.SYMBOL_NONE));
+        assertFalse(codec.isReceiving());
+        assertEquals(FrameCodec.RECV_START, codec.decode(ModemConfig.SYMBOL_IN));
+        assertTrue(codec.isReceiving());
+    }
+}
@@ -0,0 +1,71 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GoertzelBankTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int UNITSIZE = SAMPLE_RATE/10;
+    private static final int FREQ_STEP = 10;
+
+    // 256種類のデータ信号 + 先端・終端符丁
+    private static int[] tones(int freqBase) {
+        int freqs[] = new int[258];
+        for (int i = 0; i < 256; i++) {
+            freqs[i] = freqBase + FREQ_STEP * i;
+        }
+        freqs[256] = freqBase - 100 + 20; // FREQ_IN
+        freqs[257] = freqBase - 100; // FREQ_OUT
+        return freqs;
+    }
+
+    private static void checkRoundTrip(int freqBase, int amplitude) {
+        int freqs[] = tones(freqBase);
+        GoertzelBank bank = new GoertzelBank(freqs, SAMPLE_RATE, UNITSIZE);
+        short buf[] = new short[UNITSIZE];
+        for (int i = 0; i < freqs.length; i++) {
+            ToneModulator.createSineWave(buf, freqs[i], amplitude, true);
+            assertEquals("freq=" + freqs[i], i, bank.detect(buf, 0, 0.2));
+            assertEquals(freqs[i], bank.getFreq(i));
+        }
+    }
+
+    @Test
+    public void allSymbols_roundTrip() throws Exception {
+        checkRoundTrip(500, 5000);
+    }
+
+    @Test
+    public void allSymbols_roundTrip_ultrasonic() throws Exception {
+        checkRoundTrip(14000, 28000);
+    }
+
+    @Test
+    public void energy_isSquaredMagnitude() throws Exception {
+        GoertzelBank bank = new GoertzelBank(new int[] {420, 400}, SAMPLE_RATE, UNITSIZE);
+        short buf[] = new short[UNITSIZE];
+        ToneModulator.createSineWave(buf, 420, 5000, true);
+        assertEquals(0, bank.detect(buf, 0, 0.2));
+        // 純音のピークは (A * N / 2)^2
+        double expected = Math.pow(5000.0 * UNITSIZE / 2, 2);
+        assertEquals(1.0, bank.getEnergies()[0] / expected, 0.01);
+        assertTrue(bank.getEnergies()[1] < expected * 1e-6);
+    }
+
+    @Test
+    public void noise_isRejected() throws Exception {
+        GoertzelBank bank = new GoertzelBank(new int[] {420, 400}, SAMPLE_RATE, UNITSIZE);
+        short buf[] = new short[UNITSIZE];
+        Random r = new Random(1);
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (short)(r.nextGaussian() * 3000);
+        }
+        assertEquals(-1, bank.detect(buf, 0, 0.2));
+        // 符丁以外の純音
+        ToneModulator.createSineWave(buf, 1000, 5000, true);
+        assertEquals(-1, bank.detect(buf, 0, 0.2));
+    }
+}
@@ -0,0 +1,89 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InterleaverTest {
+
+    // 符号語列の先頭から off シンボル目から length シンボルを誤らせた結果
+    private static int decodeWithBurst(RsFrameCodec codec, byte[] payload, int off, int length) {
+        int symbols[] = codec.encode(payload);
+        int start = RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT + 1;
+        for (int i = start + off; i < start + off + length; i++) {
+            symbols[i] = (symbols[i] + 1) % ModemConfig.ELMS_MAX;
+        }
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        int result = FrameCodec.RECV_NONE;
+        for (int symbol : symbols) {
+            result = receiver.decode(symbol);
+        }
+        if (result == FrameCodec.RECV_OK) {
+            assertArrayEquals(payload, receiver.getPayload());
+        }
+        return result;
+    }
+
+    @Test
+    public void deinterleave_restoresInput() throws Exception {
+        Random r = new Random(0);
+        for (int depth = 1; depth <= Interleaver.DEPTH_MAX; depth++) {
+            for (int len : new int[] {1, depth - 1, depth, depth + 1, 100, 1021}) {
+                if (len <= 0) {
+                    continue;
+                }
+                byte src[] = new byte[len + 3];
+                r.nextBytes(src);
+                byte dst[] = new byte[len + 5];
+                byte back[] = new byte[len + 1];
+                Interleaver.interleave(src, 3, dst, 5, len, depth);
+                Interleaver.deinterleave(dst, 5, back, 1, len, depth);
+                for (int i = 0; i < len; i++) {
+                    assertEquals("depth=" + depth + " len=" + len, src[3 + i], back[1 + i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void interleave_separatesRows() throws Exception {
+        byte src[] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        byte dst[] = new byte[src.length];
+        Interleaver.interleave(src, 0, dst, 0, src.length, 3);
+        // 4 列 × 3 行 (最終行は 2 マス)
+        assertArrayEquals(new byte[] {0, 4, 8, 1, 5, 9, 2, 6, 3, 7}, dst);
+    }
+
+    @Test
+    public void burst_isSpreadAcrossCodewords() throws Exception {
+        byte payload[] = "A door slam wipes out consecutive symbols".getBytes("UTF-8");
+        // パリティ 8 で訂正できるのは符号語あたり 4 バイト
+        assertEquals(FrameCodec.RECV_NG, decodeWithBurst(new RsFrameCodec(8, 1), payload, 10, 12));
+        for (int off = 0; off < 20; off++) {
+            assertEquals(FrameCodec.RECV_OK, decodeWithBurst(new RsFrameCodec(8, 4), payload, off, 16));
+        }
+        assertEquals(FrameCodec.RECV_NG, decodeWithBurst(new RsFrameCodec(8, 4), payload, 10, 24));
+    }
+
+    @Test
+    public void header_carriesDepth() throws Exception {
+        byte payload[] = new byte[700];
+        new Random(1).nextBytes(payload);
+        for (int depth : new int[] {1, 2, 3, 8}) {
+            for (int parity : new int[] {0, 2, 16}) {
+                RsFrameCodec receiver = new RsFrameCodec(0);
+                int result = FrameCodec.RECV_NONE;
+                for (int symbol : new RsFrameCodec(parity, depth).encode(payload)) {
+                    result = receiver.decode(symbol);
+                    assertTrue(result != FrameCodec.RECV_DATA || depth == 1 && parity == 0);
+                }
+                assertEquals(FrameCodec.RECV_OK, result);
+                assertArrayEquals(payload, receiver.getPayload());
+                assertEquals(depth, receiver.getRecvDepth());
+                assertEquals(parity, receiver.getRecvParitySize());
+            }
+        }
+    }
+}
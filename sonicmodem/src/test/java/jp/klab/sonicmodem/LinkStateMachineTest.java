@@ -0,0 +1,315 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LinkStateMachineTest {
+    private static final int UNIT = ModemConfig.SAMPLE_RATE / 10; // 集音ブロック 100ms
+    private static final int AMP = 8000;
+    private static final int GUARD_MS = 200;
+
+    // ループバックの一方の端末
+    // 発信はブロックの区切りで始めるので, 受信側のブロックはシンボルの区切りと揃う
+    private static class Peer {
+        final CpfskModulator modulator;
+        final RateAdaptiveDemodulator demodulator;
+        final LinkStateMachine link;
+        final SelectiveRepeatArq arq = new SelectiveRepeatArq(8);
+        final int symbols[] = new int[1];
+        byte reply[] = null; // 単語が揃ったら返す単語
+        short tx[] = new short[0];
+        int txPos = 0;
+        int turns = 0;
+        int drop = 0; // 届かずに失われる発信の数
+        long transmitted = 0; // 発信したサンプル数の累計
+
+        // txBase の帯域で発信し rxBase の帯域で受信する
+        Peer(int txBase, int rxBase, boolean fullDuplex) {
+            ModemConfig config = new ModemConfig(txBase, AMP);
+            modulator = new CpfskModulator(config, config.getUnitSize() / 10);
+            demodulator = new RateAdaptiveDemodulator(rxBase, 1);
+            demodulator.setBandLimited(fullDuplex);
+            link = new LinkStateMachine((fullDuplex) ? 0 : GUARD_MS, fullDuplex);
+            arq.setFullDuplex(fullDuplex);
+            arq.setRateByte(true);
+        }
+
+        // 自分の番なら応答を発信し始める
+        void poll() throws InterruptedException {
+            // 応答がないまま未達のブロックが残っていれば再送する
+            if (!link.isTransmitting() && link.checkResponseTimeout() && arq.onTimeout()) {
+                link.requestTurn();
+            }
+            if (link.isTransmitting() || !link.awaitTurn(0)) {
+                return;
+            }
+            int frames[] = arq.createResponse();
+            if (frames.length == 0) {
+                // 応答するものがなければすぐに受信待ちに戻る
+                link.endTransmit();
+                return;
+            }
+            turns++;
+            int length = 0;
+            for (int symbol : frames) {
+                length += modulator.getSymbolLength(symbol);
+            }
+            ShortBuffer buf = ShortBuffer.allocate(length);
+            for (int i = 0; i < frames.length; ) {
+                i += modulator.modulate(frames, i, buf);
+            }
+            tx = buf.array();
+            txPos = 0;
+            transmitted += tx.length;
+        }
+
+        // 発信中なら次のブロックを out に加える
+        void transmit(short[] out) {
+            if (!link.isTransmitting()) {
+                return;
+            }
+            for (int i = 0; i < UNIT && txPos < tx.length; i++) {
+                short v = tx[txPos++];
+                if (drop == 0) {
+                    out[i] += v;
+                }
+            }
+            if (txPos >= tx.length) {
+                link.endTransmit();
+                drop = Math.max(0, drop - 1);
+            }
+        }
+
+        void receive(short[] block) throws Exception {
+            if (link.getState() == LinkStateMachine.STATE_TRANSMITTING) {
+                // 半二重で発信中なら自分の音は聞かない
+                link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+                return;
+            }
+            int count = demodulator.demodulate(block, 0, symbols);
+            int symbol = (count > 0) ? symbols[0] : ModemConfig.SYMBOL_NONE;
+            link.onBlock(symbol, UNIT);
+            switch (arq.decode(symbol)) {
+                case SelectiveRepeatArq.RECV_START:
+                    demodulator.reset();
+                    break;
+                case SelectiveRepeatArq.RECV_DATA:
+                    if (arq.isNewlyCompleted() && reply != null) {
+                        arq.send(reply);
+                        reply = null;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // 2 台の端末を blocks ブロック分動かす. 各ブロックで発信中の端末の音を重ねて両方が受信する
+    // 最後にどちらかが発信していたブロックの数を返す
+    private static int run(Peer a, Peer b, int blocks, Random r) throws Exception {
+        short block[] = new short[UNIT];
+        int last = 0;
+        for (int n = 0; n < blocks; n++) {
+            a.poll();
+            b.poll();
+            for (int i = 0; i < UNIT; i++) {
+                block[i] = (short)(r.nextGaussian() * 30);
+            }
+            if (a.link.isTransmitting() || b.link.isTransmitting()) {
+                last = n + 1;
+            }
+            a.transmit(block);
+            b.transmit(block);
+            a.receive(block);
+            b.receive(block);
+        }
+        return last;
+    }
+
+    @Test
+    public void turnaround_followsPostamble() throws Exception {
+        LinkStateMachine link = new LinkStateMachine(200);
+        assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(ModemConfig.SYMBOL_IN, UNIT));
+        assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(ModemConfig.SYMBOL_NONE, UNIT));
+        assertEquals(LinkStateMachine.STATE_POSTAMBLE, link.onBlock(ModemConfig.SYMBOL_OUT, UNIT));
+        assertEquals(LinkStateMachine.STATE_POSTAMBLE, link.onBlock(ModemConfig.SYMBOL_OUT, UNIT));
+        // ガード時間内に先端符丁が来れば続くフレームを受信する
+        assertEquals(LinkStateMachine.STATE_TURNAROUND, link.onBlock(ModemConfig.SYMBOL_NONE, UNIT));
+        assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(ModemConfig.SYMBOL_IN, UNIT));
+        assertFalse(link.awaitTurn(0));
+        link.onBlock(ModemConfig.SYMBOL_OUT, UNIT);
+        link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+        assertEquals(LinkStateMachine.STATE_IDLE, link.onBlock(ModemConfig.SYMBOL_NONE, UNIT));
+        assertTrue(link.awaitTurn(0));
+        // 発信中は自分の音を無視する
+        assertEquals(LinkStateMachine.STATE_TRANSMITTING, link.onBlock(ModemConfig.SYMBOL_IN, UNIT));
+        link.endTransmit();
+        assertFalse(link.awaitTurn(0));
+        // 受信中でなければこちらから送り始められる
+        assertTrue(link.requestTurn());
+        assertTrue(link.awaitTurn(0));
+    }
+
+    @Test
+    public void missedPostamble_givesTurnAfterFrameTimeout() throws Exception {
+        LinkStateMachine link = new LinkStateMachine(GUARD_MS);
+        link.setFrameTimeout(1000);
+        // 終端符丁を取りこぼし, 雑音をデータとして受け続ける
+        link.onBlock(ModemConfig.SYMBOL_IN, UNIT);
+        for (int i = 1; i < 10; i++) {
+            int symbol = (i % 2 == 0) ? ModemConfig.SYMBOL_NONE : i;
+            assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(symbol, UNIT));
+            assertFalse(link.awaitTurn(0));
+        }
+        // 先端符丁から 1 秒で受信待ちに戻り, 応答を待っている相手に対し自分の番とする
+        assertEquals(LinkStateMachine.STATE_IDLE, link.onBlock(7, UNIT));
+        assertTrue(link.awaitTurn(0));
+        link.endTransmit();
+
+        // 終端符丁が途切れない場合も同様
+        link.onBlock(ModemConfig.SYMBOL_IN, UNIT);
+        for (int i = 1; i < 10; i++) {
+            assertEquals(LinkStateMachine.STATE_POSTAMBLE, link.onBlock(ModemConfig.SYMBOL_OUT, UNIT));
+        }
+        assertEquals(LinkStateMachine.STATE_IDLE, link.onBlock(ModemConfig.SYMBOL_OUT, UNIT));
+        assertTrue(link.awaitTurn(0));
+        link.endTransmit();
+
+        // 受信中に来た先端符丁からは数え直す
+        link.onBlock(ModemConfig.SYMBOL_IN, UNIT);
+        for (int i = 1; i < 10; i++) {
+            link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+        }
+        assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(ModemConfig.SYMBOL_IN, UNIT));
+        assertEquals(LinkStateMachine.STATE_RECEIVING, link.onBlock(ModemConfig.SYMBOL_NONE, UNIT));
+    }
+
+    @Test
+    public void awaitTurn_blocksUntilFrameEnds() throws Exception {
+        final LinkStateMachine link = new LinkStateMachine(0);
+        link.onBlock(ModemConfig.SYMBOL_IN, UNIT);
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                link.onBlock(ModemConfig.SYMBOL_OUT, UNIT);
+                link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+            }
+        });
+        receiver.start();
+        assertTrue(link.awaitTurn(5000));
+        assertTrue(link.isTransmitting());
+        receiver.join();
+    }
+
+    @Test
+    public void loopback_roundTrip() throws Exception {
+        Random r = new Random(0);
+        int base = ModemConfig.FREQ_BASE_LOW;
+        Peer a = new Peer(base, base, false);
+        Peer b = new Peer(base, base, false);
+        a.arq.send("sonic".getBytes("UTF-8"));
+        b.reply = "cinos".getBytes("UTF-8");
+        assertTrue(a.link.requestTurn());
+        long total = run(a, b, 400, r) * (long)UNIT;
+        // A の単語, B の ACK と単語, A の ACK の順に発信し, B は応答しない
+        assertEquals(2, a.turns);
+        assertEquals(1, b.turns);
+        assertFalse(a.arq.hasPending());
+        assertArrayEquals("cinos".getBytes("UTF-8"), a.arq.getMessage());
+        assertArrayEquals("sonic".getBytes("UTF-8"), b.arq.getMessage());
+        // 往復時間は B の発信時間と前後の無音時間の和で, 無音時間は終端符丁の途切れの検出 (1 ブロック) と
+        // ガード時間程度. 25 回分の無音の集音 (数秒) を待っていた方式より短い
+        long gap = (long)ModemConfig.SAMPLE_RATE * GUARD_MS / 1000 + UNIT;
+        long roundTrip = a.link.getRoundTrip();
+        assertTrue("roundTrip=" + roundTrip, roundTrip > b.transmitted && roundTrip <= b.transmitted + 2 * gap);
+        assertTrue("total=" + total, total <= a.transmitted + b.transmitted + 2 * gap);
+    }
+
+    @Test
+    public void responseTimeout_isReportedOncePerTransmit() throws Exception {
+        LinkStateMachine link = new LinkStateMachine(GUARD_MS);
+        link.setResponseTimeout(500);
+        assertFalse(link.checkResponseTimeout());
+        assertTrue(link.requestTurn());
+        assertTrue(link.awaitTurn(0));
+        link.endTransmit();
+        for (int i = 0; i < 4; i++) {
+            link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+            assertFalse(link.checkResponseTimeout());
+        }
+        link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+        assertTrue(link.checkResponseTimeout());
+        assertFalse(link.checkResponseTimeout());
+        // 応答の受信が始まれば時間切れにならない
+        assertTrue(link.requestTurn());
+        assertTrue(link.awaitTurn(0));
+        link.endTransmit();
+        link.onBlock(ModemConfig.SYMBOL_IN, UNIT);
+        for (int i = 0; i < 10; i++) {
+            link.onBlock(ModemConfig.SYMBOL_NONE, UNIT);
+        }
+        assertFalse(link.checkResponseTimeout());
+    }
+
+    @Test
+    public void lostFrame_isResentAfterTimeout() throws Exception {
+        Random r = new Random(2);
+        int base = ModemConfig.FREQ_BASE_LOW;
+        Peer a = new Peer(base, base, false);
+        Peer b = new Peer(base, base, false);
+        a.arq.send("sonic".getBytes("UTF-8"));
+        b.reply = "cinos".getBytes("UTF-8");
+        // A の最初のデータフレームはまるごと失われ, B は何も応答しない
+        a.drop = 1;
+        assertTrue(a.link.requestTurn());
+        run(a, b, 500, r);
+        // A は応答の時間切れの後に再送し, 以降は通常どおりにやり取りを終える
+        assertEquals(3, a.turns);
+        assertEquals(1, b.turns);
+        assertFalse(a.arq.hasPending());
+        assertFalse(b.arq.hasPending());
+        assertArrayEquals("sonic".getBytes("UTF-8"), b.arq.getMessage());
+        assertArrayEquals("cinos".getBytes("UTF-8"), a.arq.getMessage());
+    }
+
+    @Test
+    public void fullDuplex_bandSplit_overlapsTransfers() throws Exception {
+        Random r = new Random(1);
+        byte wordA[] = "sonic".getBytes("UTF-8");
+        byte wordB[] = "cinos".getBytes("UTF-8");
+
+        // 半二重: A の単語に B が ACK と単語で応え, A が ACK を返す
+        Peer a = new Peer(ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_LOW, false);
+        Peer b = new Peer(ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_LOW, false);
+        a.arq.send(wordA);
+        b.arq.send(wordB);
+        a.link.requestTurn();
+        long halfDuplex = run(a, b, 400, r) * (long)UNIT;
+        assertArrayEquals(wordB, a.arq.getMessage());
+        assertArrayEquals(wordA, b.arq.getMessage());
+
+        // 全二重: A は低い帯域, B は超音波の帯域で同時に発信し, 相手の帯域のみを受信する
+        a = new Peer(ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_HIGH, true);
+        b = new Peer(ModemConfig.FREQ_BASE_HIGH, ModemConfig.FREQ_BASE_LOW, true);
+        a.arq.send(wordA);
+        b.arq.send(wordB);
+        a.link.requestTurn();
+        b.link.requestTurn();
+        long fullDuplex = run(a, b, 400, r) * (long)UNIT;
+        assertArrayEquals(wordB, a.arq.getMessage());
+        assertArrayEquals(wordA, b.arq.getMessage());
+        assertFalse(a.arq.hasPending());
+        assertFalse(b.arq.hasPending());
+        // 単語と ACK を 1 回ずつ送るだけで, 送りきるまでの時間はおよそ半分
+        assertEquals(2, a.turns);
+        assertEquals(2, b.turns);
+        assertTrue("half=" + halfDuplex + " full=" + fullDuplex, fullDuplex * 10 < halfDuplex * 6);
+    }
+}
@@ -0,0 +1,168 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MultiBandReceiverTest {
+    private static final int FREQ_BASES[] = {ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_HIGH};
+    private static final int AMP = 5000;
+    private static final int CHUNK = 1792; // AudioRecord.getMinBufferSize 相当
+
+    // 受信したフレームを "帯域:結果:ペイロード" の形で記録する
+    // 帯域ごとの通知は 1 つのスレッドから順に呼ばれる
+    private static class Recorder implements BandReceiver.Listener {
+        final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+        final Map<BandReceiver, StringBuilder> streams =
+                Collections.synchronizedMap(new HashMap<BandReceiver, StringBuilder>());
+
+        @Override
+        public void onData(BandReceiver receiver, int data) {
+            StringBuilder sb = streams.get(receiver);
+            if (sb == null) {
+                sb = new StringBuilder();
+                streams.put(receiver, sb);
+            }
+            sb.append((char)data);
+        }
+
+        @Override
+        public void onFrame(BandReceiver receiver, int result, byte[] payload) {
+            StringBuilder sb = streams.remove(receiver);
+            String s = (payload != null) ? new String(payload) : (sb != null) ? sb.toString() : "";
+            int id = (receiver.getChannel() >= 0) ? receiver.getChannel() : receiver.getFreqBase();
+            frames.add(id + ":" + result + ":" + s);
+        }
+    }
+
+    // freqBase の帯域で payload を送るチャープ付きフレームを pcm[offset] から加える
+    private static void addFrame(short[] pcm, int offset, int freqBase, int tones, FrameCodec codec,
+                                 String payload) throws Exception {
+        addFrame(pcm, offset, new ModemConfig(freqBase, AMP, tones), codec, payload);
+    }
+
+    private static void addFrame(short[] pcm, int offset, ModemConfig config, FrameCodec codec,
+                                 String payload) throws Exception {
+        int freqBase = config.getFreqBase();
+        CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10,
+                new ChirpPreamble(freqBase, config.getAmplitude()));
+        int symbols[] = codec.encode(payload.getBytes("UTF-8"));
+        ShortBuffer buf = ShortBuffer.allocate(pcm.length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        assertTrue("frame too long", offset + buf.position() <= pcm.length);
+        for (int i = 0; i < buf.position(); i++) {
+            pcm[offset + i] += buf.get(i);
+        }
+    }
+
+    private static void receive(MultiBandReceiver receiver, short[] pcm, NoiseGate gate)
+            throws Exception {
+        for (int pos = 0; pos < pcm.length; pos += CHUNK) {
+            int len = Math.min(CHUNK, pcm.length - pos);
+            boolean silence = !gate.process(pcm, pos, len);
+            receiver.process(pcm, pos, len, silence && !receiver.isReceiving());
+        }
+    }
+
+    @Test
+    public void overlappingFrames_areReceivedInBothBands() throws Exception {
+        Random r = new Random(0);
+        short pcm[] = new short[ModemConfig.SAMPLE_RATE * 6];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short)(r.nextGaussian() * 200);
+        }
+        // 低音域は誤り訂正つき, 超音波は同時送信数 2 で, 途中から重ねて送る
+        addFrame(pcm, 5000, FREQ_BASES[0], 1, new RsFrameCodec(8), "low band");
+        addFrame(pcm, 12345, FREQ_BASES[1], 2, new RsFrameCodec(0), "ultrasonic band");
+        Recorder recorder = new Recorder();
+        MultiBandReceiver receiver = new MultiBandReceiver(FREQ_BASES, recorder);
+        try {
+            receive(receiver, pcm, new NoiseGate(ModemConfig.SAMPLE_RATE));
+        } finally {
+            receiver.shutdown();
+        }
+        assertFalse(receiver.isReceiving());
+        Collections.sort(recorder.frames);
+        assertEquals("[14000:3:ultrasonic band, 500:3:low band]", recorder.frames.toString());
+    }
+
+    @Test
+    public void singleThread_matchesPool() throws Exception {
+        Random r = new Random(1);
+        short pcm[] = new short[ModemConfig.SAMPLE_RATE * 8];
+        addFrame(pcm, 3000, FREQ_BASES[1], 1, new RsFrameCodec(0), "first");
+        addFrame(pcm, 3000 + ModemConfig.SAMPLE_RATE * 4, FREQ_BASES[0], 1, new RsFrameCodec(0), "second");
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] += (short)(r.nextGaussian() * 200);
+        }
+        for (int threads : new int[] {1, 2}) {
+            Recorder recorder = new Recorder();
+            MultiBandReceiver receiver = new MultiBandReceiver(FREQ_BASES, threads, recorder);
+            receive(receiver, pcm, new NoiseGate(ModemConfig.SAMPLE_RATE));
+            receiver.shutdown();
+            // 時間をずらして送ったフレームはスレッド数によらず送った順に通知される
+            assertEquals("threads=" + threads, "[14000:3:first, 500:3:second]",
+                    recorder.frames.toString());
+        }
+    }
+
+    @Test
+    public void workerException_isThrownFromProcess() throws Exception {
+        short pcm[] = new short[ModemConfig.SAMPLE_RATE * 4];
+        addFrame(pcm, 3000, FREQ_BASES[1], 1, new RsFrameCodec(0), "worker");
+        // 2 番目の帯域 (超音波) はワーカースレッドが処理する
+        MultiBandReceiver receiver = new MultiBandReceiver(FREQ_BASES, 2, new Recorder() {
+            @Override
+            public void onFrame(BandReceiver r, int result, byte[] payload) {
+                throw new IllegalStateException("band=" + r.getFreqBase());
+            }
+        });
+        try {
+            receive(receiver, pcm, new NoiseGate(ModemConfig.SAMPLE_RATE));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("band=" + FREQ_BASES[1], e.getMessage());
+        } finally {
+            receiver.shutdown();
+        }
+    }
+
+    @Test
+    public void channels_receiveAllSendersAtOnce() throws Exception {
+        Random r = new Random(2);
+        ChannelPlan plan = new ChannelPlan();
+        assertEquals(7, plan.getChannelCount());
+        short pcm[] = new short[ModemConfig.SAMPLE_RATE * 5];
+        List<String> expected = new ArrayList<String>();
+        // 全チャネルの送信機が 0.5 秒以内にずれて同時に送る
+        for (int channel = 0; channel < plan.getChannelCount(); channel++) {
+            String payload = "channel " + channel;
+            FrameCodec codec = (channel % 2 == 0) ? new RsFrameCodec(0) : new RsFrameCodec(8);
+            addFrame(pcm, r.nextInt(ModemConfig.SAMPLE_RATE / 2), plan.getConfig(channel, 3000),
+                    codec, payload);
+            expected.add(channel + ":" + FrameCodec.RECV_OK + ":" + payload);
+        }
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] += (short)(r.nextGaussian() * 200);
+        }
+        Recorder recorder = new Recorder();
+        MultiBandReceiver receiver = new MultiBandReceiver(plan, 4, recorder);
+        try {
+            receive(receiver, pcm, new NoiseGate(ModemConfig.SAMPLE_RATE));
+        } finally {
+            receiver.shutdown();
+        }
+        Collections.sort(recorder.frames);
+        assertEquals(expected, recorder.frames);
+    }
+}
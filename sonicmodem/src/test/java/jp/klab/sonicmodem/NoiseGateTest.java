@@ -0,0 +1,86 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NoiseGateTest {
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int BUFFER_SIZE = 1792; // AudioRecord.getMinBufferSize 相当
+
+    private static short[] noise(Random r, double level, short[] buf) {
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, r.nextGaussian() * level));
+        }
+        return buf;
+    }
+
+    // sec 秒分の雑音を入力し, 音ありと判定したブロック数を返す
+    private static int feedNoise(NoiseGate gate, Random r, double level, double sec) {
+        short buf[] = new short[BUFFER_SIZE];
+        int open = 0;
+        for (int n = 0; n < SAMPLE_RATE * sec; n += BUFFER_SIZE) {
+            if (gate.process(noise(r, level, buf), 0, BUFFER_SIZE)) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    // 雑音に振幅 amp の信号を加えたブロックで判定する
+    private static boolean feedTone(NoiseGate gate, Random r, double level, int amp) {
+        short buf[] = noise(r, level, new short[BUFFER_SIZE]);
+        short tone[] = new short[BUFFER_SIZE];
+        ToneModulator.createSineWave(tone, 1000, amp, true);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            buf[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, buf[i] + tone[i]));
+        }
+        return gate.process(buf, 0, BUFFER_SIZE);
+    }
+
+    @Test
+    public void threshold_followsQuietAndLoudRooms() throws Exception {
+        Random r = new Random(0);
+        // 従来の固定閾値 (0x00ff) では静かな部屋の小さな信号を取りこぼし,
+        // 騒がしい部屋では常に音ありとなる
+        for (double level : new double[] {20, 2000}) {
+            NoiseGate gate = new NoiseGate(SAMPLE_RATE);
+            assertEquals("level=" + level, 0, feedNoise(gate, r, level, 3));
+            assertEquals(level, gate.getNoiseLevel(), level * 0.3);
+            // 雑音より 16dB 大きい信号 (実効値で約 6 倍)
+            assertTrue("level=" + level, feedTone(gate, r, level, (int)(level * 9)));
+            assertTrue(gate.getSnrDb() > 13);
+            // 雑音のみに戻れば保持時間の後に閉じる
+            feedNoise(gate, r, level, 0.5);
+            assertFalse(gate.isOpen());
+        }
+    }
+
+    @Test
+    public void noiseRise_isTrackedWithinSeconds() throws Exception {
+        Random r = new Random(1);
+        NoiseGate gate = new NoiseGate(SAMPLE_RATE);
+        feedNoise(gate, r, 100, 2);
+        // 雑音が 20dB 上がると初めは音ありとなるが, 数秒で雑音レベルが追いつく
+        int open = feedNoise(gate, r, 1000, 10);
+        assertTrue("open=" + open, open > 0);
+        assertEquals(0, feedNoise(gate, r, 1000, 2));
+        // 下がるときはすぐ追従する
+        feedNoise(gate, r, 100, 0.5);
+        assertEquals(100, gate.getNoiseLevel(), 30);
+    }
+
+    @Test
+    public void negativeSamples_areCounted() throws Exception {
+        NoiseGate gate = new NoiseGate(SAMPLE_RATE);
+        short buf[] = new short[BUFFER_SIZE];
+        assertFalse(gate.process(buf, 0, BUFFER_SIZE));
+        // 負の側にのみ振れる信号でも音ありとする
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            buf[i] = (short)((i % 8 < 4) ? -3000 : 0);
+        }
+        assertTrue(gate.process(buf, 0, BUFFER_SIZE));
+    }
+}
@@ -0,0 +1,112 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OfdmTest {
+
+    // フレームを PCM 列に変換する. 先端符丁の後に基準シンボルが続く
+    private static short[] modulate(OfdmConfig config, byte[] payload) {
+        OfdmModulator modulator = new OfdmModulator(config);
+        int symbols[] = new Crc32FrameCodec().encode(payload);
+        int length = 0;
+        for (int symbol : symbols) {
+            length += modulator.getSymbolLength(symbol);
+        }
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        return buf.array();
+    }
+
+    // 先端符丁の終わりから skew サンプルずらした位置を境界として復号する
+    private static byte[] demodulate(OfdmConfig config, short[] pcm, int skew, int expectedResult) {
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        OfdmDemodulator demodulator = new OfdmDemodulator(config);
+        int symbols[] = new int[config.getBytesPerSymbol()];
+        int result = FrameCodec.RECV_NONE;
+        ByteArrayOutputStream recv = new ByteArrayOutputStream();
+        codec.decode(ModemConfig.SYMBOL_IN);
+        demodulator.reset();
+        int size = demodulator.getBlockSize();
+        for (int off = config.getModemConfig().getMarkerSize() + skew;
+                off + size <= pcm.length && codec.isReceiving(); off += size) {
+            int count = demodulator.demodulate(pcm, off, symbols);
+            for (int i = 0; i < count; i++) {
+                result = codec.decode(symbols[i]);
+                if (result == FrameCodec.RECV_DATA) {
+                    recv.write(codec.getData());
+                }
+            }
+        }
+        assertEquals(expectedResult, result);
+        assertArrayEquals(codec.getPayload(), recv.toByteArray());
+        return codec.getPayload();
+    }
+
+    @Test
+    public void frame_roundTrip() throws Exception {
+        Random r = new Random(0);
+        for (int base : new int[] {ModemConfig.FREQ_BASE_LOW, ModemConfig.FREQ_BASE_HIGH}) {
+            OfdmConfig config = new OfdmConfig(new ModemConfig(base, 28000));
+            // 端数が出る長さを含める
+            for (int length : new int[] {1, 17, 18, 40, 1000}) {
+                byte payload[] = new byte[length];
+                r.nextBytes(payload);
+                assertArrayEquals(payload,
+                        demodulate(config, modulate(config, payload), 0, FrameCodec.RECV_OK));
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip_withNoiseEchoAndTimingError() throws Exception {
+        Random r = new Random(1);
+        OfdmConfig config = new OfdmConfig(new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000));
+        byte payload[] = new byte[500];
+        r.nextBytes(payload);
+        short sig[] = modulate(config, payload);
+        // サイクリックプレフィクスより短い残響と雑音を加える
+        short pcm[] = new short[sig.length];
+        for (int i = 0; i < pcm.length; i++) {
+            double v = sig[i] + r.nextGaussian() * 50;
+            if (i >= 120) {
+                v += sig[i - 120] * 0.4;
+            }
+            pcm[i] = (short)v;
+        }
+        // 境界検出の誤差はサイクリックプレフィクス内に収まれば許容される
+        for (int skew : new int[] {-4, -100, -130}) {
+            assertArrayEquals(payload, demodulate(config, pcm, skew, FrameCodec.RECV_OK));
+        }
+    }
+
+    @Test
+    public void corruptedSignal_isReportedNG() throws Exception {
+        OfdmConfig config = new OfdmConfig(new ModemConfig(ModemConfig.FREQ_BASE_LOW, 28000));
+        short pcm[] = modulate(config, "config blob".getBytes("UTF-8"));
+        // 基準シンボルの次のシンボルで先頭のデータ用サブキャリアに妨害波を重ねる
+        // (全体の位相反転はパイロットで補正されるため誤りにならない)
+        int start = config.getModemConfig().getMarkerSize() + config.getSymbolSize();
+        double w = 2 * Math.PI * config.getDataCarriers()[0] / OfdmConfig.FFT_SIZE;
+        for (int i = 0; i < config.getSymbolSize(); i++) {
+            pcm[start + i] += (short)(3000 * Math.sin(w * i + 3.0));
+        }
+        demodulate(config, pcm, 0, FrameCodec.RECV_NG);
+    }
+
+    @Test
+    public void bitRate_isKbps() throws Exception {
+        OfdmConfig config = new OfdmConfig(new ModemConfig(ModemConfig.FREQ_BASE_LOW));
+        assertEquals(22, config.getBytesPerSymbol());
+        assertTrue(config.getBitRate() > 6000);
+        // 単一トーンモードとは別の先端符丁
+        assertEquals(0, ModemConfig.getTones(ModemConfig.FREQ_BASE_LOW, config.getFreqIn()));
+    }
+}
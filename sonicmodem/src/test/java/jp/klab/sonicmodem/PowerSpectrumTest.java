@@ -0,0 +1,76 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PowerSpectrumTest {
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int[] WINDOWS = {
+            PowerSpectrum.WINDOW_RECT, PowerSpectrum.WINDOW_HANN, PowerSpectrum.WINDOW_BLACKMAN};
+
+    @Test
+    public void fftSize_isPowerOfTwo() throws Exception {
+        assertEquals(8192, new PowerSpectrum(4410, PowerSpectrum.WINDOW_RECT).getFFTSize());
+        assertEquals(2048, new PowerSpectrum(882, PowerSpectrum.WINDOW_HANN).getFFTSize());
+    }
+
+    @Test
+    public void peak_isOnToneGridPoint() throws Exception {
+        for (int blockSize : new int[] {4410, 882}) {
+            short block[] = new short[blockSize];
+            double power[] = new double[blockSize / 2];
+            int step = SAMPLE_RATE / blockSize;
+            for (int window : WINDOWS) {
+                PowerSpectrum spectrum = new PowerSpectrum(blockSize, window);
+                // 低音域と高音域の両方の帯域の格子点
+                for (int freq = 400; freq < 20000; freq += step * 37) {
+                    ToneModulator.createSineWave(block, freq, 10000, true);
+                    spectrum.compute(block, 0, power);
+                    int peak = 0;
+                    for (int i = 1; i < power.length; i++) {
+                        if (power[i] > power[peak]) {
+                            peak = i;
+                        }
+                    }
+                    assertEquals("window=" + window + " freq=" + freq, freq / step, peak);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void demodulator_decodesCpfskSymbols() throws Exception {
+        Random r = new Random(0);
+        for (int tones : new int[] {1, 2}) {
+            ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 8000, tones, 100);
+            CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10);
+            int symbols[] = new int[40 * tones];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = r.nextInt(ModemConfig.ELMS_MAX);
+            }
+            ShortBuffer buf = ShortBuffer.allocate(config.getUnitSize() * symbols.length / tones);
+            for (int i = 0; i < symbols.length; ) {
+                i += modulator.modulate(symbols, i, buf);
+            }
+            short pcm[] = buf.array();
+            for (int i = 0; i < pcm.length; i++) {
+                pcm[i] += (short)(r.nextGaussian() * 300);
+            }
+            for (int window : WINDOWS) {
+                FFTDemodulator demodulator = new FFTDemodulator(config, window);
+                int out[] = new int[tones];
+                for (int s = 0; s < symbols.length / tones; s++) {
+                    assertEquals(tones, demodulator.demodulate(pcm, s * config.getUnitSize(), out));
+                    for (int k = 0; k < tones; k++) {
+                        assertEquals("window=" + window + " symbol=" + s,
+                                symbols[s * tones + k], out[k]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PreambleDetectorTest {
+    private static final int SAMPLE_RATE = ModemConfig.SAMPLE_RATE;
+    private static final int UNITSIZE = SAMPLE_RATE/10;
+    private static final int FREQ_BASE = ModemConfig.FREQ_BASE_LOW;
+    private static final int AMP = 5000;
+
+    // 雑音 + チャープ + 先端符丁 (100msec) の信号列
+    private static short[] createSignal(Random r, int freqBase, int offset, double noise) {
+        ChirpPreamble preamble = new ChirpPreamble(freqBase, AMP);
+        short pcm[] = new short[offset + preamble.getLength() + UNITSIZE * 2];
+        System.arraycopy(preamble.getWave(), 0, pcm, offset, preamble.getLength());
+        short unit[] = new short[UNITSIZE];
+        ToneModulator.createSineWave(unit, ModemConfig.getFreqIn(freqBase, 1), AMP, true);
+        System.arraycopy(unit, 0, pcm, offset + preamble.getLength(), UNITSIZE);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short)Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, pcm[i] + r.nextGaussian() * noise));
+        }
+        return pcm;
+    }
+
+    // chunk サンプルずつ入力し, 検出した境界の位置を返す. 未検出なら -1
+    private static int detect(PreambleDetector detector, short[] pcm, int chunk, short[] pending) {
+        int pos = 0;
+        while (pos < pcm.length) {
+            int len = Math.min(chunk, pcm.length - pos);
+            int used = detector.process(pcm, pos, len);
+            pos += used;
+            if (used < len || detector.getBoundary() >= 0) {
+                int count = detector.copySinceBoundary(pending);
+                return pos - count;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void boundary_isSampleAccurateInNoise() throws Exception {
+        Random r = new Random(0);
+        short pending[] = new short[UNITSIZE];
+        for (int trial = 0; trial < 20; trial++) {
+            int freqBase = (trial % 2 == 0) ? FREQ_BASE : ModemConfig.FREQ_BASE_HIGH;
+            PreambleDetector detector = new PreambleDetector(new ChirpPreamble(freqBase).getWave());
+            int offset = r.nextInt(SAMPLE_RATE / 2);
+            // 雑音の電力はチャープと同程度 (SNR 約 0dB)
+            short pcm[] = createSignal(r, freqBase, offset, AMP / Math.sqrt(2));
+            int chunk = 1024 + r.nextInt(2048); // AudioRecord の読み込み単位相当
+            int boundary = detect(detector, pcm, chunk, pending);
+            int expected = offset + ChirpPreamble.PREAMBLE_MS * SAMPLE_RATE / 1000;
+            assertEquals("freqBase=" + freqBase + " offset=" + offset, expected, boundary);
+            assertEquals(expected, detector.getBoundary());
+            assertTrue(detector.getScore() > 0.3);
+            // 境界以降に入力済みの分は元の信号と一致する
+            int count = detector.copySinceBoundary(pending);
+            assertTrue(count > 0 && count <= detector.getLatency());
+            for (int i = 0; i < count; i++) {
+                assertEquals(pcm[boundary + i], pending[i]);
+            }
+        }
+    }
+
+    @Test
+    public void steadyToneAndNoise_areIgnored() throws Exception {
+        Random r = new Random(1);
+        PreambleDetector detector = new PreambleDetector(new ChirpPreamble(FREQ_BASE).getWave());
+        // 従来の 1 秒の先端符丁, 帯域内の純音, 雑音のいずれにも反応しない
+        int freqs[] = {ModemConfig.getFreqIn(FREQ_BASE, 1), FREQ_BASE + 1280, 0};
+        for (int freq : freqs) {
+            short pcm[] = new short[SAMPLE_RATE];
+            if (freq > 0) {
+                ToneModulator.createSineWave(pcm, freq, AMP * 4, true);
+            } else {
+                for (int i = 0; i < pcm.length; i++) {
+                    pcm[i] = (short)(r.nextGaussian() * 3000);
+                }
+            }
+            detector.reset();
+            assertEquals(pcm.length, detector.process(pcm, 0, pcm.length));
+            assertEquals(-1, detector.getBoundary());
+            assertEquals(0, detector.copySinceBoundary(new short[UNITSIZE]));
+        }
+    }
+
+    @Test
+    public void chirpFrame_decodesFromAlignedBlocks() throws Exception {
+        Random r = new Random(2);
+        ModemConfig config = new ModemConfig(FREQ_BASE, AMP, 1, 20);
+        CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10,
+                new ChirpPreamble(FREQ_BASE, AMP));
+        byte data[] = "chirp preamble".getBytes("UTF-8");
+        int symbols[] = new Crc32FrameCodec().encode(data);
+        int offset = 3000;
+        int length = offset;
+        for (int symbol : symbols) {
+            length += modulator.getSymbolLength(symbol);
+        }
+        // 先端・終端符丁を縮めたことで 1 秒の符丁 2 つ分より短い
+        assertTrue(length - offset < config.getMarkerSize() * 2);
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        buf.position(offset);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        short pcm[] = buf.array();
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] += (short)(r.nextGaussian() * 300);
+        }
+
+        PreambleDetector detector = new PreambleDetector(new ChirpPreamble(FREQ_BASE).getWave());
+        short block[] = new short[UNITSIZE];
+        int pos = 0;
+        while (pos < pcm.length && detector.getBoundary() < 0) {
+            pos += detector.process(pcm, pos, Math.min(2048, pcm.length - pos));
+        }
+        assertEquals(offset + ChirpPreamble.PREAMBLE_MS * SAMPLE_RATE / 1000, detector.getBoundary());
+        // 境界に揃えたブロックごとに復調して復号する
+        RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(FREQ_BASE, 1);
+        Crc32FrameCodec codec = new Crc32FrameCodec();
+        int dataCount = detector.copySinceBoundary(block);
+        int out[] = new int[1];
+        int result = FrameCodec.RECV_NONE;
+        while (result != FrameCodec.RECV_OK && result != FrameCodec.RECV_NG) {
+            int blockSize = demodulator.getBlockSize();
+            int copyLength = Math.min(blockSize - dataCount, pcm.length - pos);
+            assertTrue("frame truncated", copyLength > 0 || dataCount == blockSize);
+            System.arraycopy(pcm, pos, block, dataCount, copyLength);
+            pos += copyLength;
+            dataCount = 0;
+            if (demodulator.demodulate(block, 0, out) > 0) {
+                result = codec.decode(out[0]);
+            }
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertArrayEquals(data, codec.getPayload());
+    }
+
+    @Test
+    public void channelTemplates_shareInputAndIdentifyChannel() throws Exception {
+        Random r = new Random(3);
+        ChannelPlan plan = new ChannelPlan();
+        short templates[][] = new short[plan.getChannelCount()][];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = plan.getPreamble(i, Short.MAX_VALUE).getWave();
+        }
+        PreambleDetector detector = new PreambleDetector(templates);
+        assertEquals(templates.length, detector.getTemplateCount());
+        // 3 つのチャネルのチャープを重ねて送る. 各チャネルの境界を個別に求める
+        int channels[] = {0, 3, 6};
+        int offsets[] = {1000, 1500, 9000};
+        short pcm[] = new short[SAMPLE_RATE];
+        for (int k = 0; k < channels.length; k++) {
+            short wave[] = plan.getPreamble(channels[k], AMP).getWave();
+            for (int i = 0; i < wave.length; i++) {
+                pcm[offsets[k] + i] += wave[i];
+            }
+        }
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] += (short)(r.nextGaussian() * 1000);
+        }
+        long boundaries[] = new long[templates.length];
+        for (int pos = 0; pos < pcm.length; ) {
+            int len = Math.min(2048, pcm.length - pos);
+            int used = detector.process(pcm, pos, len);
+            pos += used;
+            if (used < len) {
+                // 検出で戻った時点では直前に確定したチャネルの境界以降がバッファに残っている
+                int index = detector.getDetectedIndex();
+                assertTrue(detector.copySinceBoundary(index, new short[UNITSIZE]) > 0);
+            }
+            for (int i = 0; i < templates.length; i++) {
+                boundaries[i] = detector.getBoundary(i);
+            }
+        }
+        int preambleSize = ChirpPreamble.PREAMBLE_MS * SAMPLE_RATE / 1000;
+        for (int i = 0; i < templates.length; i++) {
+            int k = Arrays.binarySearch(channels, i);
+            long expected = (k >= 0) ? offsets[k] + preambleSize : -1;
+            assertEquals("channel=" + i, expected, boundaries[i]);
+        }
+    }
+}
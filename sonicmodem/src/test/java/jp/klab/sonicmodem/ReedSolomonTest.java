@@ -0,0 +1,156 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReedSolomonTest {
+
+    // len バイトのうち count 個の異なる位置を 0 以外の値で書き換える
+    private static void corrupt(Random r, byte[] buf, int off, int len, int count) {
+        boolean used[] = new boolean[len];
+        for (int i = 0; i < count; ) {
+            int pos = r.nextInt(len);
+            if (!used[pos]) {
+                used[pos] = true;
+                buf[off + pos] ^= (byte)(1 + r.nextInt(255));
+                i++;
+            }
+        }
+    }
+
+    @Test
+    public void errorsUpToHalfParity_areCorrected() throws Exception {
+        Random r = new Random(0);
+        for (int paritySize : new int[] {2, 8, 32}) {
+            ReedSolomon rs = new ReedSolomon(paritySize);
+            // 短縮符号を含める
+            for (int dataSize : new int[] {1, 10, rs.getDataSize()}) {
+                byte data[] = new byte[dataSize];
+                r.nextBytes(data);
+                byte codeword[] = new byte[dataSize + paritySize];
+                System.arraycopy(data, 0, codeword, 0, dataSize);
+                rs.encode(data, 0, dataSize, codeword, dataSize);
+                assertEquals(0, rs.decode(codeword.clone(), 0, codeword.length));
+                for (int errors = 1; errors <= paritySize / 2; errors++) {
+                    byte recv[] = codeword.clone();
+                    corrupt(r, recv, 0, recv.length, errors);
+                    assertEquals(errors, rs.decode(recv, 0, recv.length));
+                    assertArrayEquals(codeword, recv);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tooManyErrors_areDetected() throws Exception {
+        Random r = new Random(1);
+        ReedSolomon rs = new ReedSolomon(32);
+        byte codeword[] = new byte[ReedSolomon.BLOCK_SIZE];
+        r.nextBytes(codeword);
+        rs.encode(codeword, 0, rs.getDataSize(), codeword, rs.getDataSize());
+        for (int i = 0; i < 100; i++) {
+            byte recv[] = codeword.clone();
+            corrupt(r, recv, 0, recv.length, 17 + r.nextInt(30));
+            assertEquals(-1, rs.decode(recv, 0, recv.length));
+        }
+    }
+
+    @Test
+    public void frame_correctsSymbolErrors() throws Exception {
+        Random r = new Random(2);
+        byte payload[] = new byte[600]; // 3 符号語
+        r.nextBytes(payload);
+        RsFrameCodec sender = new RsFrameCodec(16);
+        int symbols[] = sender.encode(payload);
+        assertEquals(RsFrameCodec.getEncodedSize(payload.length + 4, 16, 1)
+                + RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT + 2, symbols.length);
+        // ヘッダ 1 つと符号語列の 8 バイトを誤らせる (どの符号語も 8 バイト以下の誤り)
+        symbols[1] = 0;
+        int start = RsFrameCodec.HEADER_SIZE * RsFrameCodec.HEADER_REPEAT + 1;
+        for (int i = 0; i < 8; i++) {
+            int pos = start + r.nextInt(symbols.length - 1 - start);
+            symbols[pos] = (symbols[pos] + 1) % ModemConfig.ELMS_MAX;
+        }
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        int result = FrameCodec.RECV_NONE;
+        for (int symbol : symbols) {
+            result = receiver.decode(symbol);
+            assertNotEquals(FrameCodec.RECV_DATA, result);
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertArrayEquals(payload, receiver.getPayload());
+        assertEquals(16, receiver.getRecvParitySize());
+        assertTrue(receiver.getCorrectedCount() > 0);
+    }
+
+    @Test
+    public void frame_withoutParity_streamsData() throws Exception {
+        byte payload[] = "Hello, sonic!".getBytes("UTF-8");
+        RsFrameCodec codec = new RsFrameCodec(0);
+        int symbols[] = codec.encode(payload);
+        StringBuilder sb = new StringBuilder();
+        int result = FrameCodec.RECV_NONE;
+        for (int symbol : symbols) {
+            result = codec.decode(symbol);
+            if (result == FrameCodec.RECV_DATA) {
+                sb.append((char)codec.getData());
+            }
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertEquals("Hello, sonic!", sb.toString());
+        // 訂正なしでは 1 シンボルの誤りも NG
+        symbols[symbols.length - 2] ^= 1;
+        for (int symbol : symbols) {
+            result = codec.decode(symbol);
+        }
+        assertEquals(FrameCodec.RECV_NG, result);
+    }
+
+    @Test
+    public void loopback_withNoise() throws Exception {
+        Random r = new Random(3);
+        byte payload[] = "Reed-Solomon over the air".getBytes("UTF-8");
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, 1, 20);
+        CpfskModulator modulator = new CpfskModulator(config, config.getUnitSize() / 10);
+        int symbols[] = new RsFrameCodec(8).encode(payload);
+        int length = 0;
+        for (int symbol : symbols) {
+            length += modulator.getSymbolLength(symbol);
+        }
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        short pcm[] = buf.array();
+        // データ部のシンボル 3 つを別の周波数の強い妨害波で潰す
+        int dataStart = config.getMarkerSize() + config.getRateSize();
+        for (int k : new int[] {5, 12, 20}) {
+            int off = dataStart + k * config.getUnitSize();
+            double w = 2 * Math.PI * config.getFreq(r.nextInt(ModemConfig.ELMS_MAX)) / config.getSampleRate();
+            for (int i = 0; i < config.getUnitSize(); i++) {
+                pcm[off + i] = (short)(pcm[off + i] * 0.1 + 8000 * Math.sin(w * i));
+            }
+        }
+        RateAdaptiveDemodulator demodulator = new RateAdaptiveDemodulator(ModemConfig.FREQ_BASE_LOW, 1);
+        RsFrameCodec codec = new RsFrameCodec(0);
+        int recv[] = new int[1];
+        int result = FrameCodec.RECV_NONE;
+        int size;
+        for (int off = 0; off + (size = demodulator.getBlockSize()) <= pcm.length; off += size) {
+            int count = demodulator.demodulate(pcm, off, recv);
+            for (int i = 0; i < count; i++) {
+                int ret = codec.decode(recv[i]);
+                if (ret == FrameCodec.RECV_OK || ret == FrameCodec.RECV_NG) {
+                    result = ret;
+                }
+            }
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertArrayEquals(payload, codec.getPayload());
+        assertTrue(codec.getCorrectedCount() > 0);
+    }
+}
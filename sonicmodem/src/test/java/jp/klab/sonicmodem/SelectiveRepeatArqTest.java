@@ -0,0 +1,210 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SelectiveRepeatArqTest {
+    private static final int BLOCK_SIZE = 16;
+
+    // symbols を受信側に与え, 最後に得た RECV_* を返す
+    // errorRate の確率でデータのシンボルを別の値に置き換える
+    private static int transfer(int[] symbols, SelectiveRepeatArq to, Random r, double errorRate) {
+        int result = SelectiveRepeatArq.RECV_NONE;
+        for (int symbol : symbols) {
+            if (symbol < ModemConfig.ELMS_MAX && r.nextDouble() < errorRate) {
+                symbol = (symbol + 1 + r.nextInt(ModemConfig.ELMS_MAX - 1)) % ModemConfig.ELMS_MAX;
+            }
+            int ret = to.decode(symbol);
+            if (ret != SelectiveRepeatArq.RECV_NONE && ret != SelectiveRepeatArq.RECV_START) {
+                result = ret;
+            }
+        }
+        return result;
+    }
+
+    private static byte[] message(Random r, int length) {
+        byte message[] = new byte[length];
+        r.nextBytes(message);
+        return message;
+    }
+
+    @Test
+    public void send_ack_completes() throws Exception {
+        Random r = new Random(0);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        byte msg[] = message(r, 100);
+        a.send(msg);
+        assertEquals(7, a.getPendingCount());
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(a.createDataFrame(), b, r, 0));
+        assertTrue(b.isNewlyCompleted());
+        assertArrayEquals(msg, b.getMessage());
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertFalse(a.hasPending());
+        assertEquals(0, a.createResponse().length);
+    }
+
+    @Test
+    public void nack_retransmitsOnlyFailedBlocks() throws Exception {
+        Random r = new Random(1);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        byte msg[] = message(r, 64);
+        a.send(msg);
+        int frame[] = a.createDataFrame();
+        // 2 番目のブロックのデータを 1 バイト壊す
+        frame[1 + 16 + (BLOCK_SIZE + 3) + 5] ^= 0x10;
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(frame, b, r, 0));
+        assertFalse(b.isMessageComplete());
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertEquals(1, a.getPendingCount());
+        int resend[] = a.createResponse();
+        assertEquals(2 + 16 + (BLOCK_SIZE + 3), resend.length);
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(resend, b, r, 0));
+        assertTrue(b.isNewlyCompleted());
+        assertArrayEquals(msg, b.getMessage());
+        assertEquals(5, a.getTransmittedCount());
+    }
+
+    @Test
+    public void erasure_failsOnlyItsOwnBlock() throws Exception {
+        Random r = new Random(5);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        b.setRateByte(true);
+        byte msg[] = message(r, BLOCK_SIZE * 8);
+        a.send(msg);
+        int frame[] = a.createDataFrame();
+        // 変調器が先端符丁の直後に送るレートバイトは判定結果なしとして受け,
+        // 3 番目のブロックのデータの 1 シンボルも判定結果なしとなる
+        int recv[] = new int[frame.length + 1];
+        recv[0] = frame[0];
+        recv[1] = ModemConfig.SYMBOL_NONE;
+        System.arraycopy(frame, 1, recv, 2, frame.length - 1);
+        recv[2 + 16 + (BLOCK_SIZE + 3) * 2 + 4] = ModemConfig.SYMBOL_NONE;
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(recv, b, r, 0));
+        assertFalse(b.isMessageComplete());
+        // 消失したブロックのみを再送する
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertEquals(1, a.getPendingCount());
+        // ヘッダの一方の複製の消失も後続のブロックの区切りをずらさない
+        int resend[] = a.createResponse();
+        recv = new int[resend.length + 1];
+        recv[0] = resend[0];
+        recv[1] = ModemConfig.SYMBOL_NONE;
+        System.arraycopy(resend, 1, recv, 2, resend.length - 1);
+        recv[2 + 3] = ModemConfig.SYMBOL_NONE;
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(recv, b, r, 0));
+        assertTrue(b.isNewlyCompleted());
+        assertArrayEquals(msg, b.getMessage());
+        assertEquals(9, a.getTransmittedCount());
+    }
+
+    @Test
+    public void lostAck_isRepairedWithoutDuplicate() throws Exception {
+        Random r = new Random(2);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        byte msg[] = message(r, 40);
+        a.send(msg);
+        transfer(a.createDataFrame(), b, r, 0);
+        assertTrue(b.isNewlyCompleted());
+        // ACK の一方の複製が壊れても受け取れる
+        int ack[] = b.createResponse();
+        ack[2] ^= 0xFF;
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(ack, new SelectiveRepeatArq(BLOCK_SIZE), r, 0));
+        // 両方が壊れたら送信側は未達のブロックを再送する
+        ack[2 + 6] ^= 0xFF;
+        assertEquals(SelectiveRepeatArq.RECV_NG, transfer(ack, a, r, 0));
+        assertEquals(3, a.getPendingCount());
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(a.createResponse(), b, r, 0));
+        assertFalse(b.isNewlyCompleted());
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertFalse(a.hasPending());
+    }
+
+    @Test
+    public void lostFrame_isResentAfterTimeout() throws Exception {
+        Random r = new Random(6);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        byte msg[] = message(r, 40);
+        a.send(msg);
+        // データフレームがまるごと失われると, 受信側は何も返さない
+        a.createDataFrame();
+        assertEquals(0, b.createResponse().length);
+        assertTrue(a.onTimeout());
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(a.createResponse(), b, r, 0));
+        assertTrue(b.isNewlyCompleted());
+        // ACK が失われた場合も再送し, 受信側は重複を受けて ACK を返し直す
+        b.createResponse();
+        assertTrue(a.onTimeout());
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(a.createResponse(), b, r, 0));
+        assertFalse(b.isNewlyCompleted());
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertFalse(a.hasPending());
+        assertFalse(a.onTimeout());
+
+        // 応答のないままの再送は RETRY_MAX 回まで
+        a.send(message(r, 40));
+        for (int i = 0; i < SelectiveRepeatArq.RETRY_MAX; i++) {
+            assertTrue(a.createResponse().length > 0);
+            assertTrue(a.onTimeout());
+        }
+        a.createResponse();
+        assertFalse(a.onTimeout());
+        // 相手の応答を受ければ数え直す
+        transfer(new SelectiveRepeatArq(BLOCK_SIZE).createAckFrame(), a, r, 0);
+        assertTrue(a.onTimeout());
+    }
+
+    @Test
+    public void brokenHeader_isNacked() throws Exception {
+        Random r = new Random(3);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        a.send(message(r, 40));
+        int frame[] = a.createDataFrame();
+        frame[3] ^= 0x01;
+        frame[3 + 8] ^= 0x01;
+        assertEquals(SelectiveRepeatArq.RECV_NG, transfer(frame, b, r, 0));
+        // 空のビットマップの ACK で全ブロックを再送させる
+        assertEquals(SelectiveRepeatArq.RECV_ACK, transfer(b.createResponse(), a, r, 0));
+        assertEquals(3, a.getPendingCount());
+        assertEquals(SelectiveRepeatArq.RECV_DATA, transfer(a.createResponse(), b, r, 0));
+        assertTrue(b.isNewlyCompleted());
+    }
+
+    @Test
+    public void lossyChannel_repairTrafficIsSmall() throws Exception {
+        Random r = new Random(4);
+        double errorRate = 0.01;
+        byte msg[] = message(r, 400);
+        SelectiveRepeatArq a = new SelectiveRepeatArq(BLOCK_SIZE);
+        SelectiveRepeatArq b = new SelectiveRepeatArq(BLOCK_SIZE);
+        a.send(msg);
+        int first = 0;
+        int repair = 0;
+        int turns = 0;
+        int frame[] = a.createDataFrame();
+        while (frame.length > 0 && turns < 20) {
+            if (turns == 0) {
+                first = frame.length;
+            } else {
+                repair += frame.length;
+            }
+            SelectiveRepeatArq to = (turns % 2 == 0) ? b : a;
+            transfer(frame, to, r, errorRate);
+            frame = to.createResponse();
+            turns++;
+        }
+        assertArrayEquals(msg, b.getMessage());
+        assertFalse(a.hasPending());
+        // 全体を 1 フレームで送る方式は 1 回あたりの成功率が 2% 程度で, 平均 50 回近く送り直すことになる
+        // 選択再送なら修復 (ACK を含む) は最初の送信より短い
+        assertTrue("first=" + first + " repair=" + repair, repair < first);
+    }
+}
@@ -0,0 +1,86 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ShortRingBufferTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBePowerOfTwo() throws Exception {
+        new ShortRingBuffer(4410);
+    }
+
+    @Test
+    public void wrapAround_keepsOrder_andCountsOverrun() throws Exception {
+        ShortRingBuffer ring = ShortRingBuffer.withMinCapacity(10);
+        assertEquals(16, ring.getCapacity());
+        short src[] = new short[12];
+        short dst[] = new short[12];
+        short next = 0;
+        short expected = 0;
+        for (int n = 0; n < 10; n++) {
+            for (int i = 0; i < src.length; i++) {
+                src[i] = next++;
+            }
+            assertEquals(12, ring.write(src, 0, 12));
+            assertEquals(12, ring.read(dst, 0, 12));
+            for (int i = 0; i < dst.length; i++) {
+                assertEquals(expected++, dst[i]);
+            }
+        }
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.getOverrunCount());
+
+        // 満杯になれば入りきらない分を捨てる
+        assertEquals(12, ring.write(src, 0, 12));
+        assertEquals(4, ring.write(src, 0, 12));
+        assertEquals(0, ring.write(src, 0, 1));
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(9, ring.getDroppedCount());
+        assertEquals(16, ring.available());
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertFalse(ring.await(1, 0));
+    }
+
+    @Test
+    public void producerThread_feedsConsumer() throws Exception {
+        final ShortRingBuffer ring = new ShortRingBuffer(1024);
+        final int total = 1 << 20;
+        // 集音の代わりに通し番号を不規則な長さで書き込み続ける
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short buf[] = new short[300];
+                int value = 0;
+                int len = 1;
+                while (value < total) {
+                    len = Math.min((len + 37) % buf.length + 1, total - value);
+                    for (int i = 0; i < len; i++) {
+                        buf[i] = (short)(value + i);
+                    }
+                    int n = ring.write(buf, 0, len);
+                    value += n;
+                    if (n < len) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        short buf[] = new short[256];
+        int received = 0;
+        while (received < total) {
+            int want = Math.min(buf.length, total - received);
+            assertTrue(ring.await(want, 5000));
+            int n = ring.read(buf, 0, want);
+            assertEquals(want, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals((short)(received + i), buf[i]);
+            }
+            received += n;
+        }
+        producer.join();
+        assertEquals(0, ring.available());
+    }
+}
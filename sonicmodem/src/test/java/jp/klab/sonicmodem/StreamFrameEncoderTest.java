@@ -0,0 +1,111 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamFrameEncoderTest {
+
+    // symbols を受信側に与え, RECV_DATA で通知されたバイト列を recv に書き込んで最後の結果を返す
+    private static int receive(int[] symbols, RsFrameCodec codec, ByteArrayOutputStream recv) {
+        int result = FrameCodec.RECV_NONE;
+        for (int symbol : symbols) {
+            result = codec.decode(symbol);
+            if (result == FrameCodec.RECV_DATA) {
+                recv.write(codec.getData());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void chunkedEncode_matchesWholeFrame() throws Exception {
+        byte payload[] = new byte[100];
+        new Random(0).nextBytes(payload);
+        int expected[] = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM).encode(payload);
+        // 長さを知らないまま不揃いな断片で符号化する
+        StreamFrameEncoder encoder = new StreamFrameEncoder();
+        int symbols[] = new int[expected.length];
+        int n = encoder.begin(symbols, 0);
+        for (int off = 0; off < payload.length; ) {
+            int len = Math.min(off % 7 + 1, payload.length - off);
+            n += encoder.encode(payload, off, len, symbols, n);
+            off += len;
+        }
+        assertEquals(payload.length, encoder.getLength());
+        n += encoder.end(symbols, n);
+        assertEquals(expected.length, n);
+        assertArrayEquals(expected, symbols);
+    }
+
+    @Test
+    public void stream_roundTrip() throws Exception {
+        RsFrameCodec sender = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM);
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        for (String s : new String[] {"", "a", "Hello, sonic!"}) {
+            byte payload[] = s.getBytes("UTF-8");
+            int symbols[] = sender.encode(payload);
+            // CRC32 は末尾
+            assertEquals(ModemConfig.SYMBOL_OUT, symbols[symbols.length - 1]);
+            ByteArrayOutputStream recv = new ByteArrayOutputStream();
+            assertEquals(FrameCodec.RECV_OK, receive(symbols, receiver, recv));
+            assertTrue(receiver.isStreaming());
+            assertEquals(RsFrameCodec.DEPTH_STREAM, receiver.getRecvDepth());
+            assertArrayEquals(payload, recv.toByteArray());
+            // ペイロードは RECV_DATA でのみ受け取り, 受信側には溜めない
+            assertEquals(0, receiver.getPayload().length);
+        }
+    }
+
+    @Test
+    public void longStream_doesNotGrowReceiveBuffer() throws Exception {
+        byte payload[] = new byte[200000];
+        new Random(1).nextBytes(payload);
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        int initial = receiver.getRecvBufferSize();
+        ByteArrayOutputStream recv = new ByteArrayOutputStream();
+        int symbols[] = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM).encode(payload);
+        assertEquals(FrameCodec.RECV_OK, receive(symbols, receiver, recv));
+        assertArrayEquals(payload, recv.toByteArray());
+        assertEquals(initial, receiver.getRecvBufferSize());
+        // 続けて受信した短いストリームの CRC32 も直近の 4 バイトから検査する
+        symbols = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM).encode("abc".getBytes("UTF-8"));
+        recv.reset();
+        assertEquals(FrameCodec.RECV_OK, receive(symbols, receiver, recv));
+        assertEquals("abc", recv.toString("UTF-8"));
+    }
+
+    @Test
+    public void dataIsNotifiedBeforeTrailer() throws Exception {
+        byte payload[] = "abcdefgh".getBytes("UTF-8");
+        int symbols[] = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM).encode(payload);
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        int count = 0;
+        for (int i = 0; i < symbols.length - 1; i++) {
+            if (receiver.decode(symbols[i]) == FrameCodec.RECV_DATA) {
+                assertEquals(payload[count++], (byte)receiver.getData());
+            }
+        }
+        // 終端符丁の前に全バイトが届いている
+        assertEquals(payload.length, count);
+    }
+
+    @Test
+    public void corruptedSymbol_isReportedNG() throws Exception {
+        int symbols[] = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM).encode("abc".getBytes("UTF-8"));
+        symbols[StreamFrameEncoder.HEAD_SIZE + 1] ^= 1;
+        assertEquals(FrameCodec.RECV_NG, receive(symbols, new RsFrameCodec(0), new ByteArrayOutputStream()));
+        // CRC32 側の誤りも検出する
+        symbols[StreamFrameEncoder.HEAD_SIZE + 1] ^= 1;
+        symbols[symbols.length - 2] ^= 0x80;
+        assertEquals(FrameCodec.RECV_NG, receive(symbols, new RsFrameCodec(0), new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void streamWithParity_isRejected() {
+        new RsFrameCodec(8, RsFrameCodec.DEPTH_STREAM);
+    }
+}
@@ -0,0 +1,226 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamTransmitterTest {
+
+    // シンボル値をそのまま 1 サンプルとして書き出す変調器
+    // データは CpfskModulator と同じく最大 tones 個まとめて 1 回で消費する
+    private static class SymbolModulator implements Modulator {
+        final int tones;
+        final ByteArrayOutputStream groups = new ByteArrayOutputStream(); // まとめたデータ数
+
+        SymbolModulator(int tones) {
+            this.tones = tones;
+        }
+
+        @Override
+        public int modulate(int[] symbols, int off, ShortBuffer out) {
+            int count = 1;
+            if (symbols[off] < ModemConfig.ELMS_MAX) {
+                while (count < tones && off + count < symbols.length &&
+                        symbols[off + count] >= 0 && symbols[off + count] < ModemConfig.ELMS_MAX) {
+                    count++;
+                }
+                groups.write(count);
+            }
+            for (int i = 0; i < count; i++) {
+                out.put((short)symbols[off + i]);
+            }
+            return count;
+        }
+
+        @Override
+        public int getSymbolLength(int symbol) {
+            return (symbol < ModemConfig.ELMS_MAX) ? tones : 1;
+        }
+    }
+
+    // 書き出された PCM を溜める. 書き出しは少し遅らせて合成と重なるようにする
+    private static class Recorder implements StreamTransmitter.PcmWriter {
+        final ShortBuffer recorded;
+        int writes = 0;
+
+        Recorder(int capacity) {
+            recorded = ShortBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void write(short[] pcm, int off, int len) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+            }
+            recorded.put(pcm, off, len);
+            writes++;
+        }
+    }
+
+    // 1 回の read で最大 7 バイトしか返さない入力
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    @Test
+    public void input_isSplitIntoStreamFrames() throws Exception {
+        byte payload[] = new byte[3000];
+        new Random(0).nextBytes(payload);
+        SymbolModulator modulator = new SymbolModulator(4);
+        Recorder recorder = new Recorder(payload.length * 2);
+        StreamTransmitter tx = new StreamTransmitter(modulator, 4, 1024, recorder);
+        assertEquals(payload.length, tx.send(trickle(payload)));
+        assertEquals(3, tx.getFrameCount());
+        assertTrue(recorder.writes > 1);
+
+        // 受信側は各フレームを RECV_OK で受け, RECV_DATA のバイトを順に並べると元の入力になる
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        ByteArrayOutputStream recv = new ByteArrayOutputStream();
+        int frames = 0;
+        ShortBuffer recorded = recorder.recorded;
+        recorded.flip();
+        while (recorded.hasRemaining()) {
+            switch (receiver.decode(recorded.get())) {
+                case FrameCodec.RECV_DATA:
+                    recv.write(receiver.getData());
+                    break;
+                case FrameCodec.RECV_OK:
+                    frames++;
+                    break;
+                case FrameCodec.RECV_NG:
+                    fail();
+            }
+        }
+        assertEquals(3, frames);
+        assertArrayEquals(payload, recv.toByteArray());
+        // 入力が細切れでも, 各フレームの最後以外は同時送信数ずつまとめて送る
+        byte groups[] = modulator.groups.toByteArray();
+        int partial = 0;
+        for (byte g : groups) {
+            if (g != 4) {
+                partial++;
+            }
+        }
+        assertTrue("partial=" + partial, partial <= frames);
+    }
+
+    @Test
+    public void waveform_matchesWholeFrameModulation() throws Exception {
+        byte payload[] = new byte[100];
+        new Random(1).nextBytes(payload);
+        ModemConfig config = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 5000, 2, 50);
+        int rampSize = config.getUnitSize() / 10;
+        Recorder recorder = new Recorder(ModemConfig.SAMPLE_RATE * 10);
+        StreamTransmitter tx = new StreamTransmitter(new CpfskModulator(config, rampSize), 2, 60, recorder);
+        assertEquals(payload.length, tx.send(Channels.newChannel(new ByteArrayInputStream(payload))));
+
+        // 同じ区切りのフレームを一度に変調した波形と一致する
+        CpfskModulator modulator = new CpfskModulator(config, rampSize);
+        RsFrameCodec codec = new RsFrameCodec(0, RsFrameCodec.DEPTH_STREAM);
+        ShortBuffer expected = ShortBuffer.allocate(recorder.recorded.capacity());
+        for (int off = 0; off < payload.length; off += 60) {
+            byte frame[] = new byte[Math.min(60, payload.length - off)];
+            System.arraycopy(payload, off, frame, 0, frame.length);
+            int symbols[] = codec.encode(frame);
+            for (int i = 0; i < symbols.length; ) {
+                i += modulator.modulate(symbols, i, expected);
+            }
+        }
+        expected.flip();
+        recorder.recorded.flip();
+        assertEquals(expected, recorder.recorded);
+    }
+
+    @Test
+    public void emptyInput_sendsNothing() throws Exception {
+        Recorder recorder = new Recorder(16);
+        StreamTransmitter tx = new StreamTransmitter(new SymbolModulator(1), 1, recorder);
+        assertEquals(0, tx.send(new ByteArrayInputStream(new byte[0])));
+        assertEquals(0, tx.getFrameCount());
+        assertEquals(0, recorder.recorded.position());
+    }
+
+    // ノンブロッキングのチャネルを模し, データが届くまでの間 read が 0 を返す入力
+    // 1 バイトずつ, 届くまで idleMs の間をあけて返す
+    private static class IdleChannel implements ReadableByteChannel {
+        final byte data[];
+        final long idleMs;
+        int pos = 0;
+        int emptyReads = 0;
+        long nextTime;
+
+        IdleChannel(byte[] data, long idleMs) {
+            this.data = data;
+            this.idleMs = idleMs;
+            nextTime = System.currentTimeMillis() + idleMs;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (pos == data.length) {
+                return -1;
+            }
+            if (System.currentTimeMillis() < nextTime) {
+                emptyReads++;
+                return 0;
+            }
+            nextTime = System.currentTimeMillis() + idleMs;
+            dst.put(data[pos++]);
+            return 1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void idleChannel_waitsInsteadOfSpinning() throws Exception {
+        byte payload[] = {1, 2, 3, 4, 5};
+        Recorder recorder = new Recorder(64);
+        StreamTransmitter tx = new StreamTransmitter(new SymbolModulator(1), 1, recorder);
+        IdleChannel ch = new IdleChannel(payload, 50);
+        assertEquals(payload.length, tx.send(ch));
+
+        // 0 バイトの読み込みが続いても, 届いたデータは全て 1 フレームで送る
+        assertEquals(1, tx.getFrameCount());
+        RsFrameCodec receiver = new RsFrameCodec(0);
+        ByteArrayOutputStream recv = new ByteArrayOutputStream();
+        ShortBuffer recorded = recorder.recorded;
+        recorded.flip();
+        int result = FrameCodec.RECV_NONE;
+        while (recorded.hasRemaining() && result != FrameCodec.RECV_OK) {
+            result = receiver.decode(recorded.get());
+            if (result == FrameCodec.RECV_DATA) {
+                recv.write(receiver.getData());
+            }
+        }
+        assertEquals(FrameCodec.RECV_OK, result);
+        assertArrayEquals(payload, recv.toByteArray());
+        // 約 250msec の待ちの間に read を繰り返し呼ばない (yield で回すと数万回になる)
+        assertTrue("emptyReads=" + ch.emptyReads, ch.emptyReads >= payload.length);
+        assertTrue("emptyReads=" + ch.emptyReads, ch.emptyReads < 100);
+    }
+}
@@ -0,0 +1,119 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SymbolTrackerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int UNITSIZE = SAMPLE_RATE/10;
+    private static final int FREQ_BASE = 500;
+    private static final int FREQ_STEP = 10;
+    private static final int FREQ_OUT = FREQ_BASE - 100;
+    private static final int FREQ_IN = FREQ_OUT + 20;
+    private static final int AMP = 5000;
+
+    // 雑音 + 先端符丁 + データ + 終端符丁 の信号列 (sonic09 の送信内容)
+    private static short[] createSignal(Random r, int offset, int[] values) {
+        short pcm[] = new short[offset + SAMPLE_RATE * 2 + UNITSIZE * values.length];
+        for (int i = 0; i < offset; i++) {
+            pcm[i] = (short)(r.nextGaussian() * 100);
+        }
+        int pos = offset;
+        short sig[] = new short[SAMPLE_RATE];
+        ToneModulator.createSineWave(sig, FREQ_IN, AMP, true);
+        System.arraycopy(sig, 0, pcm, pos, sig.length);
+        pos += sig.length;
+        short unit[] = new short[UNITSIZE];
+        for (int v : values) {
+            ToneModulator.createSineWave(unit, FREQ_BASE + FREQ_STEP * v, AMP, true);
+            System.arraycopy(unit, 0, pcm, pos, unit.length);
+            pos += unit.length;
+        }
+        ToneModulator.createSineWave(sig, FREQ_OUT, AMP, true);
+        System.arraycopy(sig, 0, pcm, pos, sig.length);
+        return pcm;
+    }
+
+    @Test
+    public void boundary_isFoundAtRandomOffsets() throws Exception {
+        Random r = new Random(0);
+        FFTDemodulator demodulator = new FFTDemodulator(new ModemConfig(FREQ_BASE, AMP));
+        SymbolTracker tracker = new SymbolTracker(new int[] {FREQ_IN, FREQ_OUT}, SAMPLE_RATE, UNITSIZE);
+        for (int trial = 0; trial < 20; trial++) {
+            int offset = r.nextInt(UNITSIZE * 3);
+            int values[] = new int[8];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = r.nextInt(256);
+            }
+            short pcm[] = createSignal(r, offset, values);
+            int chunk = 1024 + r.nextInt(2048); // AudioRecord の読み込み単位相当
+            tracker.reset();
+            short block[] = new short[UNITSIZE];
+            int symbols[] = new int[1];
+            int pos = 0;
+            int dataCount = -1;
+            while (pos < pcm.length && dataCount < 0) {
+                int len = Math.min(chunk, pcm.length - pos);
+                int used = tracker.process(pcm, pos, len);
+                pos += used;
+                if (used < len) {
+                    assertEquals(FREQ_IN, tracker.getLastFreq());
+                    dataCount = tracker.copySinceBoundary(block);
+                }
+            }
+            assertTrue("not locked", dataCount >= 0);
+            int boundary = pos - dataCount;
+            int expected = offset + SAMPLE_RATE;
+            assertTrue("offset=" + offset + " boundary=" + boundary + " expected=" + expected,
+                    Math.abs(boundary - expected) <= UNITSIZE / 50);
+            // 境界に揃えたブロックごとに復号
+            for (int v : values) {
+                int copyLength = UNITSIZE - dataCount;
+                System.arraycopy(pcm, pos, block, dataCount, copyLength);
+                pos += copyLength;
+                dataCount = 0;
+                assertEquals(1, demodulator.demodulate(block, 0, symbols));
+                assertEquals(v, symbols[0]);
+            }
+        }
+    }
+
+    @Test
+    public void preambleVariants_areDistinguished() throws Exception {
+        // sonic10 と同様に全同時送信数の先端符丁を追跡し, 送られたものを判別する
+        int freqs[] = new int[ModemConfig.TONES.length];
+        for (int i = 0; i < freqs.length; i++) {
+            freqs[i] = ModemConfig.getFreqIn(FREQ_BASE, ModemConfig.TONES[i]);
+        }
+        SymbolTracker tracker = new SymbolTracker(freqs, SAMPLE_RATE, UNITSIZE);
+        for (int tones : ModemConfig.TONES) {
+            ModemConfig config = new ModemConfig(FREQ_BASE, AMP, tones);
+            ToneModulator modulator = new ToneModulator(config);
+            int symbols[] = new Crc32FrameCodec().encode("multi-tone".getBytes("UTF-8"));
+            ShortBuffer buf = ShortBuffer.allocate(SAMPLE_RATE * 2);
+            modulator.modulate(symbols, 0, buf);
+            modulator.modulate(symbols, 1, buf);
+            tracker.reset();
+            int used = tracker.process(buf.array(), 0, buf.position());
+            assertTrue(used < buf.position());
+            assertEquals(config.getFreqIn(), tracker.getLastFreq());
+        }
+    }
+
+    @Test
+    public void noBoundary_withoutSignal() throws Exception {
+        Random r = new Random(1);
+        SymbolTracker tracker = new SymbolTracker(new int[] {FREQ_IN, FREQ_OUT}, SAMPLE_RATE, UNITSIZE);
+        short pcm[] = new short[SAMPLE_RATE];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short)(r.nextGaussian() * 3000);
+        }
+        assertEquals(pcm.length, tracker.process(pcm, 0, pcm.length));
+        assertEquals(-1, tracker.getLastFreq());
+        assertEquals(0, tracker.copySinceBoundary(new short[UNITSIZE]));
+    }
+}
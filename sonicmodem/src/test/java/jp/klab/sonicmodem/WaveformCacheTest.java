@@ -0,0 +1,70 @@
+package jp.klab.sonicmodem;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+public class WaveformCacheTest {
+    @Test
+    public void oscillator_matchesMathSin() throws Exception {
+        int amp = 28000;
+        for (int freq : new int[] {420, 1000, 14000, 19100}) {
+            short wave[] = new WaveformCache().get(freq, amp, ModemConfig.SAMPLE_RATE);
+            int maxError = 0;
+            for (int i = 0; i < wave.length; i++) {
+                short expected = (short)(amp * Math.sin(2.0 * Math.PI * freq * i / ModemConfig.SAMPLE_RATE));
+                maxError = Math.max(maxError, Math.abs(wave[i] - expected));
+            }
+            // 1 秒分の漸化式の誤差は切り捨ての 1 LSB 以内に収まる
+            assertTrue("freq=" + freq + " maxError=" + maxError, maxError <= 1);
+        }
+    }
+
+    @Test
+    public void sameKey_isSharedAndBuiltOnce() throws Exception {
+        WaveformCache cache = new WaveformCache();
+        short a[] = cache.get(1000, 5000, 4410);
+        assertSame(a, cache.get(1000, 5000, 4410));
+        assertNotSame(a, cache.get(1000, 5000, 2205));
+        assertNotSame(a, cache.get(1000, 6000, 4410));
+        assertNotSame(a, cache.get(1000, 5000, 4410, 48000));
+        assertEquals(4, cache.getGeneratedCount());
+        assertEquals(4, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNotSame(a, cache.get(1000, 5000, 4410));
+        assertEquals(5, cache.getGeneratedCount());
+    }
+
+    @Test
+    public void modeSwitch_reusesTables() throws Exception {
+        WaveformCache cache = new WaveformCache();
+        ModemConfig low = new ModemConfig(ModemConfig.FREQ_BASE_LOW, 28000);
+        ModemConfig high = new ModemConfig(ModemConfig.FREQ_BASE_HIGH, 28000);
+        int symbols[] = {ModemConfig.SYMBOL_IN, 0x41, 0x42, ModemConfig.SYMBOL_OUT};
+        ShortBuffer first = modulate(new ToneModulator(low, cache), symbols);
+        // 使ったシンボルの分だけ作る
+        int generated = cache.getGeneratedCount();
+        assertEquals(5, generated);
+        new ToneModulator(high, cache);
+        // 元のモードに戻しても作り直さず, 同じ信号を出す
+        ShortBuffer again = modulate(new ToneModulator(low, cache), symbols);
+        assertEquals(generated + 3, cache.getGeneratedCount());
+        assertEquals(first, again);
+    }
+
+    private static ShortBuffer modulate(Modulator modulator, int[] symbols) {
+        int length = 0;
+        for (int symbol : symbols) {
+            length += modulator.getSymbolLength(symbol);
+        }
+        ShortBuffer buf = ShortBuffer.allocate(length);
+        for (int i = 0; i < symbols.length; ) {
+            i += modulator.modulate(symbols, i, buf);
+        }
+        buf.flip();
+        return buf;
+    }
+}